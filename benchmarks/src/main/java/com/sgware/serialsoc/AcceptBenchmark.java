@@ -0,0 +1,161 @@
+package com.sgware.serialsoc;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many new connections per second a server can accept when many
+ * clients connect at once, as they do when they all reconnect after the server
+ * restarts. Several client threads each connect, wait for the line the server
+ * sends from {@link SerialSocket#onConnect()}, and then reset the connection,
+ * so each operation is one whole connection through the server's main thread.
+ * Resetting rather than closing leaves no connections waiting to time out, so
+ * the client does not run out of ports. The server runs with one or several
+ * {@link SerialServerSocket#getAccepters() accepters}, with one thread per
+ * socket and with selector threads.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class AcceptBenchmark {
+	
+	/**
+	 * The size of each server socket's queue of connections waiting to be
+	 * accepted.
+	 */
+	private static final int BACKLOG = 1024;
+	
+	/**
+	 * The number of server sockets, each with its own accepter.
+	 */
+	@Param({"1", "4"})
+	public int accepters;
+	
+	/**
+	 * The number of selector threads the server uses, or 0 for one thread per
+	 * socket.
+	 */
+	@Param({"0", "2"})
+	public int selectors;
+	
+	/**
+	 * The server.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The address the server is listening on.
+	 */
+	private InetSocketAddress address;
+	
+	/**
+	 * Starts the server.
+	 * 
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int count = accepters;
+		int threads = selectors;
+		server = new SerialServerSocket() {
+			
+			@Override
+			protected ServerSocket createServer() throws Exception {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				if(count > 1)
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(new InetSocketAddress("127.0.0.1", 0), getBacklog());
+				return channel.socket();
+			}
+			
+			@Override
+			protected int getAccepters() {
+				return count;
+			}
+			
+			@Override
+			protected int getBacklog() {
+				return BACKLOG;
+			}
+			
+			@Override
+			protected int getSelectorThreads() {
+				return threads;
+			}
+			
+			@Override
+			protected SerialSocket createSocket(Socket socket) throws Exception {
+				return new SerialSocket(this, socket) {
+					
+					@Override
+					protected void onConnect() {
+						send("");
+					}
+				};
+			}
+		};
+		thread = Benchmarks.start(server);
+		address = new InetSocketAddress("127.0.0.1", Benchmarks.port(server));
+	}
+	
+	/**
+	 * Stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		Benchmarks.stop(server, thread);
+	}
+	
+	/**
+	 * Connects to the server, waits until it has connected, and resets the
+	 * connection.
+	 * 
+	 * @return the byte the server sent
+	 * @throws Exception if the connection failed
+	 */
+	@Benchmark
+	public byte connect() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		try(SocketChannel client = SocketChannel.open(address)) {
+			client.setOption(StandardSocketOptions.SO_LINGER, 0);
+			if(client.read(buffer) < 0)
+				throw new IllegalStateException("The server closed the connection.");
+		}
+		return buffer.get(0);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Methods shared by the benchmarks for starting a {@link SerialServerSocket}
+ * on its own thread, running code on its main thread, and stopping it.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class Benchmarks {
+	
+	/**
+	 * This class only has static members.
+	 */
+	private Benchmarks() {
+		// This class cannot be constructed.
+	}
+	
+	/**
+	 * Binds a server socket to any free port on the loopback address. The
+	 * server socket belongs to a {@link ServerSocketChannel}, so it can be
+	 * used by servers which have {@link SerialServerSocket#getSelectorThreads()
+	 * selector threads} as well as those which do not.
+	 * 
+	 * @return the bound server socket
+	 * @throws IOException if the server socket could not be created or bound
+	 */
+	static ServerSocket bind() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+		return channel.socket();
+	}
+	
+	/**
+	 * Runs a server on a new daemon thread and waits until it has started.
+	 * 
+	 * @param server the server to run
+	 * @return the thread running the server
+	 * @throws Exception if the server could not be started
+	 */
+	static Thread start(SerialServerSocket server) throws Exception {
+		CompletableFuture<Void> stopped = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			try {
+				server.run();
+				stopped.complete(null);
+			}
+			catch(Exception exception) {
+				stopped.completeExceptionally(exception);
+			}
+		}, "Benchmark Server");
+		thread.setDaemon(true);
+		thread.start();
+		// The server's first operation cannot run until it has started.
+		CompletableFuture<Void> started = new CompletableFuture<>();
+		server.execute(() -> started.complete(null));
+		CompletableFuture.anyOf(started, stopped).get();
+		return thread;
+	}
+	
+	/**
+	 * Returns the port the server is listening on.
+	 * 
+	 * @param server a server which has been {@link #start(SerialServerSocket)
+	 * started}
+	 * @return the port
+	 * @throws Exception if the server stopped
+	 */
+	static int port(SerialServerSocket server) throws Exception {
+		return call(server, () -> server.getServerSocket().getLocalPort());
+	}
+	
+	/**
+	 * Runs code on a server's main thread and waits for its result.
+	 * 
+	 * @param <T> the type of the result
+	 * @param server the server
+	 * @param callable the code to run
+	 * @return the result
+	 * @throws Exception if the code threw an exception
+	 */
+	static <T> T call(SerialServerSocket server, Callable<T> callable) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		server.execute(() -> {
+			try {
+				result.complete(callable.call());
+			}
+			catch(Exception exception) {
+				result.completeExceptionally(exception);
+			}
+		});
+		return result.get();
+	}
+	
+	/**
+	 * Waits until a server has a given number of connected sockets.
+	 * 
+	 * @param server the server
+	 * @param count the number of sockets
+	 * @throws Exception if the server stopped or the thread was interrupted
+	 */
+	static void awaitSockets(SerialServerSocket server, int count) throws Exception {
+		while(call(server, () -> server.sockets.size()) < count)
+			Thread.sleep(10);
+	}
+	
+	/**
+	 * Closes a server and waits for it to stop.
+	 * 
+	 * @param server the server
+	 * @param thread the thread running the server
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	static void stop(SerialServerSocket server, Thread thread) throws InterruptedException {
+		server.close();
+		thread.join();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes a {@link ChatServer} to broadcast one message to
+ * 10, 1000, or 10000 connected users, each of which reads everything it is
+ * sent as fast as it can. The message is sent the way {@link
+ * ChatServer#broadcast(String)} sends it, but without also printing it.
+ * <p>
+ * The server uses two {@link SerialServerSocket#getSelectorThreads() selector
+ * threads}, since a thread per socket would need 10000 threads. The clients
+ * and the server run in the same process, so 10000 users need about 20000
+ * open files; the operating system's limit may need to be raised, for example
+ * with <code>ulimit -n</code>. So that the outgoing queues do not grow without
+ * limit, the benchmark waits while more than 64 kilobytes are queued for the
+ * last user.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+	
+	/**
+	 * The most bytes which may be queued for the last user before the
+	 * benchmark waits.
+	 */
+	private static final long MAX_QUEUED = 64 * 1024;
+	
+	/**
+	 * The message.
+	 */
+	private static final String MESSAGE = "Alice: The quick brown fox jumps over the lazy dog.";
+	
+	/**
+	 * The number of connected users.
+	 */
+	@Param({"10", "1000", "10000"})
+	public int sockets;
+	
+	/**
+	 * The server.
+	 */
+	private ChatServer server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The clients.
+	 */
+	private Clients clients;
+	
+	/**
+	 * The last user to connect.
+	 */
+	private ChatUser last;
+	
+	/**
+	 * Starts a chat server and connects the users.
+	 * 
+	 * @throws Exception if the server could not be started or a user could
+	 * not connect
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new ChatServer(0) {
+			
+			@Override
+			protected ServerSocket createServer() throws IOException {
+				return Benchmarks.bind();
+			}
+			
+			@Override
+			protected int getSelectorThreads() {
+				return 2;
+			}
+		};
+		thread = Benchmarks.start(server);
+		clients = new Clients(Benchmarks.port(server), sockets);
+		Benchmarks.awaitSockets(server, sockets);
+		last = Benchmarks.call(server, () -> {
+			ChatUser last = null;
+			for(ChatUser user : server.users)
+				last = user;
+			return last;
+		});
+	}
+	
+	/**
+	 * Disconnects the users and stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		Benchmarks.stop(server, thread);
+		clients.close();
+	}
+	
+	/**
+	 * Broadcasts the message to every user.
+	 * <p>
+	 * The benchmark thread broadcasts the message directly rather than on the
+	 * server's main thread, which is idle, so that the score does not include
+	 * the time needed to add an operation to the queue and wait for it.
+	 */
+	@Benchmark
+	public void broadcast() {
+		while(last.getQueuedBytes() > MAX_QUEUED)
+			Thread.onSpinWait();
+		server.broadcast(server.users, MESSAGE);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,112 @@
+package com.sgware.serialsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many connections to a server which read and discard everything the server
+ * sends them as fast as they can. All of the connections share one thread, so
+ * a benchmark can open thousands of them without starting thousands of
+ * threads.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class Clients implements Closeable {
+	
+	/**
+	 * The selector which waits for input on every connection.
+	 */
+	private final Selector selector;
+	
+	/**
+	 * The connections.
+	 */
+	private final List<SocketChannel> channels = new ArrayList<>();
+	
+	/**
+	 * The thread which reads from every connection.
+	 */
+	private final Thread thread;
+	
+	/**
+	 * Opens connections to a server on the loopback address and starts reading
+	 * from them.
+	 * 
+	 * @param port the port the server is listening on
+	 * @param count the number of connections to open
+	 * @throws IOException if a connection could not be opened
+	 */
+	Clients(int port, int count) throws IOException {
+		selector = Selector.open();
+		try {
+			InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+			for(int i = 0; i < count; i++) {
+				SocketChannel channel = SocketChannel.open(address);
+				channels.add(channel);
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ);
+			}
+		}
+		catch(IOException exception) {
+			close();
+			throw exception;
+		}
+		thread = new Thread(this::drain, "Benchmark Clients");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Returns one of the connections, for example so that a benchmark can
+	 * write to it.
+	 * 
+	 * @param index the index of the connection, in the order they were opened
+	 * @return the connection
+	 */
+	SocketChannel get(int index) {
+		return channels.get(index);
+	}
+	
+	/**
+	 * Reads and discards input from every connection until the selector is
+	 * closed.
+	 */
+	private void drain() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		try {
+			while(true) {
+				selector.select();
+				for(SelectionKey key : selector.selectedKeys()) {
+					SocketChannel channel = (SocketChannel) key.channel();
+					int read;
+					do {
+						buffer.clear();
+						read = channel.read(buffer);
+					} while(read > 0);
+					if(read < 0)
+						key.cancel();
+				}
+				selector.selectedKeys().clear();
+			}
+		}
+		catch(ClosedSelectorException | IOException exception) {
+			// The connections have been closed.
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		selector.close();
+		for(SocketChannel channel : channels)
+			channel.close();
+	}
+}
\ No newline at end of file
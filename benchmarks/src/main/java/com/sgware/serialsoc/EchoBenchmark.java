@@ -0,0 +1,155 @@
+package com.sgware.serialsoc;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip time of one line sent to a server which echoes it
+ * back, either over the loopback network or over a {@link MemoryServerSocket}.
+ * Each line passes through the whole path a socket's input and output take:
+ * it is read by the socket's listener thread, split into lines and received
+ * on the main thread, sent, and written by a writer thread. Comparing the two
+ * transports shows how much of the time is spent in the operating system's
+ * network stack rather than in the server.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoBenchmark {
+	
+	/**
+	 * The line which is sent, including its line break.
+	 */
+	private static final byte[] LINE = "The quick brown fox jumps over the lazy dog.\n".getBytes();
+	
+	/**
+	 * The transport: "tcp" for the loopback network or "memory" for a {@link
+	 * MemoryServerSocket}.
+	 */
+	@Param({"tcp", "memory"})
+	public String transport;
+	
+	/**
+	 * The server.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The client's connection to the server.
+	 */
+	private Socket client;
+	
+	/**
+	 * The client's input.
+	 */
+	private InputStream input;
+	
+	/**
+	 * The client's output.
+	 */
+	private OutputStream output;
+	
+	/**
+	 * The bytes of each reply.
+	 */
+	private final byte[] reply = new byte[LINE.length];
+	
+	/**
+	 * Starts the server and connects the client.
+	 * 
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		ServerSocket socket = transport.equals("memory") ? new MemoryServerSocket() : Benchmarks.bind();
+		server = new SerialServerSocket() {
+			
+			@Override
+			protected ServerSocket createServer() {
+				return socket;
+			}
+			
+			@Override
+			protected SerialSocket createSocket(Socket socket) throws Exception {
+				return new SerialSocket(this, socket) {
+					
+					@Override
+					protected void receive(ByteBuffer message) {
+						ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+						copy.put(message).flip();
+						send(copy);
+					}
+				};
+			}
+		};
+		thread = Benchmarks.start(server);
+		if(socket instanceof MemoryServerSocket)
+			client = ((MemoryServerSocket) socket).connect();
+		else {
+			client = new Socket("127.0.0.1", socket.getLocalPort());
+			client.setTcpNoDelay(true);
+		}
+		input = client.getInputStream();
+		output = client.getOutputStream();
+		Benchmarks.awaitSockets(server, 1);
+	}
+	
+	/**
+	 * Disconnects the client and stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		client.close();
+		Benchmarks.stop(server, thread);
+	}
+	
+	/**
+	 * Sends one line and waits for the reply.
+	 * 
+	 * @return the last byte of the reply
+	 * @throws Exception if the connection failed
+	 */
+	@Benchmark
+	public byte echo() throws Exception {
+		output.write(LINE);
+		output.flush();
+		for(int read = 0; read < reply.length;) {
+			int count = input.read(reply, read, reply.length - read);
+			if(count < 0)
+				throw new IllegalStateException("The server closed the connection.");
+			read += count;
+		}
+		return reply[reply.length - 1];
+	}
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.sgware.serialsoc;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many operations per second can be added to a running server's
+ * queue with {@link SerialServerSocket#execute(CheckedRunnable)} by 1, 4, and
+ * 16 threads at once, for both kinds of {@link EventQueue}. Each operation
+ * does nothing, so this is the cost of the queue itself: the producers
+ * competing to add operations and the main thread taking them in batches.
+ * <p>
+ * If producers were allowed to run ahead of the main thread, the queue would
+ * grow without limit and the benchmark would measure the garbage collector.
+ * Instead, every 1024 operations, a producer waits while more than 65536 are
+ * waiting, so the score is the rate the main thread sustains.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteBenchmark {
+	
+	/**
+	 * An operation which does nothing.
+	 */
+	private static final CheckedRunnable NOTHING = () -> {};
+	
+	/**
+	 * How often a producer checks the length of the queue.
+	 */
+	private static final int CHECK_EVERY = 1024;
+	
+	/**
+	 * The longest the queue may grow before producers wait.
+	 */
+	private static final int MAX_QUEUED = 65536;
+	
+	/**
+	 * The kind of queue: "ring" for a {@link RingEventQueue} or "linked" for
+	 * a {@link LinkedEventQueue}.
+	 */
+	@Param({"ring", "linked"})
+	public String queue;
+	
+	/**
+	 * The server.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The number of operations one producer has added.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+		
+		/**
+		 * The number of operations added.
+		 */
+		int count = 0;
+	}
+	
+	/**
+	 * Starts the server.
+	 * 
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new SerialServerSocket(queue.equals("ring") ? new RingEventQueue() : new LinkedEventQueue()) {
+			
+			@Override
+			protected ServerSocket createServer() throws Exception {
+				return Benchmarks.bind();
+			}
+		};
+		thread = Benchmarks.start(server);
+	}
+	
+	/**
+	 * Stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		Benchmarks.stop(server, thread);
+	}
+	
+	/**
+	 * Adds one operation to the queue, first waiting for the main thread to
+	 * catch up if it has fallen too far behind.
+	 * 
+	 * @param producer the producer's state
+	 */
+	private void execute(Producer producer) {
+		if(++producer.count % CHECK_EVERY == 0)
+			while(server.queue.size() > MAX_QUEUED)
+				Thread.onSpinWait();
+		server.execute(NOTHING);
+	}
+	
+	/**
+	 * One producer.
+	 * 
+	 * @param producer the producer's state
+	 */
+	@Benchmark
+	@Threads(1)
+	public void producers1(Producer producer) {
+		execute(producer);
+	}
+	
+	/**
+	 * Four producers.
+	 * 
+	 * @param producer the producer's state
+	 */
+	@Benchmark
+	@Threads(4)
+	public void producers4(Producer producer) {
+		execute(producer);
+	}
+	
+	/**
+	 * Sixteen producers.
+	 * 
+	 * @param producer the producer's state
+	 */
+	@Benchmark
+	@Threads(16)
+	public void producers16(Producer producer) {
+		execute(producer);
+	}
+}
\ No newline at end of file
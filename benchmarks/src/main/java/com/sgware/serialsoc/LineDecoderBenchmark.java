@@ -0,0 +1,238 @@
+package com.sgware.serialsoc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how quickly input is split into lines. Each operation splits 64
+ * kilobytes of random printable lines, so the score times 64 is the throughput
+ * in kilobytes per second.
+ * <p>
+ * {@link #decoder()} splits the input with a {@link LineDecoder}, the way
+ * sockets do now: 4 kilobytes at a time are copied into the decoder's buffer,
+ * as a read from the socket would, and each line is passed to {@link
+ * SerialSocket#receive(ByteBuffer)} as a view of that buffer. {@link
+ * #decoderStrings()} does the same but decodes each line into a string, which
+ * is what a socket which only overrides {@link SerialSocket#receive(String)}
+ * pays. {@link #reader()} is the baseline: a {@link BufferedReader} like the
+ * one {@link SerialServerSocket#createReader(Socket)} used to create, which
+ * decodes every line into a new string.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineDecoderBenchmark {
+	
+	/**
+	 * The number of bytes of input split by each operation.
+	 */
+	private static final int INPUT_SIZE = 64 * 1024;
+	
+	/**
+	 * The number of bytes copied into the decoder's buffer at a time.
+	 */
+	private static final int READ_SIZE = 4096;
+	
+	/**
+	 * The average length of a line, not including its line break.
+	 */
+	@Param({"16", "80", "1000"})
+	public int length;
+	
+	/**
+	 * The input.
+	 */
+	private byte[] input;
+	
+	/**
+	 * The server whose socket receives the lines.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * A client connected to the server.
+	 */
+	private Socket client;
+	
+	/**
+	 * The socket which receives the lines. It is a real socket connected to
+	 * the server, but the benchmark passes lines to it directly rather than
+	 * sending them over the network.
+	 */
+	private Receiver socket;
+	
+	/**
+	 * A socket which consumes the lines it receives so they are not optimized
+	 * away.
+	 */
+	static final class Receiver extends SerialSocket {
+		
+		/**
+		 * Whether lines should be decoded into strings.
+		 */
+		boolean strings = false;
+		
+		/**
+		 * Consumes each line.
+		 */
+		Blackhole blackhole;
+		
+		/**
+		 * Constructs a new receiver.
+		 * 
+		 * @param server the server
+		 * @param socket the network socket
+		 * @throws Exception if the socket could not be constructed
+		 */
+		Receiver(SerialServerSocket server, Socket socket) throws Exception {
+			super(server, socket);
+		}
+		
+		@Override
+		protected void receive(ByteBuffer message) throws Exception {
+			if(strings)
+				super.receive(message);
+			else
+				blackhole.consume(message.remaining());
+		}
+		
+		@Override
+		protected void receive(String message) {
+			blackhole.consume(message);
+		}
+	}
+	
+	/**
+	 * Creates the input and connects one client to a new server.
+	 * 
+	 * @param blackhole consumes each line
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup(Blackhole blackhole) throws Exception {
+		Random random = new Random(0);
+		input = new byte[INPUT_SIZE];
+		for(int i = 0; i < input.length; i++) {
+			if(random.nextInt(length + 1) == 0)
+				input[i] = '\n';
+			else
+				input[i] = (byte) (' ' + random.nextInt(95));
+		}
+		input[input.length - 1] = '\n';
+		server = new SerialServerSocket() {
+			
+			@Override
+			protected ServerSocket createServer() throws Exception {
+				return Benchmarks.bind();
+			}
+			
+			@Override
+			protected SerialSocket createSocket(Socket socket) throws Exception {
+				return new Receiver(this, socket);
+			}
+		};
+		thread = Benchmarks.start(server);
+		client = new Socket("127.0.0.1", Benchmarks.port(server));
+		Benchmarks.awaitSockets(server, 1);
+		socket = (Receiver) Benchmarks.call(server, () -> server.sockets.iterator().next());
+		socket.blackhole = blackhole;
+	}
+	
+	/**
+	 * Disconnects the client and stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		client.close();
+		Benchmarks.stop(server, thread);
+	}
+	
+	/**
+	 * Splits the input with a new decoder, the way a socket splits its input.
+	 * 
+	 * @return the decoder
+	 */
+	private LineDecoder decode() {
+		LineDecoder decoder = new LineDecoder();
+		for(int offset = 0; offset < input.length;) {
+			ByteBuffer buffer = decoder.buffer();
+			int read = Math.min(buffer.remaining(), Math.min(READ_SIZE, input.length - offset));
+			buffer.put(input, offset, read);
+			offset += read;
+			decoder.decode(socket, 0);
+		}
+		return decoder;
+	}
+	
+	/**
+	 * Splits the input with a {@link LineDecoder} without decoding the lines.
+	 * 
+	 * @return the decoder
+	 */
+	@Benchmark
+	public LineDecoder decoder() {
+		socket.strings = false;
+		return decode();
+	}
+	
+	/**
+	 * Splits the input with a {@link LineDecoder} and decodes each line into
+	 * a string.
+	 * 
+	 * @return the decoder
+	 */
+	@Benchmark
+	public LineDecoder decoderStrings() {
+		socket.strings = true;
+		return decode();
+	}
+	
+	/**
+	 * Splits the input with a {@link BufferedReader}.
+	 * 
+	 * @param blackhole consumes each line
+	 * @throws Exception never
+	 */
+	@Benchmark
+	public void reader(Blackhole blackhole) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+		String line;
+		while((line = reader.readLine()) != null)
+			blackhole.consume(line);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,156 @@
+package com.sgware.serialsoc;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of {@link SerialSocket#send(String)} and {@link
+ * SerialSocket#send(ByteBuffer)} to one connected client, which reads
+ * everything it is sent as fast as it can. Sending only adds the message to
+ * the socket's outgoing queue, so if the benchmark sent as fast as it could,
+ * the queue would grow without limit. Instead, it waits while more than 1
+ * megabyte is queued, so the score is the rate at which messages can be
+ * encoded, queued, and written to the network.
+ * <p>
+ * The server either uses a thread per socket and a pool of writer threads, or
+ * one {@link SerialServerSocket#getSelectorThreads() selector thread}.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+	
+	/**
+	 * The most bytes which may be queued before the benchmark waits.
+	 */
+	private static final long MAX_QUEUED = 1024 * 1024;
+	
+	/**
+	 * The number of selector threads the server uses, or 0 to use a thread
+	 * per socket.
+	 */
+	@Param({"0", "1"})
+	public int selectors;
+	
+	/**
+	 * The length of each message, not including its line break.
+	 */
+	@Param({"16", "1000"})
+	public int length;
+	
+	/**
+	 * The message.
+	 */
+	private String message;
+	
+	/**
+	 * The message, already encoded.
+	 */
+	private ByteBuffer encoded;
+	
+	/**
+	 * The server.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The client reading the messages.
+	 */
+	private Clients client;
+	
+	/**
+	 * The socket which sends the messages.
+	 */
+	private SerialSocket socket;
+	
+	/**
+	 * Creates the message and connects one client to a new server.
+	 * 
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		message = "x".repeat(length);
+		encoded = SerialSocket.encode(message);
+		server = new SerialServerSocket() {
+			
+			@Override
+			protected ServerSocket createServer() throws Exception {
+				return Benchmarks.bind();
+			}
+			
+			@Override
+			protected int getSelectorThreads() {
+				return selectors;
+			}
+		};
+		thread = Benchmarks.start(server);
+		client = new Clients(Benchmarks.port(server), 1);
+		Benchmarks.awaitSockets(server, 1);
+		socket = Benchmarks.call(server, () -> server.sockets.iterator().next());
+	}
+	
+	/**
+	 * Disconnects the client and stops the server.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		Benchmarks.stop(server, thread);
+		client.close();
+	}
+	
+	/**
+	 * Waits while too many bytes are queued.
+	 */
+	private void await() {
+		while(socket.getQueuedBytes() > MAX_QUEUED)
+			Thread.onSpinWait();
+	}
+	
+	/**
+	 * Encodes and sends the message.
+	 */
+	@Benchmark
+	public void sendString() {
+		await();
+		socket.send(message);
+	}
+	
+	/**
+	 * Sends the message which was already encoded.
+	 */
+	@Benchmark
+	public void sendBytes() {
+		await();
+		socket.send(encoded);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,225 @@
+package com.sgware.serialsoc;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a {@link UnixServerSocket} with the loopback TCP network for a
+ * client on the same host, using a server which echoes each line back. One
+ * benchmark measures the round trip time of a single line, and the other
+ * sends a burst of lines before reading their replies, which shows the cost
+ * per line when the server is kept busy. Both run with one thread per socket
+ * and with a selector thread.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnixBenchmark {
+	
+	/**
+	 * The line which is sent, including its line break.
+	 */
+	private static final byte[] LINE = "The quick brown fox jumps over the lazy dog.\n".getBytes();
+	
+	/**
+	 * The number of lines sent by {@link #burst()}.
+	 */
+	private static final int BURST = 64;
+	
+	/**
+	 * The transport: "tcp" for the loopback network or "unix" for a {@link
+	 * UnixServerSocket}.
+	 */
+	@Param({"tcp", "unix"})
+	public String transport;
+	
+	/**
+	 * The number of selector threads the server uses, or 0 for one thread per
+	 * socket.
+	 */
+	@Param({"0", "1"})
+	public int selectors;
+	
+	/**
+	 * The directory holding the Unix domain socket's file, or null.
+	 */
+	private Path directory;
+	
+	/**
+	 * The server.
+	 */
+	private SerialServerSocket server;
+	
+	/**
+	 * The thread running the server.
+	 */
+	private Thread thread;
+	
+	/**
+	 * The client's connection to the server.
+	 */
+	private Socket client;
+	
+	/**
+	 * The client's input.
+	 */
+	private InputStream input;
+	
+	/**
+	 * The client's output.
+	 */
+	private OutputStream output;
+	
+	/**
+	 * A burst of lines, all sent at once.
+	 */
+	private final byte[] burst = new byte[LINE.length * BURST];
+	
+	/**
+	 * The bytes of the replies.
+	 */
+	private final byte[] reply = new byte[LINE.length * BURST];
+	
+	/**
+	 * Starts the server and connects the client.
+	 * 
+	 * @throws Exception if the server could not be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		for(int i = 0; i < BURST; i++)
+			System.arraycopy(LINE, 0, burst, i * LINE.length, LINE.length);
+		ServerSocket socket;
+		if(transport.equals("unix")) {
+			directory = Files.createTempDirectory("serialsoc");
+			socket = new UnixServerSocket(directory.resolve("benchmark.sock"));
+		}
+		else
+			socket = Benchmarks.bind();
+		int threads = selectors;
+		server = new SerialServerSocket() {
+			
+			@Override
+			protected ServerSocket createServer() {
+				return socket;
+			}
+			
+			@Override
+			protected int getSelectorThreads() {
+				return threads;
+			}
+			
+			@Override
+			protected SerialSocket createSocket(Socket socket) throws Exception {
+				// Otherwise, replies to a burst wait for delayed
+				// acknowledgements.
+				if(!(socket instanceof UnixSocket))
+					socket.setTcpNoDelay(true);
+				return new SerialSocket(this, socket) {
+					
+					@Override
+					protected void receive(ByteBuffer message) {
+						ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+						copy.put(message).flip();
+						send(copy);
+					}
+				};
+			}
+		};
+		thread = Benchmarks.start(server);
+		if(socket instanceof UnixServerSocket)
+			client = UnixSocket.connect(((UnixServerSocket) socket).getPath());
+		else {
+			client = new Socket("127.0.0.1", socket.getLocalPort());
+			client.setTcpNoDelay(true);
+		}
+		input = client.getInputStream();
+		output = client.getOutputStream();
+		Benchmarks.awaitSockets(server, 1);
+	}
+	
+	/**
+	 * Disconnects the client, stops the server, and removes the Unix domain
+	 * socket's directory.
+	 * 
+	 * @throws Exception if the thread was interrupted
+	 */
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		client.close();
+		Benchmarks.stop(server, thread);
+		if(directory != null)
+			Files.deleteIfExists(directory);
+	}
+	
+	/**
+	 * Sends one line and waits for the reply.
+	 * 
+	 * @return the last byte of the reply
+	 * @throws Exception if the connection failed
+	 */
+	@Benchmark
+	public byte echo() throws Exception {
+		output.write(LINE);
+		output.flush();
+		return read(LINE.length);
+	}
+	
+	/**
+	 * Sends a burst of lines at once and waits for all of the replies.
+	 * 
+	 * @return the last byte of the replies
+	 * @throws Exception if the connection failed
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public byte burst() throws Exception {
+		output.write(burst);
+		output.flush();
+		return read(burst.length);
+	}
+	
+	/**
+	 * Reads replies until a given number of bytes have arrived.
+	 * 
+	 * @param length the number of bytes
+	 * @return the last byte read
+	 * @throws Exception if the connection failed
+	 */
+	private byte read(int length) throws Exception {
+		for(int read = 0; read < length;) {
+			int count = input.read(reply, read, length - read);
+			if(count < 0)
+				throw new IllegalStateException("The server closed the connection.");
+			read += count;
+		}
+		return reply[length - 1];
+	}
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An {@link Outbox outbox} for a socket which is read by a {@link SelectorLoop
+ * selector thread}. The queued output is written to the socket's non-blocking
+ * channel by the same selector thread. When the channel cannot accept any more
+ * bytes, the selector waits until it can rather than blocking.
+ * <p>
+ * If the socket uses TLS, output is encrypted by a {@link TlsChannel} before
+ * it is written, and it waits until the TLS handshake has finished.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class ChannelOutbox extends Outbox implements SelectorLoop.Handler {
+	
+	/**
+	 * The listener which reads from the same channel and which is told when
+	 * the channel needs to wait or should be closed.
+	 */
+	private final SerialSocket.ChannelListener listener;
+	
+	/**
+	 * The channel to write to.
+	 */
+	private final SocketChannel channel;
+	
+	/**
+	 * Encrypts the output before it is written, or null if the socket does not
+	 * use TLS.
+	 */
+	private final TlsChannel tls;
+	
+	/**
+	 * The selector loop which writes to the channel.
+	 */
+	private final SelectorLoop loop;
+	
+	/**
+	 * Buffers which have been taken from the queue but not yet fully written.
+	 * Several are written at once so that many small messages can be sent
+	 * together. This is only used on the selector thread.
+	 */
+	private final ByteBuffer[] batch = new ByteBuffer[16];
+	
+	/**
+	 * The number of buffers in {@link #batch}.
+	 */
+	private int count = 0;
+	
+	/**
+	 * Constructs a new channel outbox.
+	 * 
+	 * @param listener the listener which reads from the same channel
+	 * @param channel the channel to write to
+	 * @param tls encrypts the output, or null if the socket does not use TLS
+	 * @param loop the selector loop which writes to the channel
+	 */
+	ChannelOutbox(SerialSocket.ChannelListener listener, SocketChannel channel, TlsChannel tls, SelectorLoop loop) {
+		this.listener = listener;
+		this.channel = channel;
+		this.tls = tls;
+		this.loop = loop;
+	}
+	
+	@Override
+	void dispatch() {
+		loop.execute(this);
+	}
+	
+	/**
+	 * Closes the channel on the selector thread without waiting for it to be
+	 * ready for writing, which also discards the queued output.
+	 */
+	@Override
+	void abort() {
+		loop.execute(listener::disconnect);
+	}
+	
+	/**
+	 * Writes as much of the queued output as the channel will accept. This
+	 * method runs on the selector thread.
+	 */
+	@Override
+	public void run() {
+		try {
+			if(tls != null && !prepare())
+				return;
+			while(true) {
+				// Take as many buffers as possible, stopping at the close
+				// marker.
+				while(count < batch.length) {
+					ByteBuffer buffer = queue.peek();
+					if(buffer == null || buffer == CLOSE)
+						break;
+					batch[count++] = queue.poll();
+				}
+				if(count == 0) {
+					if(queue.peek() == CLOSE) {
+						// Tell a TLS client that the connection is closing.
+						if(tls != null) {
+							tls.closeOutbound();
+							if(!tls.flush()) {
+								listener.waitToWrite(true);
+								return;
+							}
+						}
+						listener.disconnect();
+						return;
+					}
+					listener.waitToWrite(false);
+					if(!idle())
+						return;
+					continue;
+				}
+				FlightEvents.Flush event = null;
+				if(FlightEvents.FLUSH.isEnabled()) {
+					event = new FlightEvents.Flush();
+					event.socket = listener.id();
+					event.begin();
+				}
+				long bytes = tls == null ? channel.write(batch, 0, count) : tls.write(batch, 0, count);
+				sent(bytes);
+				if(event != null) {
+					event.bytes = bytes;
+					event.commit();
+				}
+				// Remove the buffers which were fully written.
+				int written = 0;
+				while(written < count && !batch[written].hasRemaining())
+					written++;
+				System.arraycopy(batch, written, batch, 0, count - written);
+				for(int i = count - written; i < count; i++)
+					batch[i] = null;
+				count -= written;
+				// If the channel could not accept all the bytes, wait until it
+				// can accept more.
+				if(count > 0 || (tls != null && tls.isFlushing())) {
+					listener.waitToWrite(true);
+					return;
+				}
+			}
+		}
+		catch(IOException exception) {
+			// Ignore exceptions that happen because the socket is closed or
+			// closes during the write.
+			listener.disconnect();
+		}
+	}
+	
+	/**
+	 * Disconnects the socket if writing throws an unexpected exception.
+	 */
+	@Override
+	public void failed(RuntimeException exception) {
+		listener.failed(exception);
+	}
+	
+	/**
+	 * Writes any encrypted bytes which are waiting, which may let the TLS
+	 * handshake continue, and checks whether output can be written yet. While
+	 * the handshake is happening, output waits, and this outbox is not
+	 * scheduled again until more output is added or the handshake finishes;
+	 * but if the socket is closing, it is disconnected right away, since
+	 * there is no way to send its output.
+	 * 
+	 * @return true if the queued output can be written now
+	 * @throws IOException if writing fails
+	 */
+	private boolean prepare() throws IOException {
+		if(!tls.flush()) {
+			listener.waitToWrite(true);
+			return false;
+		}
+		else if(!tls.isHandshaking())
+			return true;
+		for(ByteBuffer buffer : queue) {
+			if(buffer == CLOSE) {
+				listener.disconnect();
+				return false;
+			}
+		}
+		listener.waitToWrite(false);
+		unschedule();
+		return false;
+	}
+	
+	/**
+	 * Discards any output which has been taken from the queue but not written.
+	 * This is called on the selector thread when the channel is closed.
+	 */
+	void clear() {
+		for(int i = 0; i < count; i++)
+			batch[i] = null;
+		count = 0;
+		closed();
+	}
+}
\ No newline at end of file
@@ -3,8 +3,6 @@ package com.sgware.serialsoc;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 
 class ChatServer extends SerialServerSocket {
 	
@@ -20,7 +18,7 @@ class ChatServer extends SerialServerSocket {
 	}
 	
 	public final int port;
-	final List<ChatUser> users = new ArrayList<>();
+	final SocketRegistry<ChatUser> users = new SocketRegistry<>();
 	
 	public ChatServer(int port) {
 		this.port = port;
@@ -57,9 +55,9 @@ class ChatServer extends SerialServerSocket {
 		System.out.println("The chat server has stopped.");
 	}
 	
-	public void broadcast(String message) throws Exception {
+	@Override
+	public void broadcast(String message) {
 		System.out.println(message);
-		for(ChatUser user : users)
-			user.send(message);
+		broadcast(users, message);
 	}
 }
\ No newline at end of file
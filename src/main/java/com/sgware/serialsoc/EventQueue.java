@@ -0,0 +1,113 @@
+package com.sgware.serialsoc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue of operations waiting to run on a {@link SerialServerSocket}'s main
+ * thread. Any number of threads can add operations to the queue at once, but
+ * only the main thread ever removes them.
+ * <p>
+ * Every operation submitted with {@link SerialServerSocket#execute(
+ * CheckedRunnable)} passes through this queue, so it is the one place where
+ * every thread in the server meets. A server can be given a different
+ * implementation when it is {@link
+ * SerialServerSocket#SerialServerSocket(EventQueue) constructed}:
+ * <ul>
+ * <li>{@link RingEventQueue} stores operations in a fixed-size array and never
+ * locks or creates objects while adding or removing them. This is the default.
+ * </li>
+ * <li>{@link LinkedEventQueue} stores operations in a {@link
+ * java.util.concurrent.LinkedBlockingQueue}.</li>
+ * </ul>
+ * <p>
+ * Operations added by one thread must be removed in the order that thread
+ * added them, and adding an operation must never block, because the main
+ * thread also adds operations to its own queue.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public interface EventQueue {
+	
+	/**
+	 * Adds an operation to the end of the queue. This method can be called
+	 * from any thread and does not block.
+	 * 
+	 * @param runnable the operation to add
+	 */
+	public void add(CheckedRunnable runnable);
+	
+	/**
+	 * Removes and returns the next operation, or returns null if the queue is
+	 * empty. This method is only called on the main thread.
+	 * 
+	 * @return the next operation, or null if there is none
+	 */
+	public CheckedRunnable poll();
+	
+	/**
+	 * Removes as many operations as are waiting, up to a limit, and stores
+	 * them in an array in order. This does not wait if the queue is empty.
+	 * This method is only called on the main thread.
+	 * <p>
+	 * By default, this method calls {@link #poll()} once per operation, but
+	 * an implementation can override it to remove a whole batch of operations
+	 * at a lower cost, for example by taking a lock only once.
+	 * 
+	 * @param batch the array to store the operations in
+	 * @param offset the index in the array where the first operation is
+	 * stored
+	 * @param length the maximum number of operations to remove
+	 * @return the number of operations removed, which may be 0
+	 */
+	public default int poll(CheckedRunnable[] batch, int offset, int length) {
+		int count = 0;
+		while(count < length) {
+			CheckedRunnable runnable = poll();
+			if(runnable == null)
+				break;
+			batch[offset + count++] = runnable;
+		}
+		return count;
+	}
+	
+	/**
+	 * Removes and returns the next operation, waiting until one is added if
+	 * the queue is empty. This method is only called on the main thread.
+	 * 
+	 * @return the next operation
+	 * @throws InterruptedException if the main thread is interrupted while
+	 * waiting
+	 */
+	public CheckedRunnable take() throws InterruptedException;
+	
+	/**
+	 * Removes and returns the next operation, waiting up to a given amount of
+	 * time for one to be added if the queue is empty. This method is only
+	 * called on the main thread.
+	 * 
+	 * @param timeout how long to wait
+	 * @param unit the unit of the timeout
+	 * @return the next operation, or null if none was added in time
+	 * @throws InterruptedException if the main thread is interrupted while
+	 * waiting
+	 */
+	public CheckedRunnable poll(long timeout, TimeUnit unit) throws InterruptedException;
+	
+	/**
+	 * Returns the number of operations waiting in the queue. Because other
+	 * threads may be adding operations at the same time, the number may be
+	 * out of date as soon as it is returned. This method is only called on
+	 * the main thread, and only if the server {@link
+	 * SerialServerSocket#getMaxQueuedEvents() limits} how long the queue can
+	 * grow before sockets stop reading.
+	 * <p>
+	 * By default, this method returns 0, so a queue which does not override it
+	 * never causes sockets to stop reading.
+	 * 
+	 * @return the number of waiting operations
+	 */
+	public default int size() {
+		return 0;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.sgware.serialsoc;
+
+/**
+ * The kinds of operations which run on a {@link SerialServerSocket}'s main
+ * thread. {@link ServerMetrics} keeps separate timings for each kind.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public enum EventType {
+	
+	/**
+	 * A socket was added to the server and {@link SerialSocket#onConnect()}
+	 * was called.
+	 */
+	CONNECT,
+	
+	/**
+	 * Input which a socket read was split into lines, and each line was
+	 * {@link SerialSocket#receive(String) received}.
+	 */
+	RECEIVE,
+	
+	/**
+	 * A socket was closed and {@link SerialSocket#onClose()} was called.
+	 */
+	CLOSE,
+	
+	/**
+	 * A socket was removed from the server and {@link
+	 * SerialSocket#onDisconnect()} was called.
+	 */
+	DISCONNECT,
+	
+	/**
+	 * Any other operation passed to {@link
+	 * SerialServerSocket#execute(CheckedRunnable)}, including the server's own
+	 * bookkeeping.
+	 */
+	TASK,
+	
+	/**
+	 * A {@link ScheduledTask scheduled task}. Its wait time is how late it ran
+	 * after it was due.
+	 */
+	TIMER;
+}
\ No newline at end of file
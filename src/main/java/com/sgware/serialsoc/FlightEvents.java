@@ -0,0 +1,230 @@
+package com.sgware.serialsoc;
+
+import java.net.Socket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Events which {@link SerialServerSocket}s and {@link SerialSocket}s report to
+ * <a href="https://docs.oracle.com/en/java/javase/17/jfapi/">JDK Flight
+ * Recorder</a>, so that a running server can be profiled without any other
+ * tools. Every event is in the "Serial Server Sockets" category and names the
+ * socket it belongs to by its {@link SerialSocket#getId() id}.
+ * <p>
+ * When no recording is running, or these events are disabled, creating and
+ * committing an event does nothing and the JIT compiler removes it. Events
+ * which happen for every line or every message are also checked with {@link
+ * EventType#isEnabled()} first, so that nothing else about them is measured
+ * unless they will be recorded.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class FlightEvents {
+	
+	/**
+	 * The category of all of these events.
+	 */
+	private static final String CATEGORY = "Serial Server Sockets";
+	
+	/**
+	 * A server socket accepted a new connection.
+	 */
+	@Name("com.sgware.serialsoc.Accept")
+	@Label("Connection Accepted")
+	@Category(CATEGORY)
+	@Description("A server socket accepted a new connection")
+	@StackTrace(false)
+	static final class Accept extends Event {
+		
+		@Label("Remote Address")
+		String address;
+	}
+	
+	/**
+	 * A socket's {@link SerialSocket#onConnect()} method ran.
+	 */
+	@Name("com.sgware.serialsoc.Connect")
+	@Label("Socket Connected")
+	@Category(CATEGORY)
+	@Description("A socket was added to its server and onConnect ran")
+	@StackTrace(false)
+	static final class Connect extends Event {
+		
+		@Label("Socket")
+		int socket;
+		
+		@Label("Remote Address")
+		String address;
+	}
+	
+	/**
+	 * A socket received one line of input.
+	 */
+	@Name("com.sgware.serialsoc.Receive")
+	@Label("Line Received")
+	@Category(CATEGORY)
+	@Description("A socket received one line of input on the main thread")
+	@StackTrace(false)
+	static final class Receive extends Event {
+		
+		@Label("Socket")
+		int socket;
+		
+		@Label("Line Length")
+		@DataAmount
+		int length;
+		
+		@Label("Queue Wait")
+		@Description("How long the input waited for the main thread after it was read")
+		@Timespan
+		long wait;
+	}
+	
+	/**
+	 * A socket sent a message.
+	 */
+	@Name("com.sgware.serialsoc.Send")
+	@Label("Message Sent")
+	@Category(CATEGORY)
+	@Description("A socket added a message to its outgoing queue")
+	@StackTrace(false)
+	static final class Send extends Event {
+		
+		@Label("Socket")
+		int socket;
+		
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+	
+	/**
+	 * A socket's queued output was written to the network.
+	 */
+	@Name("com.sgware.serialsoc.Flush")
+	@Label("Output Flushed")
+	@Category(CATEGORY)
+	@Description("Queued output was written to a socket's connection")
+	@StackTrace(false)
+	static final class Flush extends Event {
+		
+		@Label("Socket")
+		int socket;
+		
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+	
+	/**
+	 * A socket's {@link SerialSocket#onClose()} method ran.
+	 */
+	@Name("com.sgware.serialsoc.Close")
+	@Label("Socket Closed")
+	@Category(CATEGORY)
+	@Description("A socket was closed and onClose ran")
+	@StackTrace(false)
+	static final class Close extends Event {
+		
+		@Label("Socket")
+		int socket;
+	}
+	
+	/**
+	 * A socket's {@link SerialSocket#onDisconnect()} method ran.
+	 */
+	@Name("com.sgware.serialsoc.Disconnect")
+	@Label("Socket Disconnected")
+	@Category(CATEGORY)
+	@Description("A socket was removed from its server and onDisconnect ran")
+	@StackTrace(false)
+	static final class Disconnect extends Event {
+		
+		@Label("Socket")
+		int socket;
+	}
+	
+	/**
+	 * An uncaught exception was passed to {@link
+	 * SerialServerSocket#onException(Exception)} or {@link
+	 * SerialSocket#onException(Exception)}.
+	 */
+	@Name("com.sgware.serialsoc.Fail")
+	@Label("Uncaught Exception")
+	@Category(CATEGORY)
+	@Description("An uncaught exception was passed to onException")
+	static final class Fail extends Event {
+		
+		@Label("Socket")
+		@Description("The socket's id, or -1 if the exception belongs to the server")
+		int socket;
+		
+		@Label("Exception")
+		String exception;
+		
+		@Label("Message")
+		String message;
+	}
+	
+	/**
+	 * The type of {@link Receive} events.
+	 */
+	static final EventType RECEIVE = EventType.getEventType(Receive.class);
+	
+	/**
+	 * The type of {@link Send} events.
+	 */
+	static final EventType SEND = EventType.getEventType(Send.class);
+	
+	/**
+	 * The type of {@link Flush} events.
+	 */
+	static final EventType FLUSH = EventType.getEventType(Flush.class);
+	
+	/**
+	 * This class only has static members.
+	 */
+	private FlightEvents() {
+		// This class cannot be constructed.
+	}
+	
+	/**
+	 * Reports that a server socket accepted a new connection. This is called
+	 * on the thread which accepted it.
+	 * 
+	 * @param socket the accepted socket
+	 */
+	static void accepted(Socket socket) {
+		Accept event = new Accept();
+		if(event.shouldCommit()) {
+			event.address = String.valueOf(socket.getRemoteSocketAddress());
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Reports an uncaught exception.
+	 * 
+	 * @param socket the id of the socket the exception belongs to, or -1 if
+	 * it belongs to the server
+	 * @param exception the exception
+	 */
+	static void failed(int socket, Exception exception) {
+		Fail event = new Fail();
+		if(event.shouldCommit()) {
+			event.socket = socket;
+			event.exception = exception.getClass().getName();
+			event.message = exception.getMessage();
+			event.commit();
+		}
+	}
+}
\ No newline at end of file
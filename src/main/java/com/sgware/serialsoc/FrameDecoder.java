@@ -0,0 +1,204 @@
+package com.sgware.serialsoc;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a socket's input into {@link Framing#lengthPrefixed(int)
+ * length-prefixed frames}, each made of a 4 byte big-endian length followed by
+ * that many bytes, and sends output the same way.
+ * <p>
+ * Like a {@link LineDecoder}, this reads input into one buffer which is reused
+ * for the life of the socket and passes each frame to {@link
+ * SerialSocket#message(ByteBuffer)} as a view of that buffer. The buffer only
+ * grows when a single frame is larger than it, and then only to the size of
+ * that frame, whose length has already been checked against the maximum.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class FrameDecoder extends Framing {
+	
+	/**
+	 * The number of bytes in the length which comes before each frame.
+	 */
+	static final int HEADER = Integer.BYTES;
+	
+	/**
+	 * The initial size of the buffer, in bytes, unless the largest frame is
+	 * smaller.
+	 */
+	private static final int INITIAL_SIZE = 4096;
+	
+	/**
+	 * The largest number of bytes a frame may hold, not including its length.
+	 */
+	private final int max;
+	
+	/**
+	 * Bytes which have been read but not yet split into frames. Bytes are read
+	 * into the buffer starting at its position, so the bytes waiting to be
+	 * split are those from the start of the buffer up to its position.
+	 */
+	private ByteBuffer buffer;
+	
+	/**
+	 * A view of {@link #buffer} which is passed to the socket for each frame.
+	 */
+	private ByteBuffer frame;
+	
+	/**
+	 * The index in the buffer of the first byte which has not yet been split
+	 * into frames, if the last call to {@link #decode(SerialSocket, long)}
+	 * stopped before the end of the input.
+	 */
+	private int next = 0;
+	
+	/**
+	 * How many more bytes of input the socket can receive before it must let
+	 * other sockets have a turn.
+	 */
+	private long deficit = 0;
+	
+	/**
+	 * The exception which stops the socket from reading once a frame which is
+	 * too long has arrived, or null if none has. It is set on the main thread
+	 * and thrown on the reading thread the next time it asks for the {@link
+	 * #buffer() buffer}.
+	 */
+	private SocketException failure = null;
+	
+	/**
+	 * Constructs a new frame decoder.
+	 * 
+	 * @param max the largest number of bytes a frame may hold
+	 */
+	FrameDecoder(int max) {
+		this.max = max;
+		this.buffer = ByteBuffer.allocate((int) Math.min(INITIAL_SIZE, HEADER + (long) max));
+		this.frame = buffer.duplicate();
+	}
+	
+	@Override
+	ByteBuffer buffer() throws SocketException {
+		if(failure != null)
+			throw failure;
+		if(!buffer.hasRemaining()) {
+			// The buffer is full of one incomplete frame. Its length has
+			// already been read and checked, so make room for exactly that
+			// frame.
+			ByteBuffer bigger = ByteBuffer.allocate(HEADER + buffer.getInt(0));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+			frame = buffer.duplicate();
+		}
+		return buffer;
+	}
+	
+	@Override
+	boolean decode(SerialSocket socket, long quantum) {
+		if(failure != null)
+			return true;
+		int end = buffer.position();
+		int start = next;
+		if(quantum > 0)
+			deficit += quantum;
+		while(end - start >= HEADER) {
+			int length = buffer.getInt(start);
+			if(length < 0 || length > max) {
+				// Do not read any more from a client which breaks the limit.
+				failure = new SocketException("A frame of " + Integer.toUnsignedLong(length) + " bytes is longer than the limit of " + max + " bytes.");
+				buffer.clear();
+				next = 0;
+				return true;
+			}
+			if(end - start - HEADER < length)
+				break;
+			deliver(socket, start + HEADER, start + HEADER + length);
+			start += HEADER + length;
+			if(quantum > 0) {
+				deficit -= HEADER + length;
+				if(deficit <= 0 && start < end) {
+					// Let other sockets have a turn before the rest.
+					next = start;
+					return false;
+				}
+			}
+		}
+		// Keep the incomplete frame.
+		buffer.limit(end);
+		buffer.position(start);
+		buffer.compact();
+		next = 0;
+		// A socket which has received all of its input does not save its
+		// share.
+		if(deficit > 0)
+			deficit = 0;
+		return true;
+	}
+	
+	/**
+	 * Receives any complete frames which are left. A frame which was cut off
+	 * by the end of the input is discarded, since it is not a whole message.
+	 */
+	@Override
+	void finish(SerialSocket socket) {
+		decode(socket, 0);
+		buffer.clear();
+	}
+	
+	@Override
+	void send(SerialSocket socket, ByteBuffer message) {
+		int length = message.remaining();
+		if(length > max)
+			throw new IllegalArgumentException("A frame of " + length + " bytes is longer than the limit of " + max + " bytes.");
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(0, length);
+		socket.write(header, message.duplicate());
+	}
+	
+	/**
+	 * Sends the encoded string as one frame, without the line break which
+	 * {@link SerialSocket#encode(String)} ensures it ends with.
+	 */
+	@Override
+	void sendText(SerialSocket socket, ByteBuffer text) {
+		send(socket, strip(text));
+	}
+	
+	@Override
+	boolean fits(ByteBuffer text) {
+		return strip(text).remaining() <= max;
+	}
+	
+	/**
+	 * Returns a view of an encoded string without the line break at its end.
+	 * 
+	 * @param text the encoded string
+	 * @return a view of the string without its line break
+	 */
+	private static ByteBuffer strip(ByteBuffer text) {
+		ByteBuffer message = text.duplicate();
+		int end = message.limit();
+		if(end > message.position() && message.get(end - 1) == '\n')
+			end--;
+		if(end > message.position() && message.get(end - 1) == '\r')
+			end--;
+		message.limit(end);
+		return message;
+	}
+	
+	/**
+	 * Passes part of the buffer to the socket as a frame.
+	 * 
+	 * @param socket the socket whose input this is
+	 * @param start the index of the first byte of the frame
+	 * @param end the index just after the last byte of the frame
+	 */
+	private void deliver(SerialSocket socket, int start, int end) {
+		frame.limit(end);
+		frame.position(start);
+		socket.message(frame);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How a {@link SerialSocket}'s input is divided into messages and how the
+ * boundaries of its output messages are marked. Each socket has its own
+ * framing, which is {@link SerialServerSocket#createFraming(java.net.Socket)
+ * created by the server} when the socket is created. Whatever the framing,
+ * each message is passed to {@link SerialSocket#receive(ByteBuffer)} on the
+ * main thread, in order, and the socket's other events happen the same way.
+ * <p>
+ * Two framings are available:
+ * <ul>
+ * <li>{@link #lines() Lines}, the default, where each message is a line of
+ * text ended by a line break, optionally with a {@link #lines(int) maximum
+ * length}.</li>
+ * <li>{@link #lengthPrefixed(int) Length-prefixed frames}, where each message
+ * is any sequence of bytes, preceded by its length. This allows binary
+ * messages to be sent without encoding them as text.</li>
+ * </ul>
+ * <p>
+ * Input is read directly into the framing's buffer, which is reused for the
+ * life of the socket, and each message is passed to the socket as a view of
+ * that same buffer, so no objects are created for each message. The thread
+ * reading input and the main thread take turns using the buffer: the reading
+ * thread fills it, then the main thread {@link #decode(SerialSocket, long)
+ * decodes} it, and only after that does the reading thread read more.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public abstract class Framing {
+	
+	/**
+	 * Framings can only be created by this package.
+	 */
+	Framing() {
+		// Only the framings in this package can be used.
+	}
+	
+	/**
+	 * Returns a new framing where each message is one line of text. A line is
+	 * terminated by a line feed, a carriage return, or a carriage return
+	 * followed immediately by a line feed, the same way {@link
+	 * java.io.BufferedReader#readLine()} would read it, and the terminator is
+	 * not part of the message. A line break is added to the end of each
+	 * message which is sent unless it already ends in one. If the input ends
+	 * in the middle of a line, that last line is still received.
+	 * <p>
+	 * Lines have no maximum length other than the largest buffer that can be
+	 * allocated, so a client which never ends its line can make the server
+	 * run out of memory. Servers which accept connections from untrusted
+	 * clients should use {@link #lines(int)} instead.
+	 * 
+	 * @return a new line framing for one socket
+	 */
+	public static Framing lines() {
+		return new LineDecoder(Integer.MAX_VALUE - 1);
+	}
+	
+	/**
+	 * Returns a new framing where each message is one line of text, like
+	 * {@link #lines()}, but where lines may be no longer than a given number
+	 * of bytes, not including their terminators.
+	 * <p>
+	 * Input is only buffered up to the maximum length, so a client cannot make
+	 * the server allocate more than that for one line. If a client sends a
+	 * longer line, the socket stops reading and closes, just as if the client
+	 * had disconnected, and the line is not received. Lines which are sent are
+	 * not limited.
+	 * 
+	 * @param maxLength the largest number of bytes a line may hold, not
+	 * including its terminator
+	 * @return a new line framing for one socket
+	 * @throws IllegalArgumentException if the maximum length is negative or
+	 * too large for a buffer
+	 */
+	public static Framing lines(int maxLength) {
+		if(maxLength < 0 || maxLength > Integer.MAX_VALUE - 1)
+			throw new IllegalArgumentException("The maximum line length must be between 0 and " + (Integer.MAX_VALUE - 1) + ".");
+		return new LineDecoder(maxLength);
+	}
+	
+	/**
+	 * Returns a new framing where each message is a frame made of a 4 byte
+	 * length, in big-endian order, followed by that many bytes. The bytes can
+	 * be anything, including line breaks, so binary messages can be sent as
+	 * they are.
+	 * <p>
+	 * The length of a frame is checked as soon as its length has been read,
+	 * before any room is made for the rest of the frame, so a client cannot
+	 * make the server allocate more than the maximum length for one message.
+	 * If a client sends a longer frame, the socket stops reading and closes,
+	 * just as if the client had disconnected. If the input ends in the middle
+	 * of a frame, that frame is discarded.
+	 * <p>
+	 * {@link SerialSocket#send(java.nio.ByteBuffer) Sending} bytes sends them
+	 * as one frame. {@link SerialSocket#send(String) Sending} a string sends
+	 * the encoded string as one frame, without a line break at the end, and
+	 * {@link SerialSocket#receive(String) received} strings are whole frames
+	 * which have been decoded, so text protocols can use frames too. Sending
+	 * a message longer than the maximum length throws an {@link
+	 * IllegalArgumentException}.
+	 * 
+	 * @param maxLength the largest number of bytes a frame may hold, not
+	 * including its length
+	 * @return a new length-prefixed framing for one socket
+	 * @throws IllegalArgumentException if the maximum length is negative or
+	 * too large for a buffer
+	 */
+	public static Framing lengthPrefixed(int maxLength) {
+		if(maxLength < 0 || maxLength > Integer.MAX_VALUE - FrameDecoder.HEADER)
+			throw new IllegalArgumentException("The maximum frame length must be between 0 and " + (Integer.MAX_VALUE - FrameDecoder.HEADER) + ".");
+		return new FrameDecoder(maxLength);
+	}
+	
+	/**
+	 * Returns the buffer which input should be read into, making sure it has
+	 * room for more bytes. This method is called on the thread which reads
+	 * input.
+	 * 
+	 * @return the buffer, with its position at the end of the bytes already
+	 * read and its limit at its capacity
+	 * @throws IOException if the input broke the framing's rules, in which
+	 * case the socket should stop reading
+	 */
+	abstract ByteBuffer buffer() throws IOException;
+	
+	/**
+	 * Passes each complete message which has been read to {@link
+	 * SerialSocket#message(ByteBuffer)}, then moves the start of any
+	 * incomplete message to the beginning of the buffer. This method is
+	 * called on the main thread.
+	 * <p>
+	 * If a quantum is given, this works like deficit round-robin scheduling:
+	 * each call adds the quantum to the number of bytes the socket may
+	 * receive, and once the messages received have used that up, decoding
+	 * stops and false is returned. The next call continues from the same
+	 * place. A message is never split, so one long message can use more than
+	 * a quantum, in which case the difference is taken from the next turn.
+	 * 
+	 * @param socket the socket whose input this is
+	 * @param quantum the number of bytes the socket may receive in this turn,
+	 * or 0 to receive every complete message
+	 * @return true if every complete message was received, or false if this
+	 * method must be called again before more input is read
+	 */
+	abstract boolean decode(SerialSocket socket, long quantum);
+	
+	/**
+	 * Called on the main thread when the input has ended, to receive any
+	 * messages which have not been received yet.
+	 * 
+	 * @param socket the socket whose input this is
+	 */
+	abstract void finish(SerialSocket socket);
+	
+	/**
+	 * Sends bytes as one message.
+	 * 
+	 * @param socket the socket to send the message to
+	 * @param message the bytes of the message, which are shared rather than
+	 * copied and whose position is not changed
+	 */
+	abstract void send(SerialSocket socket, ByteBuffer message);
+	
+	/**
+	 * Sends a string which was encoded by {@link SerialSocket#encode(String)},
+	 * and so ends in a line break, as one message.
+	 * 
+	 * @param socket the socket to send the message to
+	 * @param text the encoded string, which is shared rather than copied and
+	 * whose position is not changed
+	 */
+	abstract void sendText(SerialSocket socket, ByteBuffer text);
+	
+	/**
+	 * Returns whether a string which was encoded by {@link
+	 * SerialSocket#encode(String)} can be {@link #sendText(SerialSocket,
+	 * ByteBuffer) sent} as one message, or whether it is too long for this
+	 * framing.
+	 * 
+	 * @param text the encoded string, whose position is not changed
+	 * @return true if the string can be sent
+	 */
+	abstract boolean fits(ByteBuffer text);
+}
\ No newline at end of file
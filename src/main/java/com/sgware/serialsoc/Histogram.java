@@ -0,0 +1,217 @@
+package com.sgware.serialsoc;
+
+/**
+ * Counts how often values, such as latencies in nanoseconds, fall into each of
+ * a fixed set of ranges so that their percentiles can be estimated later.
+ * <p>
+ * Like an HDR histogram, the ranges grow with the values: every value below
+ * 64 has its own range, and above that, each power of two is divided into 32
+ * equal ranges. This means any value from 0 to {@link Long#MAX_VALUE} can be
+ * recorded, and every percentile is reported to within about 3% of the true
+ * value, while the histogram only ever uses one fixed array of counts.
+ * Recording a value only takes a few arithmetic operations and never creates
+ * any objects.
+ * <p>
+ * A histogram is not synchronized. The histograms in {@link ServerMetrics}
+ * are only used on the server's main thread; to look at one on another
+ * thread, {@link #add(Histogram) copy} it into a new histogram on the main
+ * thread first.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class Histogram {
+	
+	/**
+	 * The number of bits of each value which are used to choose its range
+	 * within its power of two.
+	 */
+	private static final int SUB_BITS = 5;
+	
+	/**
+	 * The number of ranges each power of two is divided into.
+	 */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	
+	/**
+	 * The smallest value which does not have a range of its own.
+	 */
+	private static final int LINEAR = 2 * SUB_COUNT;
+	
+	/**
+	 * The number of ranges needed to hold every positive long.
+	 */
+	private static final int SIZE = index(Long.MAX_VALUE) + 1;
+	
+	/**
+	 * The number of values recorded in each range.
+	 */
+	private final long[] counts = new long[SIZE];
+	
+	/**
+	 * The number of values recorded.
+	 */
+	private long count = 0;
+	
+	/**
+	 * The sum of the values recorded.
+	 */
+	private long sum = 0;
+	
+	/**
+	 * The smallest value recorded.
+	 */
+	private long min = Long.MAX_VALUE;
+	
+	/**
+	 * The largest value recorded.
+	 */
+	private long max = 0;
+	
+	/**
+	 * Constructs a new, empty histogram.
+	 */
+	public Histogram() {
+		// The histogram starts empty.
+	}
+	
+	/**
+	 * Records one value. Negative values are recorded as 0.
+	 * 
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if(value < min)
+			min = value;
+		if(value > max)
+			max = value;
+	}
+	
+	/**
+	 * Adds all of the values recorded by another histogram to this one. This
+	 * can be used to combine the histograms of several servers, or to copy a
+	 * histogram into a new one so it can be read on another thread.
+	 * 
+	 * @param other the histogram whose values should be added
+	 */
+	public void add(Histogram other) {
+		for(int i = 0; i < SIZE; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+	
+	/**
+	 * Removes all recorded values.
+	 */
+	public void reset() {
+		for(int i = 0; i < SIZE; i++)
+			counts[i] = 0;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+	
+	/**
+	 * Returns the number of values recorded.
+	 * 
+	 * @return the number of values
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * Returns the smallest value recorded, or 0 if none have been.
+	 * 
+	 * @return the smallest value
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+	
+	/**
+	 * Returns the largest value recorded, or 0 if none have been.
+	 * 
+	 * @return the largest value
+	 */
+	public long getMax() {
+		return max;
+	}
+	
+	/**
+	 * Returns the average of the values recorded, or 0 if none have been.
+	 * 
+	 * @return the mean
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+	
+	/**
+	 * Returns a value which the given percentage of recorded values are less
+	 * than or equal to, to within the histogram's precision. For example, the
+	 * 99th percentile is a value which 99% of the recorded values do not
+	 * exceed.
+	 * 
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the value at that percentile, or 0 if no values have been
+	 * recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(count == 0)
+			return 0;
+		long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+		if(rank < 1)
+			rank = 1;
+		long seen = 0;
+		for(int i = 0; i < SIZE; i++) {
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.max(min, Math.min(max, highest(i)));
+		}
+		return max;
+	}
+	
+	@Override
+	public String toString() {
+		return "[count=" + count + "; mean=" + Math.round(getMean()) + "; p50=" + getValueAtPercentile(50) + "; p99=" + getValueAtPercentile(99) + "; p99.9=" + getValueAtPercentile(99.9) + "; max=" + max + "]";
+	}
+	
+	/**
+	 * Returns the index of the range a value falls into.
+	 * 
+	 * @param value a value which is not negative
+	 * @return the index of its range
+	 */
+	private static int index(long value) {
+		if(value < LINEAR)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		int sub = (int) (value >>> shift) - SUB_COUNT;
+		return LINEAR + (shift - 1) * SUB_COUNT + sub;
+	}
+	
+	/**
+	 * Returns the largest value which falls into a range.
+	 * 
+	 * @param index the index of the range
+	 * @return the largest value in that range
+	 */
+	private static long highest(int index) {
+		if(index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_COUNT + 1;
+		long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,221 @@
+package com.sgware.serialsoc;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a socket's input into {@link Framing#lines() lines} by scanning its
+ * bytes for line breaks, the same way {@link java.io.BufferedReader#readLine()}
+ * would. A line is terminated by a line feed, a carriage return, or a carriage
+ * return followed immediately by a line feed, and the terminator is not
+ * included in the line. Output is sent with a line break at the end.
+ * <p>
+ * Input is read directly into this decoder's {@link #buffer() buffer}, which is
+ * reused for the life of the socket. Each complete line is passed to {@link
+ * SerialSocket#message(ByteBuffer)} as a view of that same buffer, so no
+ * objects are created for each line. The buffer only grows if a single line is
+ * longer than it, and never beyond the {@link Framing#lines(int) maximum line
+ * length}, so a client which never ends its line cannot make the server run
+ * out of memory.
+ * <p>
+ * The thread reading input and the main thread take turns using the buffer:
+ * the reading thread fills it, then the main thread {@link
+ * #decode(SerialSocket, long) decodes} it, and only after that does the
+ * reading thread read more.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class LineDecoder extends Framing {
+	
+	/**
+	 * An encoded new line character, which is appended to messages that do
+	 * not end in one.
+	 */
+	private static final ByteBuffer NEW_LINE = SerialSocket.encode("\n");
+	
+	/**
+	 * The initial size of the buffer, in bytes, unless the longest line is
+	 * shorter.
+	 */
+	private static final int INITIAL_SIZE = 4096;
+	
+	/**
+	 * The largest number of bytes a line may hold, not including its
+	 * terminator.
+	 */
+	private final int max;
+	
+	/**
+	 * Bytes which have been read but not yet split into lines. Bytes are read
+	 * into the buffer starting at its position, so the bytes waiting to be
+	 * split are those from the start of the buffer up to its position.
+	 */
+	private ByteBuffer buffer;
+	
+	/**
+	 * A view of {@link #buffer} which is passed to the socket for each line.
+	 */
+	private ByteBuffer line;
+	
+	/**
+	 * Whether the last byte decoded was a carriage return, in which case an
+	 * immediately following line feed is part of the same terminator.
+	 */
+	private boolean skipLF = false;
+	
+	/**
+	 * The index in the buffer of the first byte which has not yet been split
+	 * into lines, if the last call to {@link #decode(SerialSocket, long)}
+	 * stopped before the end of the input.
+	 */
+	private int next = 0;
+	
+	/**
+	 * How many more bytes of input the socket can receive before it must let
+	 * other sockets have a turn. This can be negative if the last line was
+	 * longer than the socket's share, in which case the socket's next turn is
+	 * shorter.
+	 */
+	private long deficit = 0;
+	
+	/**
+	 * Constructs a new line decoder.
+	 * 
+	 * @param max the largest number of bytes a line may hold
+	 */
+	LineDecoder(int max) {
+		this.max = max;
+		this.buffer = ByteBuffer.allocate((int) Math.min(INITIAL_SIZE, max + 1L));
+		this.line = buffer.duplicate();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The buffer never holds more than the longest line and the first byte of
+	 * its terminator, so if it is full of one incomplete line which already
+	 * has that many bytes, the line is too long and a {@link SocketException}
+	 * is thrown.
+	 */
+	@Override
+	ByteBuffer buffer() throws SocketException {
+		if(!buffer.hasRemaining()) {
+			// The buffer is full of one incomplete line, so make it bigger,
+			// unless the line is already longer than the limit.
+			if(buffer.capacity() > max)
+				throw new SocketException("A line of more than " + max + " bytes is longer than the limit.");
+			ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(buffer.capacity() * 2L, max + 1L));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+			line = buffer.duplicate();
+		}
+		return buffer;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The bytes of each line, including its terminator, count against the
+	 * quantum.
+	 */
+	@Override
+	boolean decode(SerialSocket socket, long quantum) {
+		int end = buffer.position();
+		int start = next;
+		if(quantum > 0)
+			deficit += quantum;
+		for(int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			if(skipLF) {
+				skipLF = false;
+				if(b == '\n') {
+					start = i + 1;
+					continue;
+				}
+			}
+			if(b == '\n' || b == '\r') {
+				skipLF = b == '\r';
+				deliver(socket, start, i);
+				if(quantum > 0) {
+					deficit -= i + 1 - start;
+					if(deficit <= 0 && i + 1 < end) {
+						// Let other sockets have a turn before the rest.
+						next = i + 1;
+						return false;
+					}
+				}
+				start = i + 1;
+			}
+		}
+		// Keep the incomplete line.
+		buffer.limit(end);
+		buffer.position(start);
+		buffer.compact();
+		next = 0;
+		// Like a queue in deficit round-robin which has become empty, a socket
+		// which has received all of its input does not save its share.
+		if(deficit > 0)
+			deficit = 0;
+		return true;
+	}
+	
+	/**
+	 * Receives any complete lines which are left. If a partial line was being
+	 * read, it is passed to the socket, just as {@link
+	 * java.io.BufferedReader#readLine()} returns a final line with no
+	 * terminator.
+	 */
+	@Override
+	void finish(SerialSocket socket) {
+		decode(socket, 0);
+		if(buffer.position() > 0) {
+			deliver(socket, 0, buffer.position());
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Sends the bytes, and then a line break if the last of them is not
+	 * already a new line character.
+	 */
+	@Override
+	void send(SerialSocket socket, ByteBuffer message) {
+		int end = message.limit() - 1;
+		if(end >= message.position() && (message.get(end) == '\n' || message.get(end) == '\r'))
+			socket.write(message.duplicate(), null);
+		else
+			socket.write(message.duplicate(), NEW_LINE.duplicate());
+	}
+	
+	/**
+	 * Sends the encoded string as it is, since it already ends in a line
+	 * break.
+	 */
+	@Override
+	void sendText(SerialSocket socket, ByteBuffer text) {
+		socket.write(text.duplicate(), null);
+	}
+	
+	/**
+	 * Lines which are sent are not limited, so every string fits.
+	 */
+	@Override
+	boolean fits(ByteBuffer text) {
+		return true;
+	}
+	
+	/**
+	 * Passes part of the buffer to the socket as a line.
+	 * 
+	 * @param socket the socket whose input this is
+	 * @param start the index of the first byte of the line
+	 * @param end the index just after the last byte of the line
+	 */
+	private void deliver(SerialSocket socket, int start, int end) {
+		line.limit(end);
+		line.position(start);
+		socket.message(line);
+	}
+}
\ No newline at end of file
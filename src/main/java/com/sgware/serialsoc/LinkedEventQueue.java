@@ -0,0 +1,74 @@
+package com.sgware.serialsoc;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link EventQueue event queue} backed by a {@link LinkedBlockingQueue}.
+ * Adding an operation takes a lock and creates a new linked node, but the
+ * queue has no fixed size and waiting for an operation does not use any
+ * processor time.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class LinkedEventQueue implements EventQueue {
+	
+	/**
+	 * The queue which stores the operations.
+	 */
+	private final LinkedBlockingQueue<CheckedRunnable> queue = new LinkedBlockingQueue<>();
+	
+	/**
+	 * Holds a batch of operations while they are moved from the queue to an
+	 * array. It is only used on the main thread.
+	 */
+	private final ArrayList<CheckedRunnable> drained = new ArrayList<>();
+	
+	/**
+	 * Constructs a new, empty linked event queue.
+	 */
+	public LinkedEventQueue() {
+		// Nothing to initialize.
+	}
+	
+	@Override
+	public void add(CheckedRunnable runnable) {
+		queue.add(runnable);
+	}
+	
+	@Override
+	public CheckedRunnable poll() {
+		return queue.poll();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The queue's lock is only taken once for the whole batch.
+	 */
+	@Override
+	public int poll(CheckedRunnable[] batch, int offset, int length) {
+		int count = queue.drainTo(drained, length);
+		for(int i = 0; i < count; i++)
+			batch[offset + i] = drained.get(i);
+		drained.clear();
+		return count;
+	}
+	
+	@Override
+	public CheckedRunnable take() throws InterruptedException {
+		return queue.take();
+	}
+	
+	@Override
+	public CheckedRunnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+	
+	@Override
+	public int size() {
+		return queue.size();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,460 @@
+package com.sgware.serialsoc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Opens many connections to a server which echoes every line it receives,
+ * sends messages on all of them for a while, and reports the throughput and
+ * round-trip latency. Unless a port is given, a serial server socket which
+ * echoes its input is started in the same process.
+ * <p>
+ * The clients do not use a thread per connection. Connections are divided
+ * among a few client threads, each of which uses a {@link Selector} to write
+ * and read all of its connections without blocking, so one process can keep
+ * thousands of connections busy.
+ * <p>
+ * Every message starts with the time it was meant to be sent, so the latency
+ * of each reply can be measured when it is read. In open loop mode, messages
+ * are sent at a fixed rate whether or not replies have arrived, which is how
+ * a server with many independent clients is loaded. If the client falls
+ * behind, the messages it sends late are still stamped with the time they
+ * were due, so a stalled server cannot hide its stalls by also stalling the
+ * client. In closed loop mode, each connection sends its next message as soon
+ * as it reads the reply to the last one, which measures the most the server
+ * can handle with that many connections.
+ * <p>
+ * The arguments are optional and have the form <code>name=value</code>:
+ * <ul>
+ * <li><code>connections</code>: the number of connections (default 100)</li>
+ * <li><code>mode</code>: <code>open</code> or <code>closed</code> (default
+ * open)</li>
+ * <li><code>rate</code>: in open loop mode, the total number of messages to
+ * send per second on all connections (default 10000)</li>
+ * <li><code>size</code>: the length of each message in bytes, including the
+ * line break (default 64)</li>
+ * <li><code>warmup</code>: the number of seconds to send messages before
+ * measuring (default 2)</li>
+ * <li><code>duration</code>: the number of seconds to measure (default
+ * 10)</li>
+ * <li><code>threads</code>: the number of client threads (default 1)</li>
+ * <li><code>host</code> and <code>port</code>: the server to connect to; if no
+ * port is given, a server is started in this process (default host
+ * 127.0.0.1)</li>
+ * <li><code>selectors</code>: the number of {@link
+ * SerialServerSocket#getSelectorThreads() selector threads} the server in this
+ * process uses (default 0)</li>
+ * </ul>
+ * 
+ * @author Stephen G. Ware
+ */
+class LoadGenerator {
+	
+	private static final long SECOND = 1_000_000_000L;
+	private static final long MILLISECOND = 1_000_000L;
+	
+	/**
+	 * How long to wait for replies to messages sent before the end of the
+	 * test.
+	 */
+	private static final long DRAIN = SECOND;
+	
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for(String arg : args) {
+			int equals = arg.indexOf('=');
+			if(equals < 0)
+				throw new IllegalArgumentException("Arguments must have the form name=value: " + arg);
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		LoadGenerator generator = new LoadGenerator(options);
+		EchoServer server = null;
+		Thread thread = null;
+		if(generator.port == 0) {
+			server = new EchoServer(generator.connections, option(options, "selectors", 0));
+			EchoServer echo = server;
+			thread = new Thread(() -> {
+				try {
+					echo.run();
+				}
+				catch(Exception exception) {
+					echo.port.completeExceptionally(exception);
+					exception.printStackTrace();
+				}
+			});
+			thread.start();
+			generator.port = server.port.get();
+		}
+		if(!options.isEmpty())
+			throw new IllegalArgumentException("Unknown arguments: " + options.keySet());
+		try {
+			generator.run();
+		}
+		finally {
+			if(server != null) {
+				server.close();
+				thread.join();
+			}
+		}
+	}
+	
+	private static int option(Map<String, String> options, String name, int value) {
+		String string = options.remove(name);
+		return string == null ? value : Integer.parseInt(string);
+	}
+	
+	private final int connections;
+	private final boolean open;
+	private final int rate;
+	private final int size;
+	private final int warmup;
+	private final int duration;
+	private final int threads;
+	private final String host;
+	private int port;
+	
+	/**
+	 * The time, in the same units as {@link System#nanoTime()}, from which
+	 * each message's time is counted.
+	 */
+	private long origin;
+	
+	/**
+	 * The time at which measuring starts.
+	 */
+	private long measure;
+	
+	/**
+	 * The time at which no more messages are sent.
+	 */
+	private long end;
+	
+	/**
+	 * The time at which the test stops, even if not every reply has arrived.
+	 */
+	private long stop;
+	
+	private LoadGenerator(Map<String, String> options) {
+		connections = option(options, "connections", 100);
+		String mode = options.getOrDefault("mode", "open");
+		options.remove("mode");
+		if(!mode.equals("open") && !mode.equals("closed"))
+			throw new IllegalArgumentException("The mode must be open or closed.");
+		open = mode.equals("open");
+		rate = option(options, "rate", 10000);
+		size = option(options, "size", 64);
+		warmup = option(options, "warmup", 2);
+		duration = option(options, "duration", 10);
+		threads = option(options, "threads", 1);
+		host = options.getOrDefault("host", "127.0.0.1");
+		options.remove("host");
+		port = option(options, "port", 0);
+		if(connections < 1 || rate < 1 || size < 1 || warmup < 0 || duration < 1 || threads < 1)
+			throw new IllegalArgumentException("The connections, rate, size, duration, and threads must be positive, and the warmup cannot be negative.");
+	}
+	
+	private void run() throws Exception {
+		System.out.println("Connecting " + connections + " connections to " + host + ":" + port + "...");
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		Engine[] engines = new Engine[Math.min(threads, connections)];
+		for(int i = 0; i < engines.length; i++)
+			engines[i] = new Engine();
+		for(int i = 0; i < connections; i++)
+			engines[i % engines.length].connect(address);
+		if(open)
+			System.out.println("Sending " + rate + " messages per second of " + size + " bytes for " + warmup + " + " + duration + " seconds...");
+		else
+			System.out.println("Sending one message at a time of " + size + " bytes per connection for " + warmup + " + " + duration + " seconds...");
+		origin = System.nanoTime();
+		measure = origin + warmup * SECOND;
+		end = measure + duration * SECOND;
+		stop = end + DRAIN;
+		Thread[] running = new Thread[engines.length];
+		for(int i = 0; i < engines.length; i++) {
+			running[i] = new Thread(engines[i]);
+			running[i].start();
+		}
+		Histogram latency = new Histogram();
+		long sent = 0;
+		long received = 0;
+		for(int i = 0; i < engines.length; i++) {
+			running[i].join();
+			engines[i].close();
+			if(engines[i].exception != null)
+				engines[i].exception.printStackTrace();
+			latency.add(engines[i].latency);
+			sent += engines[i].sent;
+			received += engines[i].received;
+		}
+		System.out.println("Sent: " + sent + "; received: " + received + "; missing: " + (sent - received));
+		System.out.println("Throughput: " + (received / duration) + " messages per second (" + (received * size / duration / 1024) + " KiB per second)");
+		System.out.println("Round trip latency (microseconds): p50=" + micros(latency.getValueAtPercentile(50)) + "; p99=" + micros(latency.getValueAtPercentile(99)) + "; p99.9=" + micros(latency.getValueAtPercentile(99.9)) + "; max=" + micros(latency.getMax()) + "; mean=" + micros(Math.round(latency.getMean())));
+	}
+	
+	private static String micros(long nanoseconds) {
+		return String.format("%.1f", nanoseconds / 1000.0);
+	}
+	
+	/**
+	 * One client thread, which writes and reads some of the connections.
+	 */
+	private final class Engine implements Runnable {
+		
+		private final Selector selector;
+		private final List<Connection> connections = new ArrayList<>();
+		
+		/**
+		 * The connections which have messages that have not been written.
+		 */
+		private final List<Connection> dirty = new ArrayList<>();
+		final Histogram latency = new Histogram();
+		long sent = 0;
+		long received = 0;
+		Exception exception = null;
+		
+		/**
+		 * The number of messages sent on all of this engine's connections
+		 * whose replies have not been read.
+		 */
+		private long outstanding = 0;
+		
+		Engine() throws IOException {
+			selector = Selector.open();
+		}
+		
+		void connect(InetSocketAddress address) throws IOException {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connections.add(connection);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				// Spread each connection's first message randomly over one
+				// interval so they are not all sent at once. Every connection
+				// has the same interval, so once they are sorted by when their
+				// first message is due, they are always due in that order.
+				long interval = (long) ((double) LoadGenerator.this.connections * SECOND / rate);
+				for(Connection connection : connections) {
+					if(open)
+						connection.next = origin + (long) (Math.random() * interval);
+					else
+						connection.send(System.nanoTime());
+				}
+				connections.sort((a, b) -> Long.compare(a.next, b.next));
+				int cursor = 0;
+				while(true) {
+					long now = System.nanoTime();
+					if(now >= stop || (now >= end && outstanding == 0))
+						break;
+					long wake = now < end ? end : stop;
+					if(open) {
+						Connection connection = connections.get(cursor);
+						while(connection.next <= now && connection.next < end) {
+							connection.send(connection.next);
+							connection.next += interval;
+							cursor = (cursor + 1) % connections.size();
+							connection = connections.get(cursor);
+						}
+						if(connection.next < end)
+							wake = Math.min(wake, connection.next);
+					}
+					for(Connection connection : dirty)
+						connection.flush();
+					dirty.clear();
+					long wait = wake - System.nanoTime();
+					if(wait >= MILLISECOND)
+						selector.select(wait / MILLISECOND);
+					else
+						selector.selectNow();
+					for(SelectionKey key : selector.selectedKeys()) {
+						Connection connection = (Connection) key.attachment();
+						if(key.isReadable())
+							connection.read();
+						if(key.isValid() && key.isWritable())
+							connection.flush();
+					}
+					selector.selectedKeys().clear();
+				}
+			}
+			catch(Exception exception) {
+				this.exception = exception;
+			}
+		}
+		
+		void close() throws IOException {
+			for(Connection connection : connections)
+				connection.channel.close();
+			selector.close();
+		}
+		
+		/**
+		 * One connection and the bytes waiting to be written to it or split
+		 * into lines.
+		 */
+		private final class Connection {
+			
+			final SocketChannel channel;
+			SelectionKey key;
+			private ByteBuffer output = ByteBuffer.allocate(Math.max(4096, size * 2));
+			private ByteBuffer input = ByteBuffer.allocate(Math.max(4096, size * 2));
+			private final byte[] digits = new byte[20];
+			
+			/**
+			 * Whether messages have been added to the output since it was
+			 * last written.
+			 */
+			private boolean waiting = false;
+			
+			/**
+			 * In open loop mode, the time the next message is due.
+			 */
+			long next;
+			
+			Connection(SocketChannel channel) {
+				this.channel = channel;
+			}
+			
+			/**
+			 * Adds a message to the output, starting with the time it was due
+			 * and padded to the message size.
+			 * 
+			 * @param due the time the message was due to be sent
+			 */
+			void send(long due) {
+				long stamp = due - origin;
+				int count = 0;
+				do {
+					digits[count++] = (byte) ('0' + stamp % 10);
+					stamp /= 10;
+				} while(stamp > 0);
+				int padding = Math.max(0, size - 1 - count);
+				if(output.remaining() < count + padding + 1)
+					output = grow(output, count + padding + 1);
+				while(count > 0)
+					output.put(digits[--count]);
+				for(; padding > 0; padding--)
+					output.put((byte) 'x');
+				output.put((byte) '\n');
+				if(!waiting) {
+					waiting = true;
+					dirty.add(this);
+				}
+				outstanding++;
+				if(due >= measure && due < end)
+					sent++;
+			}
+			
+			void flush() throws IOException {
+				output.flip();
+				channel.write(output);
+				output.compact();
+				waiting = false;
+				key.interestOps(output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+			
+			void read() throws IOException {
+				if(!input.hasRemaining())
+					input = grow(input, input.capacity());
+				if(channel.read(input) < 0)
+					throw new EOFException("The server closed a connection.");
+				long now = System.nanoTime();
+				int start = 0;
+				for(int i = 0; i < input.position(); i++) {
+					if(input.get(i) != '\n')
+						continue;
+					long stamp = 0;
+					for(int j = start; j < i && input.get(j) >= '0' && input.get(j) <= '9'; j++)
+						stamp = stamp * 10 + input.get(j) - '0';
+					long due = origin + stamp;
+					outstanding--;
+					if(due >= measure && due < end) {
+						received++;
+						latency.record(now - due);
+					}
+					if(!open && now < end)
+						send(now);
+					start = i + 1;
+				}
+				input.limit(input.position());
+				input.position(start);
+				input.compact();
+			}
+		}
+	}
+	
+	private static ByteBuffer grow(ByteBuffer buffer, int room) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + room));
+		buffer.flip();
+		return bigger.put(buffer);
+	}
+	
+	/**
+	 * A server which sends every line it receives back to the socket which
+	 * sent it.
+	 */
+	private static class EchoServer extends SerialServerSocket {
+		
+		public final CompletableFuture<Integer> port = new CompletableFuture<>();
+		private final int backlog;
+		private final int selectors;
+		
+		public EchoServer(int backlog, int selectors) {
+			this.backlog = backlog;
+			this.selectors = selectors;
+		}
+		
+		@Override
+		protected ServerSocket createServer() throws IOException {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), backlog);
+			port.complete(channel.socket().getLocalPort());
+			return channel.socket();
+		}
+		
+		@Override
+		protected int getSelectorThreads() {
+			return selectors;
+		}
+		
+		@Override
+		protected SerialSocket createSocket(Socket socket) throws Exception {
+			socket.setTcpNoDelay(true);
+			return new EchoSocket(this, socket);
+		}
+	}
+	
+	private static class EchoSocket extends SerialSocket {
+		
+		public EchoSocket(EchoServer server, Socket socket) throws Exception {
+			super(server, socket);
+		}
+		
+		@Override
+		protected void receive(ByteBuffer message) {
+			// The message is only valid until this method returns, so copy it.
+			ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+			copy.put(message).flip();
+			send(copy);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,209 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+
+/**
+ * A one-way stream of bytes between two threads in the same process, stored
+ * in a fixed size ring buffer. A {@link MemorySocket} reads from one pipe and
+ * writes to another. Like a network connection, a write blocks while the
+ * buffer is full and a read blocks while it is empty, so a slow reader slows
+ * down the writer rather than letting the buffer grow without limit.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class MemoryPipe {
+	
+	/**
+	 * The bytes which have been written but not yet read.
+	 */
+	private final byte[] buffer;
+	
+	/**
+	 * The index of the next byte to read.
+	 */
+	private int head = 0;
+	
+	/**
+	 * The number of bytes waiting to be read.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Whether the writing end has been closed, after which the reader will
+	 * read any bytes that are left and then reach the end of the stream.
+	 */
+	private boolean writerClosed = false;
+	
+	/**
+	 * Whether the reading end has been closed, after which nothing more can
+	 * be read or written.
+	 */
+	private boolean readerClosed = false;
+	
+	/**
+	 * The reading end of the pipe.
+	 */
+	final InputStream input = new InputStream() {
+		
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return MemoryPipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return MemoryPipe.this.read(bytes, offset, length);
+		}
+		
+		@Override
+		public int available() {
+			return MemoryPipe.this.available();
+		}
+		
+		@Override
+		public void close() {
+			closeReader();
+		}
+	};
+	
+	/**
+	 * The writing end of the pipe.
+	 */
+	final OutputStream output = new OutputStream() {
+		
+		@Override
+		public void write(int b) throws IOException {
+			MemoryPipe.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			MemoryPipe.this.write(bytes, offset, length);
+		}
+		
+		@Override
+		public void close() {
+			closeWriter();
+		}
+	};
+	
+	/**
+	 * Constructs a new, empty pipe.
+	 * 
+	 * @param capacity the most bytes which can be waiting to be read
+	 */
+	MemoryPipe(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("The capacity of a pipe must be at least 1.");
+		this.buffer = new byte[capacity];
+	}
+	
+	/**
+	 * Reads bytes, blocking until at least one is available or the writing end
+	 * has been closed.
+	 * 
+	 * @param bytes the array to read into
+	 * @param offset the index in the array of the first byte to read
+	 * @param length the most bytes to read
+	 * @return the number of bytes read, or -1 if the writing end has been
+	 * closed and every byte has been read
+	 * @throws IOException if the reading end has been closed or the thread was
+	 * interrupted
+	 */
+	synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+		if(length == 0)
+			return 0;
+		while(size == 0 && !writerClosed && !readerClosed)
+			await();
+		if(readerClosed)
+			throw new SocketException("Socket closed");
+		if(size == 0)
+			return -1;
+		int read = Math.min(length, size);
+		int first = Math.min(read, buffer.length - head);
+		System.arraycopy(buffer, head, bytes, offset, first);
+		System.arraycopy(buffer, 0, bytes, offset + first, read - first);
+		head = (head + read) % buffer.length;
+		size -= read;
+		notifyAll();
+		return read;
+	}
+	
+	/**
+	 * Returns the number of bytes which can be read without blocking.
+	 * 
+	 * @return the number of bytes waiting to be read
+	 */
+	synchronized int available() {
+		return size;
+	}
+	
+	/**
+	 * Writes bytes, blocking while the buffer is full.
+	 * 
+	 * @param bytes the array to write from
+	 * @param offset the index in the array of the first byte to write
+	 * @param length the number of bytes to write
+	 * @throws IOException if either end has been closed or the thread was
+	 * interrupted
+	 */
+	synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			while(size == buffer.length && !writerClosed && !readerClosed)
+				await();
+			if(writerClosed)
+				throw new SocketException("Socket closed");
+			if(readerClosed)
+				throw new SocketException("Connection reset");
+			int tail = (head + size) % buffer.length;
+			int written = Math.min(length, buffer.length - size);
+			int first = Math.min(written, buffer.length - tail);
+			System.arraycopy(bytes, offset, buffer, tail, first);
+			System.arraycopy(bytes, offset + first, buffer, 0, written - first);
+			size += written;
+			offset += written;
+			length -= written;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes the writing end. Bytes which have already been written can still
+	 * be read.
+	 */
+	synchronized void closeWriter() {
+		writerClosed = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Closes the reading end. Any bytes waiting to be read are discarded, and
+	 * the writer will fail the next time it writes.
+	 */
+	synchronized void closeReader() {
+		readerClosed = true;
+		size = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * Waits for the other end of the pipe.
+	 * 
+	 * @throws InterruptedIOException if the thread was interrupted
+	 */
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		}
+		catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
\ No newline at end of file
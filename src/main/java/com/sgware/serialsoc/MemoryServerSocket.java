@@ -0,0 +1,180 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ServerSocket} whose connections come from threads in the same
+ * process rather than from the network. Each call to {@link #connect()}
+ * creates a pair of {@link MemorySocket}s joined by in-memory pipes, returns
+ * one to the caller, and queues the other to be {@link #accept() accepted}.
+ * <p>
+ * A {@link SerialServerSocket} can use this transport by returning one from
+ * {@link SerialServerSocket#createServer()}. Sockets are then accepted,
+ * connected, read, written, closed, and disconnected exactly as they are
+ * over a network, so a server's own logic and the order of its events can be
+ * tested or benchmarked at millions of messages per second without measuring
+ * the operating system's network stack:
+ * <p>
+ * <code>MemoryServerSocket memory = new MemoryServerSocket();<br>
+ * SerialServerSocket server = new SerialServerSocket() {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;protected ServerSocket createServer() { return memory; }<br>
+ * };<br>
+ * // Run the server on another thread, then:<br>
+ * Socket client = memory.connect();</code>
+ * <p>
+ * Memory sockets do not have channels, so a server using this transport
+ * cannot use {@link SerialServerSocket#getSelectorThreads() selector threads};
+ * it reads each socket on its own thread, which can be a {@link
+ * SerialServerSocket#createVirtualThread(Runnable) virtual thread}. A memory
+ * server socket is never bound to a network address, so it has no {@link
+ * #getLocalPort() port}.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class MemoryServerSocket extends ServerSocket {
+	
+	/**
+	 * The default number of bytes each direction of a connection can buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Placed on the queue to wake a thread waiting in {@link #accept()} when
+	 * this server socket closes.
+	 */
+	private static final Socket CLOSED = new Socket();
+	
+	/**
+	 * The number of bytes each direction of a connection can buffer.
+	 */
+	private final int bufferSize;
+	
+	/**
+	 * Sockets which have connected but not yet been accepted. Connecting and
+	 * closing are synchronized on this queue, so a connection is either
+	 * queued before this server socket closes, in which case closing closes
+	 * it, or refused.
+	 */
+	private final LinkedBlockingQueue<Socket> pending = new LinkedBlockingQueue<>();
+	
+	/**
+	 * The number of connections made so far, used to name their addresses.
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+	
+	/**
+	 * Whether this server socket has been closed.
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Constructs a new memory server socket whose connections can each buffer
+	 * {@link #DEFAULT_BUFFER_SIZE} bytes in each direction.
+	 * 
+	 * @throws IOException never, since a memory server socket has no network
+	 * socket to create
+	 */
+	public MemoryServerSocket() throws IOException {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Constructs a new memory server socket whose connections each buffer a
+	 * given number of bytes in each direction. Once a buffer is full, writing
+	 * to it blocks until the other end reads.
+	 * 
+	 * @param bufferSize the number of bytes each direction of a connection can
+	 * buffer
+	 * @throws IOException never, since a memory server socket has no network
+	 * socket to create
+	 */
+	public MemoryServerSocket(int bufferSize) throws IOException {
+		super();
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("The buffer size must be at least 1.");
+		this.bufferSize = bufferSize;
+	}
+	
+	/**
+	 * Connects a new client to this server socket. This method can be called
+	 * from any thread and does not block. The other end of the connection is
+	 * returned by the next call to {@link #accept()}.
+	 * 
+	 * @return the client's end of the new connection
+	 * @throws SocketException if this server socket has been closed
+	 */
+	public Socket connect() throws SocketException {
+		MemoryPipe up = new MemoryPipe(bufferSize);
+		MemoryPipe down = new MemoryPipe(bufferSize);
+		String client = "memory:client-" + connections.incrementAndGet();
+		String server = "memory:server";
+		synchronized(pending) {
+			if(closed)
+				throw new SocketException("Connection refused");
+			pending.add(new MemorySocket(up, down, server, client));
+		}
+		return new MemorySocket(down, up, client, server);
+	}
+	
+	/**
+	 * Waits for a client to {@link #connect() connect} and returns the
+	 * server's end of the connection.
+	 * 
+	 * @return the server's end of the new connection
+	 * @throws SocketException if this server socket has been closed
+	 * @throws InterruptedIOException if the thread was interrupted while
+	 * waiting
+	 */
+	@Override
+	public Socket accept() throws IOException {
+		if(closed)
+			throw new SocketException("Socket is closed");
+		Socket socket;
+		try {
+			socket = pending.take();
+		}
+		catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if(socket == CLOSED) {
+			pending.add(CLOSED);
+			throw new SocketException("Socket is closed");
+		}
+		return socket;
+	}
+	
+	/**
+	 * Closes this server socket. Clients can no longer connect, any thread
+	 * waiting to accept a connection stops waiting, and connections which were
+	 * never accepted are closed. Connections which were already accepted stay
+	 * open.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(pending) {
+			closed = true;
+			super.close();
+			for(Socket socket = pending.poll(); socket != null; socket = pending.poll())
+				socket.close();
+			pending.add(CLOSED);
+		}
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	@Override
+	public String toString() {
+		return "[Memory Server Socket: closed=" + closed + "]";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+
+/**
+ * One end of a connection between two threads in the same process, which
+ * behaves like a {@link Socket} but passes bytes through memory instead of
+ * through the operating system's network stack. Memory sockets are created in
+ * pairs by {@link MemoryServerSocket#connect()}: the client keeps one, and the
+ * server {@link MemoryServerSocket#accept() accepts} the other.
+ * <p>
+ * A memory socket supports the methods a {@link SerialSocket} uses when the
+ * server does not have {@link SerialServerSocket#getSelectorThreads() selector
+ * threads}: its {@link #getInputStream() input} and {@link #getOutputStream()
+ * output} streams, {@link #close() closing}, and its addresses. Like a network
+ * socket, closing it causes a read that is blocked on either end to stop, and
+ * the other end reaches the end of its input once it has read everything that
+ * was written. Options such as {@link #setTcpNoDelay(boolean)} have no effect
+ * and should not be used, since there is no network connection to configure.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class MemorySocket extends Socket {
+	
+	/**
+	 * The address of one end of a memory connection, which is also used for
+	 * {@link Simulation simulated} connections.
+	 */
+	static final class MemoryAddress extends SocketAddress {
+		
+		/**
+		 * A serial version number, since socket addresses are serializable.
+		 */
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The name of the address.
+		 */
+		private final String name;
+		
+		/**
+		 * Constructs a new address.
+		 * 
+		 * @param name the name of the address
+		 */
+		MemoryAddress(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	/**
+	 * The pipe this socket reads from.
+	 */
+	private final MemoryPipe input;
+	
+	/**
+	 * The pipe this socket writes to.
+	 */
+	private final MemoryPipe output;
+	
+	/**
+	 * The address of this end of the connection.
+	 */
+	private final SocketAddress local;
+	
+	/**
+	 * The address of the other end of the connection.
+	 */
+	private final SocketAddress remote;
+	
+	/**
+	 * Whether this socket has been closed.
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Constructs one end of a memory connection.
+	 * 
+	 * @param input the pipe to read from
+	 * @param output the pipe to write to
+	 * @param local the name of this end's address
+	 * @param remote the name of the other end's address
+	 * @throws SocketException never, since a memory socket has no network
+	 * socket to create
+	 */
+	MemorySocket(MemoryPipe input, MemoryPipe output, String local, String remote) throws SocketException {
+		super((SocketImpl) null);
+		this.input = input;
+		this.output = output;
+		this.local = new MemoryAddress(local);
+		this.remote = new MemoryAddress(remote);
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if(closed)
+			throw new SocketException("Socket is closed");
+		return input.input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if(closed)
+			throw new SocketException("Socket is closed");
+		return output.output;
+	}
+	
+	@Override
+	public void shutdownInput() {
+		input.closeReader();
+	}
+	
+	@Override
+	public void shutdownOutput() {
+		output.closeWriter();
+	}
+	
+	@Override
+	public boolean isInputShutdown() {
+		return closed;
+	}
+	
+	@Override
+	public boolean isOutputShutdown() {
+		return closed;
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		input.closeReader();
+		output.closeWriter();
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+	
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return local;
+	}
+	
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return remote;
+	}
+	
+	@Override
+	public String toString() {
+		return "[Memory Socket: local=" + local + "; remote=" + remote + "; closed=" + closed + "]";
+	}
+}
\ No newline at end of file
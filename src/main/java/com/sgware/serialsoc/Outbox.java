@@ -0,0 +1,183 @@
+package com.sgware.serialsoc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of output waiting to be written to a socket. Any thread can add
+ * output to an outbox without blocking, and the output is written in order by
+ * some other thread, so a client which is slow to read cannot stall the thread
+ * which is sending to it.
+ * <p>
+ * Only one thread writes an outbox's output at a time. When output is added to
+ * an outbox which is not already being written, {@link #dispatch()} is called
+ * to arrange for some thread to write it.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+abstract class Outbox {
+	
+	/**
+	 * A marker which is added to the queue to signal that the socket should be
+	 * closed once all the output before it has been written.
+	 */
+	static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+	
+	/**
+	 * The output waiting to be written.
+	 */
+	final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * The number of bytes which have been added but not yet written.
+	 */
+	private final AtomicLong queued = new AtomicLong();
+	
+	/**
+	 * A flag indicating that some thread has been asked to write the output.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	
+	/**
+	 * Released once the socket has been closed.
+	 */
+	private final CountDownLatch finished = new CountDownLatch(1);
+	
+	/**
+	 * A flag indicating that the socket has been closed and any further output
+	 * should be discarded.
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Adds output to the end of the queue. The output will not be written
+	 * until {@link #flush()} or {@link #close()} is called. This method can be
+	 * called from any thread and does not block. If the socket has been
+	 * closed, the output is discarded.
+	 * 
+	 * @param buffer the bytes to write
+	 */
+	final void add(ByteBuffer buffer) {
+		if(closed)
+			return;
+		queued.addAndGet(buffer.remaining());
+		queue.add(buffer);
+	}
+	
+	/**
+	 * Arranges for all of the output which has been added so far to be
+	 * written. This method can be called from any thread and does not block.
+	 */
+	final void flush() {
+		if(!queue.isEmpty())
+			schedule();
+	}
+	
+	/**
+	 * Requests that the socket be closed after all of the output which has
+	 * already been added is written. This method can be called from any thread
+	 * and does not block. If the client stops reading, that output may never
+	 * be written, so the socket should be {@link #abort() aborted} if it has
+	 * not closed after some time.
+	 */
+	final void close() {
+		if(closed)
+			return;
+		queue.add(CLOSE);
+		schedule();
+	}
+	
+	/**
+	 * Closes the socket right away, discarding any output which has not been
+	 * written, and makes sure {@link #closed()} is eventually called even if a
+	 * thread is waiting for the client to read. This method can be called
+	 * from any thread, more than once, and does not block.
+	 */
+	abstract void abort();
+	
+	/**
+	 * Returns the number of bytes which have been added but not yet written.
+	 * 
+	 * @return the number of queued bytes
+	 */
+	final long getQueued() {
+		return queued.get();
+	}
+	
+	/**
+	 * Waits until the socket has been closed.
+	 * 
+	 * @throws InterruptedException if the current thread is interrupted while
+	 * waiting
+	 */
+	final void await() throws InterruptedException {
+		finished.await();
+	}
+	
+	/**
+	 * Arranges for some thread to write the queued output, unless one already
+	 * has been.
+	 */
+	private final void schedule() {
+		if(scheduled.compareAndSet(false, true))
+			dispatch();
+	}
+	
+	/**
+	 * Arranges for some thread to write the queued output. Only one thread will
+	 * be asked to write at a time. That thread should keep writing until the
+	 * queue is empty and {@link #idle()} returns false, or until it reaches the
+	 * {@link #CLOSE close marker} and calls {@link #closed()}.
+	 */
+	abstract void dispatch();
+	
+	/**
+	 * Called by the writing thread after some queued bytes have been written.
+	 * 
+	 * @param bytes the number of bytes written
+	 */
+	final void sent(long bytes) {
+		queued.addAndGet(-bytes);
+	}
+	
+	/**
+	 * Called by the writing thread when the queue is empty. If more output was
+	 * added in the meantime, this method returns true and the thread should
+	 * keep writing; otherwise, the thread should stop, and {@link #dispatch()}
+	 * will be called again when more output is added.
+	 * 
+	 * @return true if the writing thread should keep writing
+	 */
+	final boolean idle() {
+		scheduled.set(false);
+		return !queue.isEmpty() && scheduled.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Called by the writing thread when it has to stop writing for a reason
+	 * other than the socket being unable to accept more bytes, and some other
+	 * event will start it again, such as a TLS handshake finishing. Unlike
+	 * {@link #idle()}, this does not check for more output; {@link
+	 * #dispatch()} will be called again the next time output is added, flushed
+	 * or closed, even though the queue is not empty.
+	 */
+	final void unschedule() {
+		scheduled.set(false);
+	}
+	
+	/**
+	 * Called once the socket has been closed, either because the {@link
+	 * #CLOSE close marker} was reached or because writing failed. Any output
+	 * still in the queue is discarded.
+	 */
+	final void closed() {
+		closed = true;
+		queue.clear();
+		queued.set(0);
+		finished.countDown();
+	}
+}
\ No newline at end of file
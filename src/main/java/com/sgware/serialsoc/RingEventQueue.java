@@ -0,0 +1,317 @@
+package com.sgware.serialsoc;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link EventQueue event queue} which stores operations in a fixed-size
+ * ring of slots. Many threads can add operations at once without taking a
+ * lock or creating any objects: each claims the next slot by advancing a
+ * counter and then fills it. The main thread empties the slots in order.
+ * <p>
+ * Because the main thread must never block while adding to its own queue, an
+ * operation which is added while every slot is full is put in a separate,
+ * unbounded overflow queue instead, along with the number of slots which had
+ * been claimed at that moment. The main thread runs it as soon as it has
+ * emptied that many slots, so the operations from each thread still run in the
+ * order they were added. Overflow should be rare; if it is not, the queue
+ * should be given more slots.
+ * <p>
+ * When the queue is empty, the main thread waits according to its {@link
+ * WaitStrategy wait strategy}.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class RingEventQueue implements EventQueue {
+	
+	/**
+	 * An operation which was added while every slot was full.
+	 */
+	private static final class Overflow {
+		
+		/**
+		 * The number of slots which had been claimed when the operation was
+		 * added. The operation runs once that many slots have been emptied.
+		 */
+		private final long after;
+		
+		/**
+		 * The operation.
+		 */
+		private final CheckedRunnable runnable;
+		
+		/**
+		 * Constructs a new overflowing operation.
+		 * 
+		 * @param after the number of slots claimed when it was added
+		 * @param runnable the operation
+		 */
+		private Overflow(long after, CheckedRunnable runnable) {
+			this.after = after;
+			this.runnable = runnable;
+		}
+	}
+	
+	/**
+	 * The number of slots a ring event queue has if no capacity is given.
+	 */
+	public static final int DEFAULT_CAPACITY = 16384;
+	
+	/**
+	 * The slots which hold operations. A slot is null when it is empty or when
+	 * it has been claimed but not yet filled.
+	 */
+	private final AtomicReferenceArray<CheckedRunnable> slots;
+	
+	/**
+	 * Used to find a counter's slot; the number of slots is always a power of
+	 * two, so this is one less than that number.
+	 */
+	private final int mask;
+	
+	/**
+	 * How the main thread waits when the queue is empty.
+	 */
+	private final WaitStrategy wait;
+	
+	/**
+	 * The counter of the next slot to be claimed by a thread adding an
+	 * operation.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * The counter of the next slot to be emptied by the main thread. Only the
+	 * main thread changes it.
+	 */
+	private volatile long head = 0;
+	
+	/**
+	 * Operations which were added while every slot was full, in the order
+	 * they were added. Access to this queue is synchronized on the queue.
+	 */
+	private final ArrayDeque<Overflow> overflow = new ArrayDeque<>();
+	
+	/**
+	 * The number of operations in the {@link #overflow} queue, which allows
+	 * the main thread to check it without taking a lock.
+	 */
+	private final AtomicInteger overflowing = new AtomicInteger();
+	
+	/**
+	 * The main thread, if it is parked waiting for an operation, or null.
+	 */
+	private volatile Thread waiting = null;
+	
+	/**
+	 * Constructs a new ring event queue with the {@link #DEFAULT_CAPACITY
+	 * default number of slots} whose main thread {@link WaitStrategy#PARK
+	 * parks} while waiting.
+	 */
+	public RingEventQueue() {
+		this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+	}
+	
+	/**
+	 * Constructs a new ring event queue.
+	 * 
+	 * @param capacity the number of slots, which will be rounded up to the
+	 * nearest power of two
+	 * @param wait how the main thread waits while the queue is empty
+	 * @throws IllegalArgumentException if the capacity is less than 1 or more
+	 * than 2<sup>30</sup>
+	 */
+	public RingEventQueue(int capacity, WaitStrategy wait) {
+		if(capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("The capacity must be between 1 and 2^30.");
+		Objects.requireNonNull(wait);
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.wait = wait;
+	}
+	
+	/**
+	 * Returns the number of slots in this queue.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This includes operations which have overflowed.
+	 */
+	@Override
+	public int size() {
+		long size = tail.get() - head + overflowing.get();
+		return (int) Math.min(Math.max(size, 0), Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public void add(CheckedRunnable runnable) {
+		Objects.requireNonNull(runnable);
+		long claim = tail.get();
+		while(claim - head <= mask) {
+			if(tail.compareAndSet(claim, claim + 1)) {
+				slots.set((int) claim & mask, runnable);
+				signal();
+				return;
+			}
+			claim = tail.get();
+		}
+		// Every slot is full, so the operation must wait until all of the
+		// slots which have already been claimed are emptied.
+		synchronized(overflow) {
+			overflow.add(new Overflow(tail.get(), runnable));
+			overflowing.incrementAndGet();
+		}
+		signal();
+	}
+	
+	/**
+	 * Wakes the main thread if it is parked.
+	 */
+	private void signal() {
+		Thread thread = waiting;
+		if(thread != null)
+			LockSupport.unpark(thread);
+	}
+	
+	@Override
+	public CheckedRunnable poll() {
+		long index = head;
+		int slot = (int) index & mask;
+		// The slot must be read before checking for overflow. A thread which
+		// overflows and then fills this slot will have added the overflowing
+		// operation first, so it will be seen.
+		CheckedRunnable runnable = slots.get(slot);
+		// An overflowing operation runs once every slot which was claimed
+		// before it was added has been emptied.
+		CheckedRunnable overflowed = overflow(index);
+		if(overflowed != null)
+			return overflowed;
+		// If the next slot has not been filled yet, the queue is empty, or the
+		// thread which claimed the slot will fill it soon.
+		if(runnable != null) {
+			slots.lazySet(slot, null);
+			head = index + 1;
+		}
+		return runnable;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The emptied slots are only released to other threads once, at the end
+	 * of the batch.
+	 */
+	@Override
+	public int poll(CheckedRunnable[] batch, int offset, int length) {
+		long index = head;
+		int count = 0;
+		while(count < length) {
+			int slot = (int) index & mask;
+			CheckedRunnable runnable = slots.get(slot);
+			CheckedRunnable overflowed = overflow(index);
+			if(overflowed != null) {
+				batch[offset + count++] = overflowed;
+				continue;
+			}
+			if(runnable == null)
+				break;
+			slots.lazySet(slot, null);
+			index++;
+			batch[offset + count++] = runnable;
+		}
+		head = index;
+		return count;
+	}
+	
+	/**
+	 * Removes and returns the first overflowing operation if every slot which
+	 * was claimed before it was added has been emptied.
+	 * 
+	 * @param index the counter of the next slot to be emptied
+	 * @return the overflowing operation, or null if there is none or it must
+	 * still wait
+	 */
+	private CheckedRunnable overflow(long index) {
+		if(overflowing.get() == 0)
+			return null;
+		synchronized(overflow) {
+			Overflow next = overflow.peek();
+			if(next.after > index)
+				return null;
+			overflow.poll();
+			overflowing.decrementAndGet();
+			return next.runnable;
+		}
+	}
+	
+	@Override
+	public CheckedRunnable take() throws InterruptedException {
+		return poll(false, 0);
+	}
+	
+	@Override
+	public CheckedRunnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(true, System.nanoTime() + unit.toNanos(timeout));
+	}
+	
+	/**
+	 * Removes and returns the next operation, waiting according to this
+	 * queue's {@link WaitStrategy wait strategy} if the queue is empty.
+	 * 
+	 * @param timed true if the wait should end at a deadline
+	 * @param deadline the time, in the same units as {@link
+	 * System#nanoTime()}, when the wait should end if it is timed
+	 * @return the next operation, or null if the deadline passed first
+	 * @throws InterruptedException if the main thread is interrupted while
+	 * waiting
+	 */
+	private CheckedRunnable poll(boolean timed, long deadline) throws InterruptedException {
+		CheckedRunnable runnable = poll();
+		while(runnable == null) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			long remaining = timed ? deadline - System.nanoTime() : 0;
+			if(timed && remaining <= 0)
+				return null;
+			switch(wait) {
+			case PARK:
+				waiting = Thread.currentThread();
+				// Check again after setting the flag in case an operation was
+				// added just before it was set.
+				runnable = poll();
+				if(runnable == null) {
+					if(timed)
+						LockSupport.parkNanos(this, remaining);
+					else
+						LockSupport.park(this);
+				}
+				waiting = null;
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				Thread.onSpinWait();
+			}
+			if(runnable == null)
+				runnable = poll();
+		}
+		return runnable;
+	}
+}
\ No newline at end of file
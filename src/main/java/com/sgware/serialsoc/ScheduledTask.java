@@ -0,0 +1,109 @@
+package com.sgware.serialsoc;
+
+/**
+ * An operation which has been {@link SerialServerSocket#schedule(
+ * java.time.Duration, CheckedRunnable) scheduled} to run on a {@link
+ * SerialServerSocket}'s main thread after a delay, or {@link
+ * SerialServerSocket#scheduleAtFixedRate(java.time.Duration, CheckedRunnable)
+ * repeatedly}. A scheduled task can be {@link #cancel() cancelled} at any time
+ * before it runs.
+ * <p>
+ * Each scheduled task is stored directly in the server's {@link TimerWheel
+ * timer wheel}, so adding and cancelling one takes the same short amount of
+ * time no matter how many other tasks are scheduled.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public final class ScheduledTask {
+	
+	/**
+	 * The server on whose main thread the task runs.
+	 */
+	private final SerialServerSocket server;
+	
+	/**
+	 * The operation to run.
+	 */
+	final CheckedRunnable runnable;
+	
+	/**
+	 * The time, in the same units as {@link System#nanoTime()}, at or after
+	 * which the task should next run. It is only changed on the main thread.
+	 */
+	long deadline;
+	
+	/**
+	 * The time between runs, in nanoseconds, or 0 if the task only runs once.
+	 */
+	final long period;
+	
+	/**
+	 * The number of times the timer wheel must go around before this task is
+	 * due. It is only used on the main thread.
+	 */
+	long rounds = 0;
+	
+	/**
+	 * The previous task in the same bucket of the timer wheel. It is only used
+	 * on the main thread.
+	 */
+	ScheduledTask previous = null;
+	
+	/**
+	 * The next task in the same bucket of the timer wheel, or in the list of
+	 * tasks which are due. It is only used on the main thread.
+	 */
+	ScheduledTask next = null;
+	
+	/**
+	 * The index of the timer wheel bucket this task is in, or -1 if it is not
+	 * in the wheel. It is only used on the main thread.
+	 */
+	int bucket = -1;
+	
+	/**
+	 * A flag indicating that the task has been cancelled.
+	 */
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * Constructs a new scheduled task.
+	 * 
+	 * @param server the server on whose main thread the task runs
+	 * @param runnable the operation to run
+	 * @param deadline the time at which the task should first run
+	 * @param period the time between runs, or 0 if it only runs once
+	 */
+	ScheduledTask(SerialServerSocket server, CheckedRunnable runnable, long deadline, long period) {
+		this.server = server;
+		this.runnable = runnable;
+		this.deadline = deadline;
+		this.period = period;
+	}
+	
+	/**
+	 * Cancels this task so that it will not run again. If it is already
+	 * running, it will finish, but a task which repeats will not run again.
+	 * Cancelling a task which has already been cancelled or which has already
+	 * run has no effect.
+	 * <p>
+	 * It is safe to call this method from any thread; it does not need to be
+	 * called from the main thread.
+	 */
+	public void cancel() {
+		if(cancelled)
+			return;
+		cancelled = true;
+		server.cancel(this);
+	}
+	
+	/**
+	 * Returns true if this task has been {@link #cancel() cancelled}.
+	 * 
+	 * @return true if this task has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread which uses a {@link Selector} to wait for many non-blocking
+ * channels at once and handle whichever ones are ready. This allows a {@link
+ * SerialServerSocket} to accept new connections and read input from all of its
+ * sockets on a few threads rather than on one thread per socket.
+ * <p>
+ * Each channel registered with a selector loop should have a {@link Handler}
+ * attached to its {@link SelectionKey key} which will be run on this loop's
+ * thread each time the channel is ready. If a handler throws an exception, only
+ * that handler is stopped, and the loop goes on serving every other channel.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class SelectorLoop implements Runnable {
+	
+	/**
+	 * An operation which runs on a selector loop's thread on behalf of one
+	 * channel, such as reading from it when it is ready, and which is told if
+	 * it throws an unexpected exception so that its channel can be closed.
+	 */
+	interface Handler extends Runnable {
+		
+		/**
+		 * Called on the loop's thread when {@link #run()} throws an unexpected
+		 * exception. This should report the exception and close the channel,
+		 * since its state is unknown.
+		 * 
+		 * @param exception the exception
+		 */
+		void failed(RuntimeException exception);
+	}
+	
+	/**
+	 * The server whose channels this loop serves.
+	 */
+	private final SerialServerSocket server;
+	
+	/**
+	 * The selector which waits for channels to be ready.
+	 */
+	final Selector selector;
+	
+	/**
+	 * Operations from other threads that are waiting to run on this loop's
+	 * thread.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * The thread on which this loop runs.
+	 */
+	private final Thread thread;
+	
+	/**
+	 * A flag indicating that this loop should stop.
+	 */
+	private volatile boolean stopped = false;
+	
+	/**
+	 * Constructs a new selector loop and opens its selector. The loop's thread
+	 * is created by the server's {@link SerialServerSocket#createThread(Runnable)
+	 * createThread} method, but it does not start until {@link #start()} is
+	 * called.
+	 * 
+	 * @param server the server whose channels this loop serves
+	 * @throws IOException if the selector could not be opened
+	 */
+	SelectorLoop(SerialServerSocket server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		try {
+			this.thread = server.createThread(this);
+			Objects.requireNonNull(thread);
+		}
+		catch(RuntimeException exception) {
+			selector.close();
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Starts this loop's thread.
+	 */
+	void start() {
+		thread.start();
+	}
+	
+	/**
+	 * Runs an operation on this loop's thread, such as registering a channel
+	 * with the selector or changing the operations a key is interested in. If
+	 * the operation is a {@link Handler}, it is told about any exception it
+	 * throws; otherwise, the exception is reported to the server as uncaught.
+	 * 
+	 * @param task the operation to run
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Signals this loop to stop, waits for its thread to finish, and then
+	 * closes the selector.
+	 * 
+	 * @throws InterruptedException if the current thread is interrupted while
+	 * waiting for this loop's thread to finish
+	 * @throws IOException if an exception occurs while closing the selector
+	 */
+	void stop() throws InterruptedException, IOException {
+		stopped = true;
+		selector.wakeup();
+		thread.join();
+		selector.close();
+	}
+	
+	@Override
+	public void run() {
+		while(!stopped) {
+			try {
+				selector.select();
+			}
+			catch(IOException exception) {
+				// A selector only throws here if it is broken, in which case
+				// there is nothing this loop can do.
+				throw new IllegalStateException(exception);
+			}
+			Runnable task = tasks.poll();
+			while(task != null) {
+				handle(task);
+				task = tasks.poll();
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(key.isValid())
+					handle((Handler) key.attachment());
+			}
+		}
+	}
+	
+	/**
+	 * Runs an operation, making sure an exception it throws does not stop
+	 * this loop, which would leave every other channel waiting forever.
+	 * 
+	 * @param task the operation to run
+	 */
+	private void handle(Runnable task) {
+		try {
+			task.run();
+		}
+		catch(RuntimeException exception) {
+			if(task instanceof Handler)
+				((Handler) task).failed(exception);
+			else
+				server.execute(() -> server.fail(exception));
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,424 @@
+package com.sgware.serialsoc;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Objects;
+
+/**
+ * A group of {@link SerialServerSocket}s, called shards, which share one
+ * {@link ServerSocket}. The group accepts new connections and hands each one to
+ * a shard, and each shard runs its events on its own main thread. This allows
+ * a server to use as many processors as it has shards, while every socket
+ * keeps all of the guarantees a serial server socket makes: all of a socket's
+ * events happen on its shard's main thread and in the same order.
+ * <p>
+ * When {@link #run()} is called:
+ * <ul>
+ * <li>{@link #createServer()} is called to bind the server socket. If it throws
+ * an exception, it is thrown immediately.</li>
+ * <li>{@link #createShard(int)} is called {@link #getShardCount()} times to
+ * create the shards, and each is {@link SerialServerSocket#run() run} on a new
+ * thread created by {@link #createThread(Runnable)}. Shards do not call their
+ * own {@link SerialServerSocket#createServer() createServer} or {@link
+ * SerialServerSocket#accept(ServerSocket) accept} methods; their {@link
+ * SerialServerSocket#getServerSocket() server socket} is the group's.</li>
+ * <li>The thread which called {@link #run()} then accepts new connections.
+ * For each one, {@link #selectShard(Socket)} chooses the shard it belongs to,
+ * and that shard {@link SerialServerSocket#createSocket(Socket) creates} a
+ * {@link SerialSocket} for it on its main thread.</li>
+ * <li>When the group is {@link #close() closed}, or when any shard stops, the
+ * server socket and every shard are closed. Once every shard has stopped,
+ * {@link #run()} returns, or throws the first uncaught exception that was
+ * thrown by any shard or while accepting connections.</li>
+ * </ul>
+ * <p>
+ * Data which belongs to a shard should only be used on that shard's main
+ * thread. When one shard needs to affect another, it can use {@link
+ * #execute(int, CheckedRunnable)} to run an operation on another shard's main
+ * thread, or {@link #executeAll(CheckedRunnable)} to run it on every shard.
+ * {@link #broadcast(String)} sends a message to every socket in the group,
+ * encoding it only once.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class SerialServerGroup implements CheckedRunnable, AutoCloseable {
+	
+	/**
+	 * The server socket from which new connections will be accepted.
+	 */
+	private volatile ServerSocket server = null;
+	
+	/**
+	 * The shards, or null if they have not been created yet.
+	 */
+	private volatile SerialServerSocket[] shards = null;
+	
+	/**
+	 * The index of the shard which will receive the next new socket by
+	 * default. It is only used by the thread which accepts connections.
+	 */
+	private int next = 0;
+	
+	/**
+	 * A flag indicating that the group has been closed.
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * The first uncaught exception thrown by a shard or while accepting new
+	 * connections.
+	 */
+	private Exception uncaught = null;
+	
+	/**
+	 * Constructs a new serial server group. The {@link #getServerSocket()
+	 * server socket} and shards are not created until {@link #run()} is
+	 * called.
+	 */
+	public SerialServerGroup() {
+		// Nothing is created until the group runs.
+	}
+	
+	@Override
+	public final void run() throws Exception {
+		// Create and bind the server socket.
+		// Throw an exception immediately if it happens.
+		server = createServer();
+		// Create the shards and their threads. If this fails, close the server
+		// socket and throw the exception immediately.
+		SerialServerSocket[] shards;
+		Thread[] threads;
+		try {
+			int count = getShardCount();
+			if(count < 1)
+				throw new IllegalStateException("A group must have at least 1 shard.");
+			shards = new SerialServerSocket[count];
+			threads = new Thread[count];
+			for(int i = 0; i < count; i++) {
+				SerialServerSocket shard = createShard(i);
+				Objects.requireNonNull(shard);
+				if(shard.group != null)
+					throw new IllegalStateException("A server can only be a shard of one group.");
+				shard.group = this;
+				shards[i] = shard;
+				threads[i] = createThread(() -> runShard(shard));
+			}
+		}
+		catch(Exception exception) {
+			server.close();
+			throw exception;
+		}
+		this.shards = shards;
+		for(Thread thread : threads)
+			thread.start();
+		// If the group was closed before the shards existed, close them now.
+		if(closed)
+			close();
+		// Accept new sockets until closed, but only once every shard has
+		// started, so that no shard adopts a socket before its setup threads
+		// and selector loops exist.
+		try {
+			for(SerialServerSocket shard : shards)
+				shard.started.await();
+			while(!closed) {
+				Socket socket = accept(server);
+				FlightEvents.accepted(socket);
+				shards[selectShard(socket)].adopt(socket);
+			}
+		}
+		catch(Exception exception) {
+			// If the exception was caused by the server socket closing, ignore
+			// it; otherwise, register the uncaught exception.
+			if(!(closed && (exception instanceof SocketException || exception instanceof ClosedChannelException)))
+				fail(exception);
+		}
+		// Ensure every shard closes, then wait for them all to stop.
+		close();
+		for(Thread thread : threads)
+			thread.join();
+		// If an uncaught exception occurred at any time, throw it now.
+		synchronized(this) {
+			if(uncaught != null)
+				throw uncaught;
+		}
+	}
+	
+	/**
+	 * Runs a shard on its own thread. When the shard stops for any reason,
+	 * the whole group is closed.
+	 * 
+	 * @param shard the shard to run
+	 */
+	private final void runShard(SerialServerSocket shard) {
+		try {
+			shard.run();
+		}
+		catch(Exception exception) {
+			fail(exception);
+		}
+		finally {
+			close();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Begins the process of stopping the group. After this method is called,
+	 * the server socket will stop accepting connections, and every shard will
+	 * be {@link SerialServerSocket#close() closed}.
+	 * <p>
+	 * It is safe to call this method from any thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ServerSocket server = this.server;
+		if(server != null) {
+			try {
+				server.close();
+			}
+			catch(Exception exception) {
+				// The server socket is closed even if an exception is thrown.
+			}
+		}
+		SerialServerSocket[] shards = this.shards;
+		if(shards != null)
+			for(SerialServerSocket shard : shards)
+				shard.close();
+	}
+	
+	/**
+	 * Bind and return a {@link ServerSocket} which all of the shards will
+	 * share. This method is called once at the start of {@link #run()}.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return new ServerSocket(0, getBacklog());</code>
+	 * <p>
+	 * If the shards use {@link SerialServerSocket#getSelectorThreads() selector
+	 * threads}, this method must return the {@link
+	 * java.nio.channels.ServerSocketChannel#socket() server socket of a
+	 * ServerSocketChannel}, which the group will use in blocking mode.
+	 * 
+	 * @return a bound server socket
+	 * @throws Exception if an exception occurs while creating or binding the
+	 * server socket
+	 */
+	protected ServerSocket createServer() throws Exception {
+		ServerSocket server = new ServerSocket();
+		try {
+			server.bind(new InetSocketAddress(0), getBacklog());
+		}
+		catch(Exception exception) {
+			server.close();
+			throw exception;
+		}
+		return server;
+	}
+	
+	/**
+	 * Returns the maximum number of connections which can wait in the server
+	 * socket's queue until they are accepted. This works the same way as
+	 * {@link SerialServerSocket#getBacklog()}, which the shards do not use,
+	 * and is called by the default {@link #createServer()}.
+	 * <p>
+	 * By default, this method returns 0, meaning that the default size of 50
+	 * is used. Since one thread accepts connections for every shard, a large
+	 * group may need a larger queue.
+	 * 
+	 * @return the size of the queue, or 0 for the default size
+	 */
+	protected int getBacklog() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the number of shards the group should have. This method is
+	 * called once at the start of {@link #run()}, after {@link
+	 * #createServer()}.
+	 * <p>
+	 * By default, this method returns the number of {@link
+	 * Runtime#availableProcessors() available processors}.
+	 * 
+	 * @return the number of shards, which must be at least 1
+	 */
+	protected int getShardCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Creates one of the group's shards. This method is called once for each
+	 * shard at the start of {@link #run()}. Each shard must be a new server
+	 * which has not been run and does not belong to another group.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return new SerialServerSocket();</code>
+	 * <p>
+	 * This method is meant to be overridden to return a subclass of {@link
+	 * SerialServerSocket} which creates the right kind of {@link
+	 * SerialSocket}, for example.
+	 * 
+	 * @param index the index of the shard, from 0 to one less than the number
+	 * of shards
+	 * @return a new shard
+	 * @throws Exception if an exception occurs while creating the shard
+	 */
+	protected SerialServerSocket createShard(int index) throws Exception {
+		return new SerialServerSocket();
+	}
+	
+	/**
+	 * Creates a new thread, but does not start it. This method is called at
+	 * the start of {@link #run()} to create the thread which will be each
+	 * shard's main thread.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return new Thread(runnable);</code>
+	 * 
+	 * @param runnable the operation the new thread should run
+	 * @return a new thread which has not been started
+	 */
+	protected Thread createThread(Runnable runnable) {
+		return new Thread(runnable);
+	}
+	
+	/**
+	 * Accept a new {@link Socket socket} from a {@link ServerSocket server
+	 * socket}, blocking until one becomes available. This works the same way
+	 * as {@link SerialServerSocket#accept(ServerSocket)}.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return server.accept();</code>
+	 * 
+	 * @param server the server socket returned by {@link #createServer()}
+	 * @return the accepted socket
+	 * @throws Exception if an exception occurs while accepting a socket
+	 */
+	protected Socket accept(ServerSocket server) throws Exception {
+		return server.accept();
+	}
+	
+	/**
+	 * Chooses which shard a newly accepted socket belongs to. This method is
+	 * called on the thread which accepts new connections, so it should be
+	 * fast.
+	 * <p>
+	 * By default, sockets are given to each shard in turn. Overriding this
+	 * method allows a different policy, for example always giving sockets
+	 * from the same address to the same shard so that they can share data
+	 * without crossing between shards.
+	 * 
+	 * @param socket the accepted socket
+	 * @return the index of the shard, from 0 to one less than the number of
+	 * shards
+	 */
+	protected int selectShard(Socket socket) {
+		int shard = next;
+		next = (next + 1) % shards.length;
+		return shard;
+	}
+	
+	/**
+	 * Returns the {@link ServerSocket} this group is using, or throws an
+	 * exception if it has not yet been bound.
+	 * 
+	 * @return the server socket
+	 * @throws IllegalStateException if {@link #createServer()} has not yet
+	 * been called to create and bind the server socket
+	 */
+	protected ServerSocket getServerSocket() {
+		ServerSocket server = this.server;
+		if(server == null)
+			throw new IllegalStateException("The server has not been created.");
+		else
+			return server;
+	}
+	
+	/**
+	 * Returns the number of shards in this group, or 0 if they have not been
+	 * created yet.
+	 * 
+	 * @return the number of shards
+	 */
+	public int size() {
+		SerialServerSocket[] shards = this.shards;
+		return shards == null ? 0 : shards.length;
+	}
+	
+	/**
+	 * Runs an operation on the main thread of one shard. This is how one
+	 * shard should affect the data of another. It is safe to call this method
+	 * from any thread, and it does not block.
+	 * 
+	 * @param shard the index of the shard
+	 * @param runnable the operation to run
+	 * @throws IllegalStateException if the shards have not been created yet
+	 */
+	public void execute(int shard, CheckedRunnable runnable) {
+		getShards()[shard].execute(runnable);
+	}
+	
+	/**
+	 * Runs an operation once on the main thread of every shard. It is safe to
+	 * call this method from any thread, and it does not block.
+	 * 
+	 * @param runnable the operation to run
+	 * @throws IllegalStateException if the shards have not been created yet
+	 */
+	public void executeAll(CheckedRunnable runnable) {
+		for(SerialServerSocket shard : getShards())
+			shard.execute(runnable);
+	}
+	
+	/**
+	 * Sends a message to every socket in every shard. The message is encoded
+	 * only once, and every socket shares the same bytes. Each shard sends the
+	 * message on its own main thread, to the sockets which are connected to
+	 * it at that time. As with {@link SerialServerSocket#broadcast(Iterable,
+	 * String)}, a socket whose framing cannot carry a message this long is
+	 * skipped. It is safe to call this method from any thread, and it does
+	 * not block.
+	 * 
+	 * @param message the message to send
+	 * @throws IllegalStateException if the shards have not been created yet
+	 */
+	public void broadcast(String message) {
+		ByteBuffer bytes = SerialSocket.encode(message);
+		for(SerialServerSocket shard : getShards())
+			shard.execute(() -> shard.broadcast(shard.sockets, bytes));
+	}
+	
+	/**
+	 * Returns the shards, or throws an exception if they have not been created
+	 * yet.
+	 * 
+	 * @return the shards
+	 * @throws IllegalStateException if the shards have not been created yet
+	 */
+	private final SerialServerSocket[] getShards() {
+		SerialServerSocket[] shards = this.shards;
+		if(shards == null)
+			throw new IllegalStateException("The shards have not been created.");
+		return shards;
+	}
+	
+	/**
+	 * Records an uncaught exception so that it can be thrown at the end of
+	 * {@link #run()}. Only the first exception is kept.
+	 * 
+	 * @param exception the uncaught exception
+	 */
+	private final synchronized void fail(Exception exception) {
+		if(uncaught == null)
+			uncaught = exception;
+	}
+}
\ No newline at end of file
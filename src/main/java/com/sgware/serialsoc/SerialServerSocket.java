@@ -2,15 +2,38 @@ package com.sgware.serialsoc;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
 
 /**
  * A wrapper around {@link ServerSocket} that accepts new {@link SerialSocket}s
@@ -24,9 +47,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  * is thrown immediately and no other events will happen.</li>
  * <li>{@link #onStart() onStart} is called exactly once and before any other
  * events.</li>
- * <li>Each time the server socket accepts a new connection, {@link
- * #createSocket(java.net.Socket)} will be called to make a new instance of
- * {@link SerialSocket}.</li>
+ * <li>Each time the server socket accepts a new connection, it is {@link
+ * #prepare(java.net.Socket) prepared}, possibly on another thread, and then
+ * {@link #createSocket(java.net.Socket)} will be called to make a new
+ * instance of {@link SerialSocket}.</li>
  * <li>When the server is closed, either because {@link #close()} was called,
  * because the thread was interrupted, because the server socket was
  * disconnected, or because an uncaught exception was thrown, {@link #onClose()
@@ -47,6 +71,19 @@ import java.util.concurrent.LinkedBlockingQueue;
  * response to an event (such as a regular tick or status check) any thread can
  * use {@link #execute(CheckedRunnable)} to submit an operation to be run on the
  * main thread.
+ * <p>
+ * By default, the server starts one thread to accept new connections and one
+ * thread per socket to read its input. A server which needs to handle many
+ * sockets at once can instead use a few {@link #getSelectorThreads() selector
+ * threads} to accept new connections and read input from all of its sockets.
+ * The events above happen in the same order either way.
+ * <p>
+ * Because all events happen on one thread, a server whose events need a lot
+ * of processor time can only use one processor. Several servers can instead
+ * be run as the shards of a {@link SerialServerGroup}, which accepts
+ * connections and divides them among its shards. Each shard has its own main
+ * thread, and all of the events for a socket still happen on its shard's main
+ * thread and in the same order.
  * 
  * @author Stephen G. Ware
  * @version 1
@@ -54,9 +91,24 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	
 	/**
-	 * A thread that accepts new sockets until the server is closed.
+	 * Accepts new sockets from one server socket on its own thread until the
+	 * server is closed.
 	 */
-	private final class Accepter extends Thread {
+	private final class Accepter implements Runnable {
+		
+		/**
+		 * The server socket to accept from.
+		 */
+		private final ServerSocket server;
+		
+		/**
+		 * Constructs a new accepter.
+		 * 
+		 * @param server the server socket to accept from
+		 */
+		private Accepter(ServerSocket server) {
+			this.server = server;
+		}
 		
 		@Override
 		public final void run() {
@@ -64,40 +116,294 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 				// Accept new sockets until closed.
 				while(!closed) {
 					Socket socket = accept(server);
-					execute(() -> {
-						if(closed)
-							socket.close();
-						else
-							createSocket(socket).listener.start();
-					});
+					FlightEvents.accepted(socket);
+					adopt(socket);
 				}
 			}
 			catch(Exception exception) {
 				// If the exception was caused by the server socket closing,
 				// ignore it; otherwise, register the uncaught exception.
-				if(!(closed && exception instanceof SocketException))
+				if(!(closed && (exception instanceof SocketException || exception instanceof ClosedChannelException)))
 					execute(() -> fail(exception));
 			}
 		}
 	}
 	
 	/**
-	 * A blocking queue which stores operations that will run on the main
+	 * Accepts new sockets on a {@link SelectorLoop selector thread} whenever
+	 * the server socket's channel is ready. This does the same job as {@link
+	 * Accepter}, but for a non-blocking channel.
+	 */
+	private final class ChannelAccepter implements SelectorLoop.Handler {
+		
+		/**
+		 * The server socket's channel.
+		 */
+		private final ServerSocketChannel channel;
+		
+		/**
+		 * The key which registers the channel with the selector.
+		 */
+		private SelectionKey key = null;
+		
+		/**
+		 * Constructs a new channel accepter.
+		 * 
+		 * @param channel the server socket's channel
+		 */
+		private ChannelAccepter(ServerSocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		/**
+		 * Registers the channel with a selector loop so that it will begin
+		 * accepting new sockets.
+		 * 
+		 * @param loop the selector loop
+		 */
+		private void start(SelectorLoop loop) {
+			loop.execute(() -> {
+				try {
+					key = channel.register(loop.selector, SelectionKey.OP_ACCEPT, this);
+				}
+				catch(Exception exception) {
+					stop(exception);
+				}
+			});
+		}
+		
+		@Override
+		public void run() {
+			try {
+				// Accept every socket that is waiting.
+				SocketChannel socket = channel.accept();
+				while(socket != null) {
+					Socket accepted = UnixSocket.of(socket);
+					FlightEvents.accepted(accepted);
+					adopt(accepted);
+					socket = channel.accept();
+				}
+			}
+			catch(Exception exception) {
+				stop(exception);
+			}
+		}
+		
+		@Override
+		public void failed(RuntimeException exception) {
+			stop(exception);
+		}
+		
+		/**
+		 * Stops accepting new sockets because of an exception.
+		 * 
+		 * @param exception the exception
+		 */
+		private void stop(Exception exception) {
+			if(key != null)
+				key.cancel();
+			// If the exception was caused by the server socket closing, ignore
+			// it; otherwise, register the uncaught exception.
+			if(!closed)
+				execute(() -> fail(exception));
+		}
+	}
+	
+	/**
+	 * A queue which stores operations that will run on the main thread.
+	 */
+	final EventQueue queue;
+	
+	/**
+	 * The resolution of {@link #schedule(Duration, CheckedRunnable) scheduled
+	 * tasks}, in milliseconds.
+	 */
+	private static final long TIMER_TICK_MILLIS = 10;
+	
+	/**
+	 * The resolution of scheduled tasks, in nanoseconds.
+	 */
+	private static final long TIMER_TICK = TimeUnit.MILLISECONDS.toNanos(TIMER_TICK_MILLIS);
+	
+	/**
+	 * The number of buckets in the {@link TimerWheel timer wheel}, which is
+	 * enough for tasks up to about five seconds away to be found without
+	 * going around the wheel.
+	 */
+	private static final int TIMER_BUCKETS = 512;
+	
+	/**
+	 * Holds the batch of operations which are currently running on the main
+	 * thread. Its length is the {@link #getBatchSize() maximum batch size}.
+	 */
+	private CheckedRunnable[] batch = null;
+	
+	/**
+	 * The {@link #createMetrics() metrics} this server records, or null if it
+	 * does not keep metrics. It is set once when the server starts.
+	 */
+	volatile ServerMetrics metrics = null;
+	
+	/**
+	 * The {@link #getInputQuantum() number of bytes} of input one socket can
+	 * receive before other operations get a turn, or 0 if there is no limit.
+	 */
+	int quantum = 0;
+	
+	/**
+	 * The {@link #getMaxQueuedEvents() number of waiting operations} at which
+	 * sockets stop reading input, or 0 if they never do.
+	 */
+	private int maxQueued = 0;
+	
+	/**
+	 * The {@link #getResumeQueuedEvents() number of waiting operations} at
+	 * which sockets start reading input again.
+	 */
+	private int resumeQueued = 0;
+	
+	/**
+	 * A flag indicating that the event queue has grown too long, so sockets
+	 * should stop reading input until it is shorter. It is only used on the
+	 * main thread.
+	 */
+	private boolean throttled = false;
+	
+	/**
+	 * Sockets which have stopped reading input because the event queue was
+	 * too long. It is only used on the main thread.
+	 */
+	private final List<SerialSocket> paused = new ArrayList<>();
+	
+	/**
+	 * Keeps track of {@link #schedule(Duration, CheckedRunnable) scheduled
+	 * tasks}. It is created when the server starts and only used on the main
 	 * thread.
 	 */
-	final LinkedBlockingQueue<CheckedRunnable> queue = new LinkedBlockingQueue<>();
+	private TimerWheel timers = null;
 	
 	/**
-	 * A list of all currently open sockets. Because this list will only be used
-	 * on the main thread, it does not need to be synchronized.
+	 * All currently open sockets, in the order they connected. Because the
+	 * registry will only be used on the main thread, it does not need to be
+	 * synchronized.
 	 */
-	final List<SerialSocket> sockets = new ArrayList<>();
+	final SocketRegistry<SerialSocket> sockets = new SocketRegistry<>();
+	
+	/**
+	 * {@link SerialSocket#getId() Ids} which belonged to sockets that have
+	 * disconnected and can be given to new sockets. It is only used on the
+	 * main thread.
+	 */
+	private int[] freeIds = new int[16];
+	
+	/**
+	 * The number of ids in {@link #freeIds}.
+	 */
+	private int freeCount = 0;
+	
+	/**
+	 * The id which will be given to the next socket if no ids are free.
+	 */
+	private int nextId = 0;
 	
 	/**
 	 * The server socket from which new connections will be accepted.
 	 */
 	private ServerSocket server = null;
 	
+	/**
+	 * Every server socket from which this server accepts new connections,
+	 * starting with {@link #server}, or null if the server does not accept its
+	 * own connections. There is more than one when the server has {@link
+	 * #getAccepters() several accepters}.
+	 */
+	private ServerSocket[] servers = null;
+	
+	/**
+	 * The group this server is a shard of, or null if it accepts its own
+	 * connections.
+	 */
+	SerialServerGroup group = null;
+	
+	/**
+	 * The simulation which runs this server in virtual time, or null if it is
+	 * run by {@link #run()}.
+	 */
+	Simulation simulation = null;
+	
+	/**
+	 * The selector loops which accept new connections and read input from all
+	 * sockets, or null if each socket has its own thread.
+	 */
+	private SelectorLoop[] loops = null;
+	
+	/**
+	 * The index of the selector loop that will read from the next new socket.
+	 */
+	private int nextLoop = 0;
+	
+	/**
+	 * The main thread, which called {@link #run()}.
+	 */
+	private Thread thread = null;
+	
+	/**
+	 * Whether flushing each socket's output is deferred until the end of each
+	 * batch of operations.
+	 */
+	private boolean deferFlush = false;
+	
+	/**
+	 * Sockets which have sent messages since their output was last flushed.
+	 * Because this list will only be used on the main thread, it does not need
+	 * to be synchronized.
+	 */
+	private final List<SerialSocket> dirty = new ArrayList<>();
+	
+	/**
+	 * A pool of threads which write queued output to sockets that have their
+	 * own threads, or null if the server is using selector threads.
+	 */
+	ExecutorService writers = null;
+	
+	/**
+	 * A pool of threads which {@link #prepare(Socket) prepare} new sockets
+	 * before they are created on the main thread, or null if sockets are
+	 * prepared on the main thread.
+	 */
+	private ExecutorService setup = null;
+	
+	/**
+	 * Sockets which are being prepared by the setup threads, so that they can
+	 * be closed if the server stops first.
+	 */
+	private final Set<Socket> preparing = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Released once {@link #run()} has finished {@link #startRunning()
+	 * starting} the server, whether or not it succeeded. A {@link
+	 * SerialServerGroup group} waits for this before it {@link #adopt(Socket)
+	 * adopts} any sockets, so that the shard's setup threads and selector
+	 * loops are visible to the thread which accepts connections.
+	 */
+	final CountDownLatch started = new CountDownLatch(1);
+	
+	/**
+	 * Decodes lines of input for {@link SerialSocket#receive(ByteBuffer)}. It
+	 * replaces malformed input the same way {@link InputStreamReader} does.
+	 * Because it is only used on the main thread, it can be shared by all
+	 * sockets.
+	 */
+	private final CharsetDecoder decoder = SerialSocket.CHARSET.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	
+	/**
+	 * The characters of the last line decoded by {@link #decode(ByteBuffer)}.
+	 * It is reused for every line and only grows if a line is too long to fit.
+	 */
+	private CharBuffer chars = CharBuffer.allocate(1024);
+	
 	/**
 	 * A flag indicating that the server has been closed.
 	 */
@@ -109,45 +415,209 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	private Exception uncaught = null;
 	
 	/**
-	 * Constructs a new serial server socket. The {@link #getServerSocket()
-	 * server socket} is not created or bound until {@link #run()} is called.
+	 * Constructs a new serial server socket which uses a {@link RingEventQueue}
+	 * with the default number of slots. The {@link #getServerSocket() server
+	 * socket} is not created or bound until {@link #run()} is called.
 	 */
 	public SerialServerSocket() {
+		this(new RingEventQueue());
+	}
+	
+	/**
+	 * Constructs a new serial server socket which uses a given queue to store
+	 * the operations that will run on the main thread. The {@link
+	 * #getServerSocket() server socket} is not created or bound until {@link
+	 * #run()} is called.
+	 * 
+	 * @param queue the queue of operations waiting to run on the main thread,
+	 * which should not be used by any other server
+	 */
+	public SerialServerSocket(EventQueue queue) {
+		Objects.requireNonNull(queue);
+		this.queue = queue;
 		// Ensure onStart() is the first method called.
 		execute(() -> onStart());
 	}
 	
 	@Override
 	public final void run() throws Exception {
-		// Create and bind the server socket.
-		// Throw an exception immediately if it happens.
-		server = createServer();
-		// Start a thread to listen for new connections.
-		Accepter accepter = new Accepter();
-		accepter.start();
+		Thread[] accepters;
+		try {
+			if(simulation != null)
+				throw new IllegalStateException("A simulated server can only be run by its simulation.");
+			accepters = startRunning();
+		}
+		finally {
+			// Let a group know this shard can now adopt new sockets, or that
+			// it never will.
+			started.countDown();
+		}
 		// Run until closed or an exception is thrown.
 		// If the thread is interrupted while taking from the queue, it will be
 		// handled like any other exception.
-		do {		
-			CheckedRunnable runnable = call(() -> queue.take());
-			run(runnable);
-		} while(!closed && uncaught == null);
+		do {
+			int size = queue.poll(batch, 0, batch.length);
+			if(size == 0) {
+				// Wait for the next operation, or until the next scheduled
+				// task might be due, then take any others which were added
+				// along with it.
+				long wait = timers.untilNextTick(now());
+				CheckedRunnable runnable = call(() -> wait < 0 ? queue.take() : queue.poll(wait, TimeUnit.NANOSECONDS));
+				if(runnable != null) {
+					batch[0] = runnable;
+					size = 1 + queue.poll(batch, 1, batch.length - 1);
+				}
+			}
+			run(size, true);
+		} while(isRunning());
+		stopRunning(accepters);
+	}
+	
+	/**
+	 * Prepares the server to run on the current thread: binds the server
+	 * socket, checks the server's settings, and starts accepting new
+	 * connections. This is the first part of {@link #run()}, and a {@link
+	 * Simulation} calls it directly.
+	 * 
+	 * @return the threads which accept new connections, or null if there are
+	 * none
+	 * @throws Exception if the server socket could not be created or the
+	 * settings are not valid
+	 */
+	final Thread[] startRunning() throws Exception {
+		thread = Thread.currentThread();
+		timers = new TimerWheel(TIMER_TICK, TIMER_BUCKETS, now());
+		// Create and bind the server socket.
+		// Throw an exception immediately if it happens.
+		if(simulation != null)
+			server = simulation.server;
+		else if(group == null)
+			server = createServer();
+		else
+			server = group.getServerSocket();
+		deferFlush = isFlushDeferred();
+		metrics = createMetrics();
+		// Start accepting new connections, either on selector threads or on
+		// new threads. If this fails, close the server sockets and throw the
+		// exception immediately.
+		Thread[] accepters;
+		try {
+			int size = getBatchSize();
+			if(size < 1)
+				throw new IllegalStateException("The batch size must be at least 1.");
+			batch = new CheckedRunnable[size];
+			quantum = getInputQuantum();
+			if(quantum < 0)
+				throw new IllegalStateException("The input quantum cannot be negative.");
+			maxQueued = getMaxQueuedEvents();
+			resumeQueued = getResumeQueuedEvents();
+			if(maxQueued < 0 || (maxQueued > 0 && (resumeQueued < 0 || resumeQueued >= maxQueued)))
+				throw new IllegalStateException("The queue limits must be 0, or the resume limit must be less than the maximum.");
+			// A simulation prepares sockets on its own thread so that runs
+			// can be repeated.
+			int workers = getSetupThreads();
+			if(workers < 0)
+				throw new IllegalStateException("The number of setup threads cannot be negative.");
+			else if(workers > 0 && simulation == null)
+				setup = Executors.newFixedThreadPool(workers, this::createThread);
+			// A simulation delivers new connections itself, and a group
+			// accepts them for its shards.
+			if(simulation == null && group == null)
+				servers = createServers();
+			accepters = simulation == null ? startAccepting() : null;
+		}
+		catch(Exception exception) {
+			if(setup != null)
+				setup.shutdown();
+			if(servers != null)
+				for(ServerSocket socket : servers)
+					socket.close();
+			if(group == null)
+				server.close();
+			throw exception;
+		}
+		return accepters;
+	}
+	
+	/**
+	 * Runs the operations which are waiting on the main thread and any
+	 * scheduled tasks which are due, without waiting for more. A {@link
+	 * Simulation} calls this method repeatedly instead of {@link #run()}.
+	 * 
+	 * @return true if any operations or scheduled tasks ran, or false if there
+	 * was nothing to do
+	 */
+	final boolean step() {
+		int size = queue.poll(batch, 0, batch.length);
+		if(size == 0 && timers.untilNextTick(now()) != 0)
+			return false;
+		return run(size, true) > 0;
+	}
+	
+	/**
+	 * Returns how long it will be until the next scheduled task might be due.
+	 * 
+	 * @return the number of nanoseconds until the timer wheel's next tick, or
+	 * -1 if no tasks are scheduled
+	 */
+	final long untilNextTimer() {
+		return timers.untilNextTick(now());
+	}
+	
+	/**
+	 * Returns whether the server should keep running, which is true until it
+	 * has been closed or an uncaught exception has been thrown.
+	 * 
+	 * @return true if the server has not started to stop
+	 */
+	final boolean isRunning() {
+		return !closed && uncaught == null;
+	}
+	
+	/**
+	 * Stops the server once it has been closed or an uncaught exception has
+	 * been thrown: calls {@link #onClose()}, {@link SerialSocket#abort()
+	 * aborts} every socket and waits for them to disconnect, stops all of the
+	 * server's threads, and calls {@link #onStop()}. This is the last part of
+	 * {@link #run()}, and a {@link Simulation} calls it directly.
+	 * 
+	 * @param accepters the threads which accept new connections, or null
+	 * @throws Exception the first uncaught exception, if there was one
+	 */
+	final void stopRunning(Thread[] accepters) throws Exception {
 		// Ensure the close flag is set.
 		close();
-		// Ensure the server socket is closed.
-		execute(() -> server.close());
-		// Wait for the new connection accepter thread to finish.
-		execute(() -> accepter.join());
+		// Ensure the server sockets are closed, unless they belong to a group.
+		if(servers != null)
+			for(ServerSocket socket : servers)
+				execute(() -> socket.close());
+		else if(group == null)
+			execute(() -> server.close());
+		// Wait for the new connection accepter threads to finish.
+		if(accepters != null)
+			for(Thread accepter : accepters)
+				execute(() -> accepter.join());
+		// Wait for the setup threads to finish preparing new sockets.
+		if(setup != null)
+			execute(() -> stopPreparing());
 		// Ensure onClose() is called.
 		execute(() -> onClose());
 		drain();
-		// Close all open sockets.
+		// Abort all open sockets, so that a client which has stopped reading
+		// cannot keep the server waiting for its output.
 		for(SerialSocket socket : sockets)
-			execute(() -> socket.close());
+			execute(() -> socket.abort());
 		drain();
-		// Wait for all socket listener threads to finish.
+		// Wait for all socket listeners to finish.
 		for(SerialSocket socket : sockets)
-			execute(() -> socket.listener.join());
+			execute(() -> socket.join());
+		drain();
+		// Wait for all selector threads or writer threads to finish.
+		if(loops != null)
+			for(SelectorLoop loop : loops)
+				execute(() -> loop.stop());
+		else if(writers != null)
+			execute(() -> writers.shutdown());
 		drain();
 		// Ensure onStop() is called.
 		execute(() -> onStop());
@@ -158,14 +628,382 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	}
 	
 	/**
-	 * Execute all operations that are waiting to run on the main thread.
+	 * Creates the server sockets from which this server will accept new
+	 * connections: the one returned by {@link #createServer()}, and, if the
+	 * server has {@link #getAccepters() several accepters}, one more for each
+	 * of the others, created by {@link #createServer(ServerSocket)}.
+	 * 
+	 * @return the server sockets
+	 * @throws Exception if the number of accepters is not valid or a server
+	 * socket could not be created
+	 */
+	private final ServerSocket[] createServers() throws Exception {
+		int count = getAccepters();
+		if(count < 1)
+			throw new IllegalStateException("The number of accepters must be at least 1.");
+		ServerSocket[] servers = new ServerSocket[count];
+		servers[0] = server;
+		try {
+			for(int i = 1; i < servers.length; i++) {
+				servers[i] = createServer(server);
+				Objects.requireNonNull(servers[i]);
+			}
+		}
+		catch(Exception exception) {
+			for(int i = 1; i < servers.length; i++)
+				if(servers[i] != null)
+					servers[i].close();
+			throw exception;
+		}
+		return servers;
+	}
+	
+	/**
+	 * Starts accepting new connections. If the server is using {@link
+	 * #getSelectorThreads() selector threads}, they are started and will
+	 * accept new connections; otherwise, a new thread is started to accept
+	 * them from each server socket. If the server is a shard of a {@link
+	 * SerialServerGroup group}, the group accepts new connections instead.
+	 * 
+	 * @return the threads which accept new connections, or null if selector
+	 * threads are accepting them
+	 * @throws Exception if an exception occurs while starting the threads
+	 */
+	private final Thread[] startAccepting() throws Exception {
+		int selectors = getSelectorThreads();
+		if(selectors > 0) {
+			startLoops(selectors);
+			return null;
+		}
+		else {
+			writers = Executors.newCachedThreadPool(this::createThread);
+			if(group != null)
+				return null;
+			Thread[] accepters = new Thread[servers.length];
+			for(int i = 0; i < accepters.length; i++)
+				accepters[i] = createThread(new Accepter(servers[i]));
+			for(Thread accepter : accepters)
+				accepter.start();
+			return accepters;
+		}
+	}
+	
+	/**
+	 * Starts the selector loops and registers each server socket's channel
+	 * with one of them, in turn, so that it will accept new connections,
+	 * unless the server is a shard of a {@link SerialServerGroup group}.
+	 * 
+	 * @param count the number of selector loops to start
+	 * @throws Exception if a server socket does not have a channel or if the
+	 * selector loops could not be started
+	 */
+	private final void startLoops(int count) throws Exception {
+		ServerSocket[] servers = group == null ? this.servers : new ServerSocket[] { server };
+		ServerSocketChannel[] channels = new ServerSocketChannel[servers.length];
+		for(int i = 0; i < channels.length; i++) {
+			channels[i] = servers[i].getChannel();
+			if(channels[i] == null)
+				throw new IllegalStateException("Selector threads require a server socket created by a ServerSocketChannel.");
+			if(group == null)
+				channels[i].configureBlocking(false);
+		}
+		SelectorLoop[] loops = new SelectorLoop[count];
+		try {
+			for(int i = 0; i < loops.length; i++)
+				loops[i] = new SelectorLoop(this);
+		}
+		catch(Exception exception) {
+			for(SelectorLoop loop : loops)
+				if(loop != null)
+					loop.selector.close();
+			throw exception;
+		}
+		for(SelectorLoop loop : loops)
+			loop.start();
+		this.loops = loops;
+		if(group == null)
+			for(int i = 0; i < channels.length; i++)
+				new ChannelAccepter(channels[i]).start(loops[i % loops.length]);
+	}
+	
+	/**
+	 * Takes a socket which was just accepted by this server, its {@link
+	 * SerialServerGroup group}, or its {@link Simulation simulation}, {@link
+	 * #prepare(Socket) prepares} it on a setup thread if the server has any,
+	 * and then creates a {@link SerialSocket} for it on the main thread. This
+	 * method can be called from any thread and does not block.
+	 * 
+	 * @param socket the accepted socket
+	 */
+	final void adopt(Socket socket) {
+		if(setup == null) {
+			execute(() -> {
+				Socket prepared = closed ? socket : setUp(socket);
+				if(prepared != null)
+					create(prepared);
+			});
+			return;
+		}
+		preparing.add(socket);
+		try {
+			setup.execute(() -> {
+				try {
+					Socket prepared = setUp(socket);
+					if(prepared != null)
+						execute(() -> create(prepared));
+				}
+				catch(Exception exception) {
+					execute(() -> fail(exception));
+				}
+				finally {
+					preparing.remove(socket);
+				}
+			});
+		}
+		catch(RejectedExecutionException exception) {
+			// The server has stopped preparing sockets because it is closing.
+			preparing.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+	
+	/**
+	 * Calls {@link #prepare(Socket)} and closes the socket if it was rejected
+	 * or its connection failed.
+	 * 
+	 * @param socket the accepted socket
+	 * @return the prepared socket, or null if there is none
+	 * @throws Exception if {@link #prepare(Socket)} throws an exception which
+	 * is not an {@link IOException}
+	 */
+	private final Socket setUp(Socket socket) throws Exception {
+		Socket prepared = null;
+		try {
+			prepared = prepare(socket);
+		}
+		catch(IOException exception) {
+			// The connection failed while it was being prepared, for example
+			// because the client disconnected or its handshake failed. This is
+			// the client's problem, so it is not an uncaught exception.
+		}
+		finally {
+			if(prepared == null)
+				closeQuietly(socket);
+		}
+		return prepared;
+	}
+	
+	/**
+	 * Creates and starts a {@link SerialSocket} for a prepared socket on the
+	 * main thread, or closes the socket if the server has closed.
+	 * 
+	 * @param socket the prepared socket
+	 * @throws Exception if the socket cannot be used or {@link
+	 * #createSocket(Socket)} throws an exception
+	 */
+	private final void create(Socket socket) throws Exception {
+		if(closed) {
+			socket.close();
+			return;
+		}
+		if(loops != null) {
+			SocketChannel channel = socket.getChannel();
+			if(channel == null) {
+				socket.close();
+				throw new IllegalStateException("Selector threads require a server socket created by a ServerSocketChannel.");
+			}
+			channel.configureBlocking(false);
+		}
+		createSocket(socket).start();
+	}
+	
+	/**
+	 * Stops the setup threads, closing any sockets which they are still
+	 * preparing so that they do not wait for slow clients, and waits for them
+	 * to finish.
+	 * 
+	 * @throws InterruptedException if the main thread is interrupted while
+	 * waiting
+	 */
+	private final void stopPreparing() throws InterruptedException {
+		setup.shutdown();
+		for(Socket socket : preparing)
+			closeQuietly(socket);
+		setup.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Closes a socket, ignoring any exception.
+	 * 
+	 * @param socket the socket to close
+	 */
+	private static final void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch(IOException exception) {
+			// The socket is being discarded anyway.
+		}
+	}
+	
+	/**
+	 * Returns the selector loop that should read from a new socket, or null if
+	 * each socket should have its own thread. Sockets are assigned to loops in
+	 * turn. This method is called on the main thread when a new socket is
+	 * created.
+	 * 
+	 * @return a selector loop, or null
+	 */
+	final SelectorLoop nextLoop() {
+		if(loops == null)
+			return null;
+		SelectorLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return loop;
+	}
+	
+	/**
+	 * Execute all operations that are waiting to run on the main thread.
+	 */
+	private final void drain() {
+		int size = queue.poll(batch, 0, batch.length);
+		while(size > 0) {
+			run(size, false);
+			size = queue.poll(batch, 0, batch.length);
+		}
+	}
+	
+	/**
+	 * Runs a batch of operations which has been taken from the queue and,
+	 * optionally, any scheduled tasks which are due, then calls {@link
+	 * #onBatch(int)} and flushes the output of any sockets which sent
+	 * messages during the batch.
+	 * 
+	 * @param size the number of operations in the batch
+	 * @param scheduled true if scheduled tasks which are due should run
+	 * @return the number of operations and scheduled tasks which ran
+	 */
+	private final int run(int size, boolean scheduled) {
+		ServerMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.getQueueDepth().record(size + queue.size());
+		for(int i = 0; i < size; i++) {
+			CheckedRunnable runnable = batch[i];
+			batch[i] = null;
+			run(runnable);
+		}
+		if(maxQueued > 0)
+			checkBacklog();
+		int total = scheduled ? size + expire() : size;
+		if(total == 0)
+			return 0;
+		run(() -> onBatch(total));
+		flush();
+		return total;
+	}
+	
+	/**
+	 * Checks the length of the event queue after a batch. If it has reached
+	 * the {@link #getMaxQueuedEvents() maximum}, sockets will stop reading
+	 * input as soon as they finish delivering the input they have already
+	 * read. Once it has fallen to the {@link #getResumeQueuedEvents() resume
+	 * limit}, every socket which stopped starts reading again.
+	 */
+	private final void checkBacklog() {
+		int size = queue.size();
+		if(!throttled)
+			throttled = size >= maxQueued;
+		else if(size <= resumeQueued) {
+			throttled = false;
+			for(SerialSocket socket : paused)
+				if(socket.throttled)
+					socket.resume();
+			paused.clear();
+		}
+	}
+	
+	/**
+	 * Stops a socket from reading more input if the event queue is too long.
+	 * This is called on the main thread after each time the socket's input
+	 * has been split into lines.
+	 * 
+	 * @param socket the socket which has finished delivering its input
+	 * @return true if the socket should stop reading until it is {@link
+	 * SerialSocket#resume() resumed}, or false if it can read more now
+	 */
+	final boolean throttle(SerialSocket socket) {
+		if(!throttled)
+			return false;
+		paused.add(socket);
+		return true;
+	}
+	
+	/**
+	 * Runs every scheduled task which is due. A task which repeats is
+	 * scheduled again before it runs, so it can cancel itself.
+	 * 
+	 * @return the number of tasks which ran
+	 */
+	private final int expire() {
+		ScheduledTask task = timers.expire(now());
+		ServerMetrics metrics = this.metrics;
+		int count = 0;
+		while(task != null) {
+			ScheduledTask next = task.next;
+			task.next = null;
+			if(!task.isCancelled()) {
+				long due = task.deadline;
+				if(task.period > 0) {
+					task.deadline += task.period;
+					timers.add(task);
+				}
+				if(metrics == null)
+					run(task.runnable);
+				else {
+					// Measure lateness on the server's clock, which may be a
+					// simulation's, but run time on the real one.
+					long start = System.nanoTime();
+					long late = now() - due;
+					run(task.runnable);
+					metrics.record(EventType.TIMER, start - late, start, System.nanoTime());
+				}
+				count++;
+			}
+			task = next;
+		}
+		return count;
+	}
+	
+	/**
+	 * If this server {@link #isFlushDeferred() defers flushing}, this method
+	 * is called on the main thread each time a socket sends a message. The
+	 * socket is remembered so that its output can be flushed at the end of the
+	 * current batch of operations.
+	 * 
+	 * @param socket the socket which sent a message
+	 * @return true if flushing the socket's output has been deferred, or false
+	 * if it should be flushed now
 	 */
-	private final void drain() {
-		CheckedRunnable runnable = queue.poll();
-		while(runnable != null) {
-			run(runnable);
-			runnable = queue.poll();
+	final boolean defer(SerialSocket socket) {
+		if(!deferFlush || Thread.currentThread() != thread)
+			return false;
+		if(!socket.dirty) {
+			socket.dirty = true;
+			dirty.add(socket);
+		}
+		return true;
+	}
+	
+	/**
+	 * Flushes the output of every socket which has sent a message since the
+	 * last time this method was called.
+	 */
+	private final void flush() {
+		for(SerialSocket socket : dirty) {
+			socket.dirty = false;
+			socket.flush();
 		}
+		dirty.clear();
 	}
 	
 	/**
@@ -173,8 +1011,9 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * <p>
 	 * Begins the process of stopping the server. After this method is called,
 	 * {@link #onClose()} will run on the main thread, all open sockets will be
-	 * {@link SerialSocket#close() closed}, and the server will eventually
-	 * {@link #onStop() stop}.
+	 * {@link SerialSocket#abort() aborted}, and the server will eventually
+	 * {@link #onStop() stop}. Output which sockets have queued but not yet
+	 * written when they are aborted is discarded.
 	 * <p>
 	 * It is safe to call this method from any thread; it does not need to be
 	 * called from the main thread.
@@ -190,7 +1029,11 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * <p>
 	 * By default, this method is equivalent to:
 	 * <p>
-	 * <code>return new ServerSocket(0);</code>
+	 * <code>return new ServerSocket(0, getBacklog());</code>
+	 * <p>
+	 * except that, if the server has {@link #getAccepters() more than one
+	 * accepter}, the {@link StandardSocketOptions#SO_REUSEPORT SO_REUSEPORT}
+	 * option is set before the server socket is bound.
 	 * <p>
 	 * Overriding this method allows the server to be configured. For example,
 	 * it can be bound to a specific port, or a subclass of {@link ServerSocket}
@@ -202,7 +1045,172 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * server socket
 	 */
 	protected ServerSocket createServer() throws Exception {
-		return new ServerSocket(0);
+		ServerSocket server = new ServerSocket();
+		try {
+			if(getAccepters() > 1)
+				server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			server.bind(new InetSocketAddress(0), getBacklog());
+		}
+		catch(Exception exception) {
+			server.close();
+			throw exception;
+		}
+		return server;
+	}
+	
+	/**
+	 * Creates another server socket which listens on the same address as the
+	 * one returned by {@link #createServer()}, so that it can accept new
+	 * connections at the same time. This method is called once at the start
+	 * of {@link #run()} for each {@link #getAccepters() accepter} after the
+	 * first.
+	 * <p>
+	 * By default, this method creates a {@link ServerSocket}, or the server
+	 * socket of a {@link ServerSocketChannel} if the first one has a channel,
+	 * sets its {@link StandardSocketOptions#SO_REUSEPORT SO_REUSEPORT} option,
+	 * and binds it to the first one's address with the {@link #getBacklog()
+	 * backlog}.
+	 * <p>
+	 * Overriding this method allows the new server socket to be configured
+	 * the same way as the first one.
+	 * 
+	 * @param server the server socket returned by {@link #createServer()}
+	 * @return a new server socket bound to the same address
+	 * @throws Exception if an exception occurs while creating or binding the
+	 * server socket, for example because the operating system does not
+	 * support {@link StandardSocketOptions#SO_REUSEPORT SO_REUSEPORT}
+	 */
+	protected ServerSocket createServer(ServerSocket server) throws Exception {
+		if(!(server.getLocalSocketAddress() instanceof InetSocketAddress))
+			throw new IllegalStateException("Several accepters require a server socket bound to an internet address.");
+		ServerSocket other = server.getChannel() == null ? new ServerSocket() : ServerSocketChannel.open().socket();
+		try {
+			other.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			other.bind(server.getLocalSocketAddress(), getBacklog());
+		}
+		catch(Exception exception) {
+			other.close();
+			throw exception;
+		}
+		return other;
+	}
+	
+	/**
+	 * Returns the number of accepters this server should use, each of which
+	 * accepts new connections from its own server socket. This method is
+	 * called at the start of {@link #run()}, during and after {@link
+	 * #createServer()}.
+	 * <p>
+	 * By default, this method returns 1, meaning that the server accepts all
+	 * of its connections from the one server socket returned by {@link
+	 * #createServer()}.
+	 * <p>
+	 * When thousands of clients connect at once, for example when they all
+	 * reconnect after the server restarts, a single accepter and its listen
+	 * queue can become a bottleneck. If this method returns a larger number,
+	 * the server will create that many server sockets, all bound to the same
+	 * address with the {@link StandardSocketOptions#SO_REUSEPORT SO_REUSEPORT}
+	 * option, which allows the operating system to divide new connections
+	 * among them. The first is returned by {@link #createServer()}, which must
+	 * set that option before binding, as it does by default, and the others
+	 * are created by {@link #createServer(ServerSocket)}. Each server socket
+	 * has its own accepter thread, or, if the server uses {@link
+	 * #getSelectorThreads() selector threads}, the server sockets are divided
+	 * among them. Every accepted socket still connects on the main thread.
+	 * <p>
+	 * Not every operating system supports this option; Linux does. A shard
+	 * of a {@link SerialServerGroup} does not call this method, since the
+	 * group accepts connections for it.
+	 * 
+	 * @return the number of accepters, which must be at least 1
+	 */
+	protected int getAccepters() {
+		return 1;
+	}
+	
+	/**
+	 * Returns the maximum number of connections which can wait in a server
+	 * socket's queue until they are accepted. Connections which arrive while
+	 * the queue is full may be refused or delayed by the operating system.
+	 * This method is called by the default {@link #createServer()} and {@link
+	 * #createServer(ServerSocket)} when they bind their server sockets.
+	 * <p>
+	 * By default, this method returns 0, meaning that the default size of 50
+	 * is used. A server which expects many clients to connect at once may
+	 * need a larger queue. The operating system may limit the size further.
+	 * 
+	 * @return the size of the queue, or 0 for the default size
+	 */
+	protected int getBacklog() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the number of selector threads this server should use to accept
+	 * new connections and read input from its sockets. This method is called
+	 * once at the start of {@link #run()}, after {@link #createServer()}.
+	 * <p>
+	 * By default, this method returns 0, meaning that the server starts one
+	 * thread to accept new connections and one thread per socket to read its
+	 * input. This is simple, but each thread has its own stack, so a server
+	 * with many thousands of sockets will use a lot of memory and spend a lot
+	 * of time switching between threads.
+	 * <p>
+	 * If this method returns a positive number, the server will instead use a
+	 * {@link java.nio.channels.Selector Selector} on that many threads to wait
+	 * for new connections and input from all of its sockets at once. Sockets
+	 * are divided among the selector threads, and one of them also accepts new
+	 * connections, or, if there are {@link #getAccepters() several
+	 * accepters}, their server sockets are divided among the threads too. All
+	 * events still happen on the main thread and in the same order. In this
+	 * case, {@link #createServer()} must return the {@link
+	 * ServerSocketChannel#socket() server socket of a ServerSocketChannel},
+	 * for example:
+	 * <p>
+	 * <code>ServerSocketChannel channel = ServerSocketChannel.open();<br>
+	 * channel.bind(new InetSocketAddress(port));<br>
+	 * return channel.socket();</code>
+	 * <p>
+	 * A {@link UnixServerSocket} also has a channel, so it can be used with
+	 * selector threads too.
+	 * <p>
+	 * When selector threads are used, {@link #accept(ServerSocket)} is not
+	 * called. Input is read from each socket's channel, and output is written
+	 * to the channel by the same selector thread.
+	 * 
+	 * @return the number of selector threads, or 0 to use one thread per
+	 * socket
+	 */
+	protected int getSelectorThreads() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the number of setup threads this server should use to {@link
+	 * #prepare(Socket) prepare} new sockets before they are created on the
+	 * main thread. This method is called once at the start of {@link #run()},
+	 * after {@link #createServer()}.
+	 * <p>
+	 * By default, this method returns 0, meaning that each new socket is
+	 * prepared on the main thread just before {@link #createSocket(Socket)} is
+	 * called. This is fine as long as preparing a socket is quick, which it is
+	 * by default.
+	 * <p>
+	 * If this method returns a positive number, new sockets are prepared on a
+	 * pool of that many threads, which are created by {@link
+	 * #createThread(Runnable)}. Many sockets can then be prepared at once, and
+	 * the main thread only creates each socket once it is ready, so a burst
+	 * of new connections which each need slow setup, such as a handshake or a
+	 * lookup, does not delay other events. Sockets are still created, and
+	 * their {@link SerialSocket#onConnect() onConnect} methods called, on the
+	 * main thread, but the order in which sockets connect may differ from the
+	 * order in which they were accepted.
+	 * 
+	 * @return the number of setup threads, or 0 to prepare sockets on the
+	 * main thread
+	 */
+	protected int getSetupThreads() {
+		return 0;
 	}
 	
 	/**
@@ -215,9 +1223,17 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * <p>
 	 * Overriding this method allows the server to customize how it accepts
 	 * sockets or to perform additional checks on a socket before it is used.
-	 * For example, if this server is using {@link javax.net.ssl.SSLServerSocket
-	 * secure sockets}, this method can check that the handshake was successful
-	 * before returning the socket.
+	 * For example, it can check the address of a socket and close it rather
+	 * than returning it.
+	 * <p>
+	 * This method runs on the thread which accepts sockets, so it should not
+	 * block for long after the socket is accepted. In particular, if this
+	 * server is using {@link javax.net.ssl.SSLServerSocket secure sockets},
+	 * this method should not call {@link javax.net.ssl.SSLSocket#startHandshake()},
+	 * since a slow or malicious client would stop every other socket from
+	 * being accepted. The handshake can be completed by {@link
+	 * #prepare(Socket)} on a setup thread, or it happens on its own the first
+	 * time the socket's listener thread reads from it.
 	 * 
 	 * @param server the server socket returned by {@link #createServer()} which
 	 * should be used to accept a new socket
@@ -228,6 +1244,40 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 		return server.accept();
 	}
 	
+	/**
+	 * Prepares a {@link Socket} which was just accepted by this server before
+	 * a {@link SerialSocket} is created for it. If the server has {@link
+	 * #getSetupThreads() setup threads}, this method is called on one of
+	 * them, and it can take as long as it needs without delaying the main
+	 * thread; otherwise, it is called on the main thread.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return socket;</code>
+	 * <p>
+	 * Overriding this method allows slow, per-connection work to be done
+	 * before the socket connects. For example, it can set socket options, look
+	 * up whether the client's address is allowed, or, if the server uses one
+	 * thread per socket, wrap the socket in an {@link javax.net.ssl.SSLSocket}
+	 * and complete its handshake. If the server uses {@link
+	 * #getSelectorThreads() selector threads}, the socket must be returned
+	 * unchanged or replaced by one with the same channel, which is still in
+	 * blocking mode while this method runs.
+	 * <p>
+	 * Returning null rejects the socket, which is then closed. If this method
+	 * throws an {@link IOException}, such as because the client disconnected
+	 * or failed its handshake, the socket is closed without reporting the
+	 * exception. Any other exception is an uncaught exception.
+	 * 
+	 * @param socket the accepted socket
+	 * @return the socket to pass to {@link #createSocket(Socket)}, or null to
+	 * reject the connection
+	 * @throws Exception if an exception occurs while preparing the socket
+	 */
+	protected Socket prepare(Socket socket) throws Exception {
+		return socket;
+	}
+	
 	/**
 	 * Create an instance of {@link SerialSocket} from a {@link Socket} accepted
 	 * by this server.
@@ -237,8 +1287,12 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * <code>return new SerialSocket(this, socket);</code>
 	 * <p>
 	 * Overriding this method allows the socket to be configured. For example,
-	 * a subclass of {@link SerialSocket} can be returned, or an {@link
-	 * javax.net.ssl.SSLSocket} can perform its handshake.
+	 * a subclass of {@link SerialSocket} can be returned.
+	 * <p>
+	 * This method runs on the main thread, so it should not block. Slow setup,
+	 * such as an {@link javax.net.ssl.SSLSocket}'s handshake, belongs in
+	 * {@link #prepare(Socket)} instead; see also {@link
+	 * #createSSLEngine(Socket)}.
 	 * 
 	 * @param socket the socket to used when creating a {@link SerialSocket}
 	 * @return an instance of {@link SerialSocket}
@@ -249,6 +1303,79 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 		return new SerialSocket(this, socket);
 	}
 	
+	/**
+	 * Creates an {@link SSLEngine} to encrypt the input and output of a new
+	 * socket, or returns null if the socket does not use TLS. This method is
+	 * called on the main thread when each new {@link SerialSocket} is
+	 * constructed, but only when the server {@link #getSelectorThreads() uses
+	 * selector threads}.
+	 * <p>
+	 * By default, this method returns null, meaning sockets send and receive
+	 * plain text.
+	 * <p>
+	 * Overriding this method allows a server using selector threads to accept
+	 * TLS connections on an ordinary {@link ServerSocketChannel}, for example:
+	 * <p>
+	 * <code>return context.createSSLEngine();</code>
+	 * <p>
+	 * where <code>context</code> is an {@link javax.net.ssl.SSLContext} which
+	 * was initialized once with the server's keys. The engine is put in server
+	 * mode, and it can be configured further before it is returned, such as
+	 * by requiring client authentication.
+	 * <p>
+	 * Creating an engine is cheap. The handshake, and the decryption and
+	 * encryption of every record afterward, are performed by the socket's
+	 * selector thread without blocking, so a client which is slow to finish
+	 * its handshake does not delay the main thread or any other socket.
+	 * Output which is sent before the handshake has finished waits in the
+	 * socket's queue. Input is decrypted and then split into lines as usual,
+	 * so {@link SerialSocket#receive(String)} still receives lines in order.
+	 * If the handshake fails, the socket is closed.
+	 * <p>
+	 * Sockets which use {@link javax.net.ssl.SSLServerSocket} without selector
+	 * threads do not use this method; they perform their handshakes on their
+	 * own listener threads.
+	 * 
+	 * @param socket the socket which was accepted
+	 * @return an engine for the socket, or null if it does not use TLS
+	 * @throws Exception if an exception occurs while creating the engine
+	 */
+	protected SSLEngine createSSLEngine(Socket socket) throws Exception {
+		return null;
+	}
+	
+	/**
+	 * Creates the {@link Framing framing} which divides a new socket's input
+	 * into messages and marks the end of each message it sends. This method
+	 * is called on the main thread when each new {@link SerialSocket} is
+	 * constructed, and it must return a new framing each time.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return Framing.lines();</code>
+	 * <p>
+	 * Overriding this method allows a server to limit how long a line from an
+	 * untrusted client may be, for example:
+	 * <p>
+	 * <code>return Framing.lines(64 * 1024);</code>
+	 * <p>
+	 * It also allows a server to exchange binary messages without encoding
+	 * them as text, for example:
+	 * <p>
+	 * <code>return Framing.lengthPrefixed(1024 * 1024);</code>
+	 * <p>
+	 * Either way, each message is {@link SerialSocket#receive(ByteBuffer)
+	 * received} on the main thread, in order, and the socket's other events
+	 * happen the same way. Different sockets can use different framings.
+	 * 
+	 * @param socket the socket which was accepted
+	 * @return a new framing for the socket
+	 * @throws Exception if an exception occurs while creating the framing
+	 */
+	protected Framing createFraming(Socket socket) throws Exception {
+		return Framing.lines();
+	}
+	
 	/**
 	 * Creates an instance of {@link BufferedReader} to read from a {@link
 	 * Socket}.
@@ -264,7 +1391,14 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * @param socket the socket whose input should be read from
 	 * @return a {@link BufferedReader} on the socket's input
 	 * @throws Exception if an exception occurs while creating the reader
+	 * @deprecated This method is no longer called. Each socket now reads bytes
+	 * directly from {@link Socket#getInputStream() the socket's input stream}
+	 * into a reusable buffer and splits them into lines on the main thread;
+	 * see {@link SerialSocket#receive(ByteBuffer)}. To limit the amount of
+	 * input buffered for one line, override {@link #createFraming(Socket)} to
+	 * return {@link Framing#lines(int)} with a maximum line length.
 	 */
+	@Deprecated
 	protected BufferedReader createReader(Socket socket) throws Exception {
 		return new BufferedReader(new InputStreamReader(socket.getInputStream()));
 	}
@@ -283,11 +1417,217 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * @param socket the socket whose output should be written to
 	 * @return a {@link BufferedWriter} for the socket's output
 	 * @throws Exception if an exception occurs while creating the writer
+	 * @deprecated This method is no longer called. {@link
+	 * SerialSocket#send(String)} now encodes each message and adds it to a
+	 * queue of bytes which is written to {@link Socket#getOutputStream() the
+	 * socket's output stream} by another thread.
 	 */
+	@Deprecated
 	protected BufferedWriter createWriter(Socket socket) throws Exception {
 		return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 	}
 	
+	/**
+	 * Returns whether the output of sockets should be flushed once at the end
+	 * of each batch of operations rather than each time a message is sent.
+	 * This method is called once at the start of {@link #run()}, after {@link
+	 * #createServer()}.
+	 * <p>
+	 * By default, this method returns false, meaning that each message {@link
+	 * SerialSocket#send(String) sent} from the main thread is written to its
+	 * socket as soon as possible.
+	 * <p>
+	 * If this method returns true, messages sent from the main thread are kept
+	 * in each socket's queue, and the socket is remembered. At the end of each
+	 * {@link #getBatchSize() batch} of operations, which ends when there are
+	 * no more operations waiting to run on the main thread or when the batch
+	 * is full, the output of every remembered socket is flushed once.
+	 * This allows many small messages, such as those sent when broadcasting to
+	 * every socket, to be written to the network together, which reduces the
+	 * number of system calls and packets. Messages sent from other threads are
+	 * always flushed immediately.
+	 * 
+	 * @return true if flushing should be deferred until the end of each batch
+	 */
+	protected boolean isFlushDeferred() {
+		return false;
+	}
+	
+	/**
+	 * Returns the maximum number of operations that will run on the main
+	 * thread as one batch. This method is called once at the start of {@link
+	 * #run()}, after {@link #createServer()}.
+	 * <p>
+	 * The main thread takes operations from its queue in batches: it removes
+	 * as many as are waiting, up to this number, all at once, then runs them
+	 * one after another. After each batch, {@link #onBatch(int)} is called,
+	 * and if the server {@link #isFlushDeferred() defers flushing}, the output
+	 * of sockets which sent messages during the batch is flushed. A larger
+	 * batch means the cost of taking operations from the queue and of
+	 * flushing output is paid less often when the server is busy, but
+	 * output may wait longer before it is flushed.
+	 * <p>
+	 * By default, this method returns 256.
+	 * 
+	 * @return the maximum number of operations in a batch, which must be at
+	 * least 1
+	 */
+	protected int getBatchSize() {
+		return 256;
+	}
+	
+	/**
+	 * Creates the {@link ServerMetrics metrics} this server will record, or
+	 * returns null if it should not keep metrics. This method is called once
+	 * at the start of {@link #run()}, after {@link #createServer()}.
+	 * <p>
+	 * When a server keeps metrics, it records how many operations were
+	 * waiting each time the main thread took a batch, and how long each
+	 * operation waited and ran, by {@link EventType type}. This shows how far
+	 * behind the main thread is and which events are slowing it down.
+	 * Operations which were added before the server started are not timed.
+	 * <p>
+	 * By default, this method returns null, so nothing is recorded and the
+	 * server does no extra work. Overriding it to return {@code new
+	 * ServerMetrics()} turns metrics on, and they can be read with {@link
+	 * #getMetrics()}.
+	 * 
+	 * @return the metrics to record, or null
+	 */
+	protected ServerMetrics createMetrics() {
+		return null;
+	}
+	
+	/**
+	 * Returns the number of bytes of input one socket can receive on the main
+	 * thread before the operations which are waiting behind it get a turn.
+	 * This method is called once at the start of {@link #run()}, after {@link
+	 * #createServer()}.
+	 * <p>
+	 * Operations run on the main thread in the order they were added, and by
+	 * default, each time a socket reads input, all of the lines in it are
+	 * {@link SerialSocket#receive(String) received} one after another. A
+	 * client which sends many lines at once can therefore make every other
+	 * socket wait while its lines are received. If this method returns a
+	 * positive number, sockets instead take turns using deficit round-robin
+	 * scheduling: a socket receives lines until it has received about this
+	 * many bytes, then the rest of its input waits at the end of the queue
+	 * while other operations run. A line is never split, and a socket which
+	 * receives a line longer than its share gets a shorter turn next time, so
+	 * over time every busy socket receives the same number of bytes. The lines
+	 * from each socket are still received in order, and a socket does not read
+	 * more input until all of the lines it has already read are received.
+	 * <p>
+	 * A smaller number means that no socket waits long behind a busy one, at
+	 * the cost of more trips through the queue.
+	 * <p>
+	 * By default, this method returns 0, meaning all of the lines a socket
+	 * reads at once are received together.
+	 * 
+	 * @return the number of bytes a socket can receive in one turn, or 0 if
+	 * there is no limit
+	 */
+	protected int getInputQuantum() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the number of operations waiting in the event queue at which
+	 * sockets should stop reading input. This method is called once at the
+	 * start of {@link #run()}, after {@link #createServer()}.
+	 * <p>
+	 * Each socket only reads more input once the main thread has split the
+	 * input it already read into lines, so no socket can have more than one
+	 * read waiting on the main thread. But when there are many busy sockets,
+	 * or other threads are also {@link #execute(CheckedRunnable) adding
+	 * operations}, the main thread can still fall behind. If this method
+	 * returns a positive number, the main thread checks the length of its
+	 * queue after each batch, and once it reaches this number, each socket
+	 * stops reading as soon as it has delivered the input it has already
+	 * read. While a socket is not reading, the operating system's buffers
+	 * fill up and the client is eventually made to wait before it can send
+	 * more, so a server which cannot keep up slows its clients down rather
+	 * than running out of memory. Once the queue has shrunk to {@link
+	 * #getResumeQueuedEvents()}, every socket starts reading again. A socket
+	 * which is not reading does not {@link SerialSocket#getReadTimeout() time
+	 * out} for lack of input.
+	 * <p>
+	 * This only works with an {@link EventQueue} which reports its {@link
+	 * EventQueue#size() size}, as both {@link RingEventQueue} and {@link
+	 * LinkedEventQueue} do.
+	 * <p>
+	 * By default, this method returns 0, meaning sockets always read input as
+	 * fast as their clients send it.
+	 * 
+	 * @return the number of waiting operations at which sockets stop reading,
+	 * or 0 if they never should
+	 */
+	protected int getMaxQueuedEvents() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the number of operations waiting in the event queue at which
+	 * sockets which stopped reading because of {@link #getMaxQueuedEvents()}
+	 * should start reading again. This method is called once at the start of
+	 * {@link #run()}, after {@link #createServer()}, and it is ignored if
+	 * there is no maximum. Leaving a gap between the two numbers prevents
+	 * sockets from stopping and starting after every batch when the server is
+	 * close to its limit.
+	 * <p>
+	 * By default, this method returns half of {@link #getMaxQueuedEvents()}.
+	 * 
+	 * @return the number of waiting operations at which sockets start reading
+	 * again, which must be less than the maximum
+	 */
+	protected int getResumeQueuedEvents() {
+		return getMaxQueuedEvents() / 2;
+	}
+	
+	/**
+	 * Creates a new thread, but does not start it. This method is called on
+	 * the main thread to create the thread which {@link #accept(ServerSocket)
+	 * accepts} new connections and the thread which reads input for each new
+	 * {@link SerialSocket}. It is also used to create the pool of threads which
+	 * write each socket's queued output, in which case it may be called from
+	 * whichever thread {@link SerialSocket#send(String) sent} the output, and
+	 * to create the {@link #getSelectorThreads() selector threads}, if there
+	 * are any.
+	 * <p>
+	 * By default, this method is equivalent to:
+	 * <p>
+	 * <code>return new Thread(runnable);</code>
+	 * <p>
+	 * Overriding this method allows the threads to be configured. For example,
+	 * they could be given names or made daemon threads. On Java 21 or later,
+	 * this method can return {@link #createVirtualThread(Runnable) a virtual
+	 * thread}. A virtual thread which is blocked waiting for input costs only a
+	 * small amount of memory rather than a whole operating system thread, so a
+	 * server can handle many more sockets at once.
+	 * 
+	 * @param runnable the operation the new thread should run
+	 * @return a new thread which has not been started
+	 */
+	protected Thread createThread(Runnable runnable) {
+		return new Thread(runnable);
+	}
+	
+	/**
+	 * Creates a new virtual thread, but does not start it. This method can be
+	 * used to implement {@link #createThread(Runnable)}. Because this project
+	 * is compiled for Java 17, this method works without needing to compile the
+	 * server for Java 21, but it can only create virtual threads when running
+	 * on Java 21 or later.
+	 * 
+	 * @param runnable the operation the new thread should run
+	 * @return a new virtual thread which has not been started
+	 * @throws UnsupportedOperationException if the current Java runtime does
+	 * not support virtual threads
+	 */
+	protected static Thread createVirtualThread(Runnable runnable) {
+		return VirtualThreads.create(runnable);
+	}
+	
 	/**
 	 * Returns the {@link ServerSocket} this server is using, or throws an
 	 * exception if it has not yet been bound.
@@ -303,6 +1643,84 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 			return server;
 	}
 	
+	/**
+	 * Returns the {@link ServerMetrics metrics} this server records, or null
+	 * if it does not keep metrics. Metrics should only be read on the main
+	 * thread.
+	 * 
+	 * @return the metrics, or null
+	 */
+	protected ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Returns the sockets which are currently connected to this server, in the
+	 * order they connected. A socket is added just before {@link
+	 * SerialSocket#onConnect()} and removed just before {@link
+	 * SerialSocket#onDisconnect()}. The registry can find a socket by its
+	 * {@link SerialSocket#getId() id} and can be passed to {@link
+	 * #broadcast(Iterable, String)}. It should only be used on the main thread
+	 * and should not be modified.
+	 * 
+	 * @return the open sockets
+	 */
+	protected SocketRegistry<SerialSocket> getSockets() {
+		return sockets;
+	}
+	
+	/**
+	 * Returns the {@link SerialServerGroup group} this server is a shard of,
+	 * or null if it is not part of a group and accepts its own connections.
+	 * A shard can use its group to run operations on other shards, for
+	 * example to {@link SerialServerGroup#broadcast(String) broadcast} a
+	 * message to every socket in the group.
+	 * 
+	 * @return the group, or null
+	 */
+	protected SerialServerGroup getGroup() {
+		return group;
+	}
+	
+	/**
+	 * Returns an {@link SerialSocket#getId() id} which no open socket has,
+	 * reusing the ids of sockets which have disconnected first so that ids stay
+	 * small. This is only called on the main thread.
+	 * 
+	 * @return a free id
+	 */
+	final int allocateId() {
+		if(freeCount > 0)
+			return freeIds[--freeCount];
+		else
+			return nextId++;
+	}
+	
+	/**
+	 * Allows the id of a socket which has disconnected to be given to a new
+	 * socket. This is only called on the main thread.
+	 * 
+	 * @param id the id which is no longer used
+	 */
+	final void releaseId(int id) {
+		if(freeCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		freeIds[freeCount++] = id;
+	}
+	
+	/**
+	 * Returns the current time, which scheduled tasks and socket timeouts are
+	 * measured against. This is {@link System#nanoTime()}, unless the server
+	 * is being run by a {@link Simulation}, in which case it is the
+	 * simulation's virtual time.
+	 * 
+	 * @return the current time, in nanoseconds
+	 */
+	final long now() {
+		Simulation simulation = this.simulation;
+		return simulation == null ? System.nanoTime() : simulation.time;
+	}
+	
 	/**
 	 * Runs an an operation on the main thread which called {@link #run()}.
 	 * This method can be used when an operation needs to run on the same thread
@@ -311,7 +1729,172 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	 * @param runnable an operation to fun on the main thread
 	 */
 	protected void execute(CheckedRunnable runnable) {
-		queue.add(runnable);
+		execute(EventType.TASK, runnable);
+	}
+	
+	/**
+	 * Runs an operation on the main thread, timing it as the given type of
+	 * operation if the server {@link #createMetrics() keeps metrics}.
+	 * 
+	 * @param type the type of operation
+	 * @param runnable an operation to run on the main thread
+	 */
+	final void execute(EventType type, CheckedRunnable runnable) {
+		ServerMetrics metrics = this.metrics;
+		if(metrics == null)
+			queue.add(runnable);
+		else
+			queue.add(new TimedEvent(metrics, type, runnable));
+	}
+	
+	/**
+	 * Runs an operation on the main thread once, after a delay. This can be
+	 * used for timeouts, or for anything else which should happen later
+	 * without starting a thread that sleeps and then calls {@link
+	 * #execute(CheckedRunnable)}.
+	 * <p>
+	 * Scheduled tasks are checked by the main thread between batches of other
+	 * operations, at a resolution of {@value #TIMER_TICK_MILLIS} milliseconds,
+	 * so a task never runs early but may run a little late. Adding and
+	 * {@link ScheduledTask#cancel() cancelling} a task take the same amount of
+	 * time no matter how many tasks are scheduled, so a server can easily
+	 * schedule one or more per socket. Scheduled tasks stop running once the
+	 * server has closed. If a task throws an exception, it is handled like
+	 * any other uncaught exception on the main thread.
+	 * <p>
+	 * It is safe to call this method from any thread; it does not need to be
+	 * called from the main thread.
+	 * 
+	 * @param delay how long to wait before running the operation
+	 * @param runnable the operation to run
+	 * @return the scheduled task, which can be used to cancel it
+	 */
+	protected ScheduledTask schedule(Duration delay, CheckedRunnable runnable) {
+		return schedule(delay.toNanos(), 0, runnable);
+	}
+	
+	/**
+	 * Runs an operation on the main thread repeatedly, first after one period
+	 * has passed and then once per period, until it is {@link
+	 * ScheduledTask#cancel() cancelled} or the server closes. This can be
+	 * used for a regular tick or status check. The operation is scheduled at
+	 * a fixed rate, so if one run is late, the next run is not delayed.
+	 * <p>
+	 * Scheduled tasks work as described in {@link #schedule(Duration,
+	 * CheckedRunnable)}. It is safe to call this method from any thread; it
+	 * does not need to be called from the main thread.
+	 * 
+	 * @param period the time between runs
+	 * @param runnable the operation to run
+	 * @return the scheduled task, which can be used to cancel it
+	 * @throws IllegalArgumentException if the period is not positive
+	 */
+	protected ScheduledTask scheduleAtFixedRate(Duration period, CheckedRunnable runnable) {
+		long nanos = period.toNanos();
+		if(nanos <= 0)
+			throw new IllegalArgumentException("The period must be positive.");
+		return schedule(nanos, nanos, runnable);
+	}
+	
+	/**
+	 * Creates a scheduled task and adds it to the timer wheel on the main
+	 * thread.
+	 * 
+	 * @param delay the number of nanoseconds until the task first runs
+	 * @param period the number of nanoseconds between runs, or 0 if the task
+	 * only runs once
+	 * @param runnable the operation to run
+	 * @return the scheduled task
+	 */
+	final ScheduledTask schedule(long delay, long period, CheckedRunnable runnable) {
+		Objects.requireNonNull(runnable);
+		ScheduledTask task = new ScheduledTask(this, runnable, now() + Math.max(0, delay), period);
+		if(Thread.currentThread() == thread)
+			timers.add(task);
+		else {
+			execute(() -> {
+				if(!task.isCancelled())
+					timers.add(task);
+			});
+		}
+		return task;
+	}
+	
+	/**
+	 * Schedules a task which has already run to run once more after a delay.
+	 * This method must be called on the main thread, and it does not create
+	 * any objects.
+	 * 
+	 * @param task the task
+	 * @param delay the number of nanoseconds until the task runs
+	 */
+	final void reschedule(ScheduledTask task, long delay) {
+		if(task.isCancelled())
+			return;
+		timers.remove(task);
+		task.deadline = now() + Math.max(0, delay);
+		timers.add(task);
+	}
+	
+	/**
+	 * Removes a cancelled task from the timer wheel on the main thread.
+	 * 
+	 * @param task the cancelled task
+	 */
+	final void cancel(ScheduledTask task) {
+		if(Thread.currentThread() == thread)
+			timers.remove(task);
+		else
+			execute(() -> timers.remove(task));
+	}
+	
+	/**
+	 * Sends a message to every socket which is currently connected to this
+	 * server. The message is encoded only once, and every socket shares the
+	 * same bytes. This is equivalent to calling {@link
+	 * #broadcast(Iterable, String)} with every socket that has {@link
+	 * SerialSocket#onConnect() connected} and not yet {@link
+	 * SerialSocket#onDisconnect() disconnected}.
+	 * <p>
+	 * This method should only be called on the main thread.
+	 * 
+	 * @param message the message to send
+	 */
+	protected void broadcast(String message) {
+		broadcast(sockets, message);
+	}
+	
+	/**
+	 * Sends the same message to many sockets. Calling {@link
+	 * SerialSocket#send(String)} for each socket would encode the message
+	 * again for each one; instead, this method encodes the message once,
+	 * including the new line character at the end, and then sends the same
+	 * read-only bytes to every socket, each in its own {@link
+	 * #createFraming(Socket) framing}.
+	 * <p>
+	 * A socket whose framing cannot carry a message this long, such as a
+	 * {@link Framing#lengthPrefixed(int) length-prefixed framing} with a
+	 * smaller maximum length, is skipped, so the message still reaches every
+	 * other socket and no exception is thrown.
+	 * 
+	 * @param sockets the sockets to send the message to
+	 * @param message the message to send
+	 */
+	protected void broadcast(Iterable<? extends SerialSocket> sockets, String message) {
+		broadcast(sockets, SerialSocket.encode(message));
+	}
+	
+	/**
+	 * Sends the same encoded message to many sockets, which share its bytes.
+	 * Sockets whose framing cannot carry the message are skipped.
+	 * 
+	 * @param sockets the sockets to send the message to
+	 * @param bytes the encoded message
+	 */
+	final void broadcast(Iterable<? extends SerialSocket> sockets, ByteBuffer bytes) {
+		for(SerialSocket socket : sockets)
+			if(socket.framing.fits(bytes))
+				socket.framing.sendText(socket, bytes);
 	}
 	
 	/**
@@ -327,6 +1910,24 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 		// This method is meant to be overridden.
 	}
 	
+	/**
+	 * This method runs on the main thread after each {@link #getBatchSize()
+	 * batch} of operations has run, just before the output of sockets which
+	 * sent messages during the batch is {@link #isFlushDeferred() flushed}. A
+	 * batch ends when there are no more operations waiting or when it is full,
+	 * so this method provides an opportunity to do work once for many events
+	 * rather than once for each one, such as recording statistics or sending
+	 * a combined update to clients.
+	 * <p>
+	 * By default, this method does nothing. It is meant to be overridden.
+	 * 
+	 * @param size the number of operations which ran in the batch
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void onBatch(int size) throws Exception {
+		// This method is meant to be overridden.
+	}
+	
 	/**
 	 * This method runs on the main thread when an uncaught exception is thrown
 	 * on the main thread. This method runs immediately after the exception is
@@ -410,6 +2011,36 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 		call(runnable);
 	}
 	
+	/**
+	 * Decodes a line of input into characters. The buffer's position is not
+	 * changed. This method is only called on the main thread, and the
+	 * characters it returns are only valid until it is called again.
+	 * 
+	 * @param bytes the bytes of the line
+	 * @return the decoded characters
+	 */
+	final CharBuffer decode(ByteBuffer bytes) {
+		int position = bytes.position();
+		decoder.reset();
+		chars.clear();
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if(!result.isOverflow())
+			result = decoder.flush(chars);
+		while(result.isOverflow()) {
+			// The line is too long, so make the buffer bigger and continue.
+			CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+			chars.flip();
+			bigger.put(chars);
+			chars = bigger;
+			result = decoder.decode(bytes, chars, true);
+			if(!result.isOverflow())
+				result = decoder.flush(chars);
+		}
+		bytes.position(position);
+		chars.flip();
+		return chars;
+	}
+	
 	/**
 	 * This method should be called with each uncaught exception that is thrown
 	 * on the main thread. The first time it is called, it stores the exception
@@ -421,6 +2052,7 @@ public class SerialServerSocket implements CheckedRunnable, AutoCloseable {
 	final void fail(Exception exception) {
 		if(uncaught == null)
 			uncaught = exception;
+		FlightEvents.failed(-1, exception);
 		try {
 			onException(exception);
 		}
@@ -1,12 +1,21 @@
 package com.sgware.serialsoc;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLEngine;
 
 /**
  * A wrapper around {@link Socket} that listens for lines of input and ensures
@@ -18,18 +27,15 @@ import java.util.Objects;
  * SerialServerSocket#run()}:
  * <ul>
  * <li>{@link SerialSocket#SerialSocket(SerialServerSocket, Socket)
- * SerialSocket's constructor} is called on that thread. In the constructor,
- * {@link SerialServerSocket#createReader(Socket)} will be called to open a
- * {@link BufferedReader} on {@link Socket#getInputStream() the socekt's input
- * stream}, and {@link SerialServerSocket#createWriter(Socket)} will be called
- * to open a {@link BufferedWriter} on {@link Socket#getOutputStream() the
- * socekt's output stream}. If the constructor throws an exception, no other
- * events will happen for this socket.</li>
+ * SerialSocket's constructor} is called on that thread. If the constructor
+ * throws an exception, no other events will happen for this socket.</li>
  * <li>{@link #onConnect()} is called exactly once and before any other events.
  * </li>
- * <li>Each time this socket {@link java.io.BufferedReader#readLine() receives a
- * line of input}, its {@link #receive(String) receive} method is called with
- * that input as a string.</li>
+ * <li>Each time this socket receives a line of input, its {@link
+ * #receive(ByteBuffer) receive} method is called with the bytes of that line.
+ * By default, those bytes are decoded and passed to {@link
+ * #receive(CharSequence)}, which by default passes them to {@link
+ * #receive(String)} as a string.</li>
  * <li>When this socket is closed, either because {@link #close()} was called or
  * because the client closed the connection, {@link #onClose() onClose} is
  * called exactly once. If the socket is still open, this event provides an
@@ -42,6 +48,26 @@ import java.util.Objects;
  * {@link #onException(Exception) onException} is called and the socket will
  * close.</li>
  * </ul>
+ * <p>
+ * Input is split into lines the same way {@link
+ * java.io.BufferedReader#readLine()} would, but the lines are found by scanning
+ * the raw bytes in a buffer which is reused for the life of the socket. A
+ * socket which overrides {@link #receive(ByteBuffer)} or {@link
+ * #receive(CharSequence)} can handle its input without creating any objects for
+ * each line.
+ * <p>
+ * A socket can be given a {@link #getReadTimeout() read timeout} or an {@link
+ * #getIdleTimeout() idle timeout} so that a client which has stopped responding
+ * is eventually closed. Timeouts are checked by the server's {@link
+ * SerialServerSocket#schedule(Duration, CheckedRunnable) timer}, with one
+ * scheduled task per socket, so they do not need any extra threads.
+ * <p>
+ * By default, each serial socket reads its input on its own thread, which is
+ * created by {@link SerialServerSocket#createThread(Runnable)}. If the server
+ * is using {@link SerialServerSocket#getSelectorThreads() selector threads},
+ * this socket does not have its own thread. Instead, its
+ * input is read by one of the server's selector threads, but all of the events
+ * above still happen on the main thread and in the same order.
  * 
  * @author Stephen G. Ware
  * @version 1
@@ -49,46 +75,473 @@ import java.util.Objects;
 public class SerialSocket implements Closeable {
 	
 	/**
-	 * A thread that performs all of the socket's events in order and on the
-	 * sever thread.
+	 * Reads the socket's input on its own thread and performs all of the
+	 * socket's events in order and on the sever thread.
 	 */
-	final class Listener extends Thread {
+	final class Listener implements Runnable {
+		
+		/**
+		 * A flag indicating that input has been read and is waiting to be split
+		 * into lines on the main thread. This listener does not read any more
+		 * input until that has happened.
+		 */
+		private volatile boolean pending = false;
+		
+		/**
+		 * A flag indicating that the main thread is waiting for this listener
+		 * to finish, so it should stop reading input.
+		 */
+		private volatile boolean stopping = false;
 		
 		@Override
 		public void run() {
 			// Add this socket to the server's list of open connections and
 			// ensure onConnect is called.
-			server.execute(() -> {
-				server.sockets.add(SerialSocket.this);
-				onConnect();
-			});
+			server.execute(EventType.CONNECT, () -> connected());
 			// Run until closed or an exception is thrown.
+			boolean failed = false;
 			try {
-				while(!closed) {			
-					String line = input.readLine();
-					if(line == null)
+				InputStream input = socket.getInputStream();
+				while(!closed && !stopping) {
+					ByteBuffer buffer = framing.buffer();
+					int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					if(read < 0) {
+						// Like BufferedReader.readLine(), report a final line
+						// which has no line break at the end of the input.
+						server.execute(EventType.RECEIVE, () -> framing.finish(SerialSocket.this));
 						break;
-					else
-						server.execute(() -> receive(line));
+					}
+					buffer.position(buffer.position() + read);
+					// Wait until the main thread is done with the buffer.
+					pending = true;
+					deliverLater();
+					while(pending && !stopping)
+						LockSupport.park(this);
 				}
 			}
 			catch(Exception exception) {
+				failed = true;
 				// If the exception was caused by the socket closing, ignore it;
-				// otherwise, register the uncaught exception.
-				if(!(exception instanceof SocketException))
+				// otherwise, register the uncaught exception. A socket which
+				// has a channel reports an asynchronous close as a closed
+				// channel rather than a socket exception.
+				if(!(exception instanceof SocketException || exception instanceof ClosedChannelException))
 					server.execute(() -> fail(exception));
 			}
-			// Ensure onClose() is called and the socket is closed.
-			close();
+			// Ensure onClose() is called and the socket is closed. If reading
+			// failed, the connection is broken, so do not wait for output.
+			if(failed)
+				abort();
+			else
+				close();
+			// Wait until all output has been written and the socket is closed.
+			try {
+				outbox.await();
+			}
+			catch(InterruptedException exception) {
+				server.execute(() -> fail(exception));
+			}
 			// Remove the socket from the server's list of open connections and
 			// ensure onDisconnect() is called.
-			server.execute(() -> {
-				server.sockets.remove(SerialSocket.this);
-				onDisconnect();
+			server.execute(EventType.DISCONNECT, () -> disconnected());
+		}
+		
+		/**
+		 * Allows this listener to read more input. This is called on the main
+		 * thread once the input that was read has been split into lines.
+		 */
+		void readMore() {
+			pending = false;
+			LockSupport.unpark(listener);
+		}
+		
+		/**
+		 * Tells this listener to stop reading input, even if the input it has
+		 * already read has not been split into lines yet. This is called when
+		 * the main thread is about to wait for this listener to finish, since
+		 * the main thread will not split that input until after it is done
+		 * waiting.
+		 */
+		void stop() {
+			stopping = true;
+			LockSupport.unpark(listener);
+		}
+	}
+	
+	/**
+	 * Reads the socket's input on one of the server's {@link SelectorLoop
+	 * selector threads} and performs all of the socket's events in order and
+	 * on the server thread. This does the same job as {@link Listener}, but
+	 * for a non-blocking channel.
+	 */
+	final class ChannelListener implements SelectorLoop.Handler {
+		
+		/**
+		 * The selector loop which reads from and writes to the channel.
+		 */
+		private final SelectorLoop loop;
+		
+		/**
+		 * Begins waiting for input again on the selector thread, and
+		 * disconnects the socket if that throws an unexpected exception.
+		 */
+		private final SelectorLoop.Handler resume = new SelectorLoop.Handler() {
+			
+			@Override
+			public void run() {
+				resumeReading();
+			}
+			
+			@Override
+			public void failed(RuntimeException exception) {
+				ChannelListener.this.failed(exception);
+			}
+		};
+		
+		/**
+		 * Released once the socket's last event has been sent to the main
+		 * thread.
+		 */
+		private final CountDownLatch finished = new CountDownLatch(1);
+		
+		/**
+		 * The key which registers the channel with the selector, or null if it
+		 * has not been registered yet.
+		 */
+		private SelectionKey key = null;
+		
+		/**
+		 * A flag indicating that the socket has stopped reading input. It is
+		 * only used on the selector thread.
+		 */
+		private boolean reading = true;
+		
+		/**
+		 * A flag indicating that input has been read and is waiting to be split
+		 * into lines on the main thread. The selector does not wait for more
+		 * input until that has happened. It is only used on the selector
+		 * thread.
+		 */
+		private boolean paused = false;
+		
+		/**
+		 * A flag indicating that the channel has been closed. It is only used
+		 * on the selector thread.
+		 */
+		private boolean done = false;
+		
+		/**
+		 * Constructs a new channel listener.
+		 * 
+		 * @param loop the selector loop which will read from the channel
+		 */
+		ChannelListener(SelectorLoop loop) {
+			this.loop = loop;
+		}
+		
+		/**
+		 * Returns the {@link SerialSocket#getId() id} of the socket this
+		 * listener reads for.
+		 * 
+		 * @return the socket's id
+		 */
+		int id() {
+			return id;
+		}
+		
+		/**
+		 * Allows this listener to read more input. This is called on the main
+		 * thread once the input that was read has been split into lines.
+		 */
+		void readMore() {
+			loop.execute(resume);
+		}
+		
+		/**
+		 * Ensures onConnect() is called and then begins reading from the
+		 * channel. This method is called on the main thread.
+		 */
+		void start() {
+			// Add this socket to the server's list of open connections and
+			// ensure onConnect is called.
+			server.execute(EventType.CONNECT, () -> connected());
+			loop.execute(() -> {
+				try {
+					key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+					if(tls != null)
+						tls.begin();
+				}
+				catch(IOException exception) {
+					stopReading(exception, false);
+					disconnect();
+					return;
+				}
+				catch(RuntimeException exception) {
+					failed(exception);
+					return;
+				}
+				// Write any output which was sent before the channel was
+				// registered.
+				((ChannelOutbox) outbox).run();
 			});
 		}
+		
+		/**
+		 * Reads from or writes to the channel when it is ready. This method
+		 * runs on the selector thread.
+		 */
+		@Override
+		public void run() {
+			if(key.isWritable())
+				((ChannelOutbox) outbox).run();
+			if(key.isValid() && key.isReadable() && !paused)
+				read();
+			// Writing may have let the TLS handshake continue, and input it
+			// already read from the channel will not make the key readable.
+			else if(tls != null && key.isValid() && reading && !paused && tls.isBuffered())
+				read();
+		}
+		
+		/**
+		 * Reads as much input as is available from the channel and sends it to
+		 * the main thread to be split into lines.
+		 */
+		private void read() {
+			try {
+				int read = tls == null ? channel.read(framing.buffer()) : tls.read(framing.buffer());
+				if(read < 0)
+					stopReading(null, true);
+				else if(read > 0) {
+					// Stop waiting for input until the main thread is done
+					// with the buffer.
+					paused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					deliverLater();
+				}
+				// Reading TLS input can produce handshake messages to send,
+				// or finish the handshake so that waiting output can be sent.
+				if(tls != null && tls.needsWrite())
+					((ChannelOutbox) outbox).run();
+			}
+			catch(IOException exception) {
+				stopReading(exception, false);
+			}
+		}
+		
+		/**
+		 * Reports an unexpected exception thrown while reading from or
+		 * writing to the channel and disconnects the socket, since the state
+		 * of its channel is unknown. This method runs on the selector thread.
+		 */
+		@Override
+		public void failed(RuntimeException exception) {
+			report(exception);
+			disconnect();
+		}
+		
+		/**
+		 * Begins waiting for input again after the main thread has split the
+		 * input which was read into lines. This method runs on the selector
+		 * thread.
+		 */
+		private void resumeReading() {
+			paused = false;
+			if(reading && key.isValid()) {
+				// If the input broke the framing's rules, stop now rather
+				// than waiting for more input which will not be read.
+				try {
+					framing.buffer();
+				}
+				catch(IOException exception) {
+					stopReading(exception, false);
+					return;
+				}
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				// Decrypted input which did not fit in the buffer will not
+				// make the key readable, so read it now.
+				if(tls != null && tls.isBuffered())
+					read();
+			}
+		}
+		
+		/**
+		 * Sets whether the selector should wait for the channel to be ready
+		 * for writing. This method runs on the selector thread.
+		 * 
+		 * @param wait true if there is output waiting to be written
+		 */
+		void waitToWrite(boolean wait) {
+			if(key == null || !key.isValid())
+				return;
+			int ops = reading && !paused ? SelectionKey.OP_READ : 0;
+			if(wait)
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+		
+		/**
+		 * Stops reading from the channel and ensures the socket will close.
+		 * This method runs on the selector thread.
+		 * 
+		 * @param exception the exception which stopped the socket from
+		 * reading, or null if there was no exception
+		 * @param end true if the client ended the input normally
+		 */
+		private void stopReading(IOException exception, boolean end) {
+			if(!reading)
+				return;
+			reading = false;
+			if(key != null && key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			// Like BufferedReader.readLine(), report a final line which has no
+			// line break at the end of the input.
+			if(end)
+				server.execute(EventType.RECEIVE, () -> framing.finish(SerialSocket.this));
+			// If the exception was caused by the socket closing, ignore it;
+			// otherwise, register the uncaught exception.
+			if(exception != null && !(exception instanceof SocketException) && !(exception instanceof ClosedChannelException))
+				server.execute(() -> fail(exception));
+			// Ensure onClose() is called and the socket is closed. If reading
+			// failed, the connection is broken, so do not wait for output.
+			if(exception != null)
+				abort();
+			else
+				close();
+		}
+		
+		/**
+		 * Closes the channel and sends the socket's remaining events to the
+		 * main thread. This method runs on the selector thread after all of
+		 * the socket's output has been written or when writing fails.
+		 */
+		void disconnect() {
+			if(done)
+				return;
+			done = true;
+			stopReading(null, false);
+			if(key != null)
+				key.cancel();
+			try {
+				channel.close();
+			}
+			catch(IOException exception) {
+				// The channel is closed even if an exception is thrown.
+			}
+			((ChannelOutbox) outbox).clear();
+			// Remove the socket from the server's list of open connections and
+			// ensure onDisconnect() is called.
+			server.execute(EventType.DISCONNECT, () -> disconnected());
+			finished.countDown();
+		}
+	}
+	
+	/**
+	 * Reads the socket's input from a {@link Simulation simulated network}
+	 * and performs all of the socket's events in order and on the main
+	 * thread. This does the same job as {@link Listener}, but without a
+	 * thread: the simulation, which runs on the main thread, tells it when
+	 * input has arrived.
+	 */
+	final class SimulatedListener {
+		
+		/**
+		 * The simulated connection to read from.
+		 */
+		private final SimulatedSocket simulated;
+		
+		/**
+		 * A flag indicating that input has been read and is waiting to be split
+		 * into lines. This listener does not read any more input until that
+		 * has happened.
+		 */
+		private boolean pending = false;
+		
+		/**
+		 * A flag indicating that the socket has stopped reading input.
+		 */
+		private boolean reading = true;
+		
+		/**
+		 * Constructs a new simulated listener.
+		 * 
+		 * @param simulated the simulated connection to read from
+		 */
+		SimulatedListener(SimulatedSocket simulated) {
+			this.simulated = simulated;
+		}
+		
+		/**
+		 * Ensures onConnect() is called and then reads any input which has
+		 * already arrived.
+		 */
+		void start() {
+			// Add this socket to the server's list of open connections and
+			// ensure onConnect is called.
+			server.execute(EventType.CONNECT, () -> connected());
+			simulated.listener = this;
+			readable();
+		}
+		
+		/**
+		 * Reads the input which has arrived, unless the main thread has not
+		 * finished with the input which was read last. This is called by the
+		 * simulation whenever input or the end of the input arrives.
+		 */
+		void readable() {
+			if(pending || !reading)
+				return;
+			int read;
+			try {
+				read = simulated.read(framing.buffer());
+			}
+			catch(IOException exception) {
+				// The input broke the framing's rules, so stop reading.
+				reading = false;
+				abort();
+				return;
+			}
+			if(read > 0) {
+				pending = true;
+				deliverLater();
+			}
+			else if(simulated.isInputEnded()) {
+				reading = false;
+				// Like BufferedReader.readLine(), report a final line which has
+				// no line break at the end of the input.
+				server.execute(EventType.RECEIVE, () -> framing.finish(SerialSocket.this));
+				// Ensure onClose() is called and the socket is closed.
+				close();
+			}
+		}
+		
+		/**
+		 * Allows this listener to read more input. This is called on the main
+		 * thread once the input that was read has been split into lines.
+		 */
+		void readMore() {
+			pending = false;
+			readable();
+		}
+		
+		/**
+		 * Stops reading input and sends the socket's remaining events to the
+		 * main thread. This is called after all of the socket's output has
+		 * been written and the connection has been closed.
+		 */
+		void disconnect() {
+			reading = false;
+			// Remove the socket from the server's list of open connections and
+			// ensure onDisconnect() is called.
+			server.execute(EventType.DISCONNECT, () -> disconnected());
+		}
 	}
 	
+	/**
+	 * The character set used to encode output, which is the same one an {@link
+	 * java.io.OutputStreamWriter} would use by default.
+	 */
+	static final Charset CHARSET = Charset.defaultCharset();
+	
 	/**
 	 * The server that created this serial socket.
 	 */
@@ -100,32 +553,159 @@ public class SerialSocket implements Closeable {
 	protected final Socket socket;
 	
 	/**
-	 * A thread that listens for input from the socket.
+	 * The non-blocking channel used for input and output if the server is using
+	 * selector threads, or null if this socket has its own thread.
 	 */
-	final Listener listener;
+	private final SocketChannel channel;
 	
 	/**
-	 * Reads the input from the socket.
+	 * Encrypts and decrypts the channel's bytes if the server {@link
+	 * SerialServerSocket#createSSLEngine(Socket) uses TLS}, or null if it
+	 * does not.
 	 */
-	private final BufferedReader input;
+	private final TlsChannel tls;
 	
 	/**
-	 * Writes output to the socket.
+	 * The thread that listens for input from the socket, or null if the socket
+	 * is read by a selector thread.
 	 */
-	private final BufferedWriter output;
+	private final Thread listener;
+	
+	/**
+	 * Reads input from the socket on its own thread, or null if the socket is
+	 * read by a selector thread.
+	 */
+	private final Listener streamListener;
+	
+	/**
+	 * Reads input from the channel on a selector thread, or null if the socket
+	 * has its own thread.
+	 */
+	private final ChannelListener channelListener;
+	
+	/**
+	 * Reads input from a simulated network, or null if the server is not
+	 * being run by a {@link Simulation}.
+	 */
+	private final SimulatedListener simulatedListener;
+	
+	/**
+	 * Splits the socket's input into messages and marks the end of each
+	 * message it sends.
+	 */
+	final Framing framing;
+	
+	/**
+	 * Splits the input which has been read into lines on the main thread and
+	 * then allows the listener to read more.
+	 */
+	private final CheckedRunnable deliver = this::deliver;
+	
+	/**
+	 * The {@link #deliver} operation, wrapped so that it is timed, if the
+	 * server {@link SerialServerSocket#createMetrics() keeps metrics}, or
+	 * null if it does not.
+	 */
+	private TimedEvent timedDeliver = null;
+	
+	/**
+	 * The time, in the same units as {@link System#nanoTime()}, when input was
+	 * last sent to the main thread, if it is being recorded by {@link
+	 * FlightEvents flight recorder}, or 0 if not.
+	 */
+	private long posted = 0;
+	
+	/**
+	 * How long, in nanoseconds, the input being received now waited for the
+	 * main thread. It is only used on the main thread.
+	 */
+	private long waited = 0;
+	
+	/**
+	 * Output waiting to be written to the socket.
+	 */
+	private final Outbox outbox;
+	
+	/**
+	 * A flag indicating that this socket has sent output which the server has
+	 * {@link SerialServerSocket#isFlushDeferred() deferred flushing}. It is
+	 * only used on the main thread.
+	 */
+	boolean dirty = false;
 	
 	/**
 	 * A flag indicating that the socket has been closed.
 	 */
 	private boolean closed = false;
 	
+	/**
+	 * A flag indicating that the socket has stopped reading input because the
+	 * server's event queue was too long. It is only used on the main thread.
+	 */
+	boolean throttled = false;
+	
+	/**
+	 * The socket's {@link #getId() id}, or -1 if it has not started yet.
+	 */
+	private int id = -1;
+	
+	/**
+	 * The {@link #getReadTimeout() read timeout}, in nanoseconds, or 0 if
+	 * there is none. It is only used on the main thread.
+	 */
+	private long readTimeout = 0;
+	
+	/**
+	 * The {@link #getIdleTimeout() idle timeout}, in nanoseconds, or 0 if
+	 * there is none. It is only used on the main thread.
+	 */
+	private long idleTimeout = 0;
+	
+	/**
+	 * The {@link #getLingerTimeout() linger timeout}, in nanoseconds, or 0 if
+	 * there is none. It is only used on the main thread.
+	 */
+	private long lingerTimeout = 0;
+	
+	/**
+	 * The scheduled task which {@link #abort() aborts} this socket if its
+	 * output has not been written by the end of the linger timeout, or null
+	 * if the socket has not been closed. It is only used on the main thread.
+	 */
+	private ScheduledTask linger = null;
+	
+	/**
+	 * The scheduled task which checks whether this socket has timed out, or
+	 * null if it has no timeouts. There is only ever one such task per socket,
+	 * no matter how much input and output there is; when it runs, it checks
+	 * when the socket was last active and schedules itself again if the socket
+	 * has not timed out yet.
+	 */
+	private ScheduledTask timeout = null;
+	
+	/**
+	 * The time, according to the server's {@link SerialServerSocket#now()
+	 * clock}, when this socket last received input. It is only updated if
+	 * this socket has timeouts, and only on the main thread.
+	 */
+	private long lastRead = 0;
+	
+	/**
+	 * The time, according to the server's {@link SerialServerSocket#now()
+	 * clock}, when this socket last sent output. It is only updated if this
+	 * socket has timeouts.
+	 */
+	private volatile long lastWrite = 0;
+	
 	/**
 	 * Constructs a new serial socket. This constructor should be called from
 	 * {@link SerialServerSocket#createSocket(Socket)}, which will always run
 	 * on the main thread. This constructor calls {@link
-	 * SerialServerSocket#createReader(Socket)} and {@link
-	 * SerialServerSocket#createWriter(Socket)} to create input and output
-	 * streams for the socket.
+	 * SerialServerSocket#createThread(Runnable)} to create the thread which
+	 * will read the socket's input, unless the server is using {@link
+	 * SerialServerSocket#getSelectorThreads() selector threads}, in which case
+	 * the socket's channel is used directly, or the server is being run by a
+	 * {@link Simulation}, in which case no thread is needed.
 	 * <p>
 	 * If this constructor throws an exception, none of this socket's events
 	 * will run.
@@ -139,9 +719,81 @@ public class SerialSocket implements Closeable {
 		this.server = server;
 		Objects.requireNonNull(socket);
 		this.socket = socket;
-		this.listener = new Listener();
-		this.input = server.createReader(socket);
-		this.output = server.createWriter(socket);
+		this.framing = server.createFraming(socket);
+		Objects.requireNonNull(framing);
+		if(server.simulation != null) {
+			this.channel = null;
+			this.listener = null;
+			this.streamListener = null;
+			this.channelListener = null;
+			this.tls = null;
+			this.simulatedListener = new SimulatedListener((SimulatedSocket) socket);
+			this.outbox = new SimulatedOutbox(simulatedListener, (SimulatedSocket) socket);
+			return;
+		}
+		this.simulatedListener = null;
+		SelectorLoop loop = server.nextLoop();
+		if(loop == null) {
+			this.channel = null;
+			this.tls = null;
+			this.streamListener = new Listener();
+			this.listener = server.createThread(streamListener);
+			this.channelListener = null;
+			this.outbox = new StreamOutbox(this, server.writers);
+		}
+		else {
+			this.channel = socket.getChannel();
+			Objects.requireNonNull(channel);
+			SSLEngine engine = server.createSSLEngine(socket);
+			this.tls = engine == null ? null : new TlsChannel(channel, engine);
+			this.listener = null;
+			this.streamListener = null;
+			this.channelListener = new ChannelListener(loop);
+			this.outbox = new ChannelOutbox(channelListener, channel, tls, loop);
+		}
+	}
+	
+	/**
+	 * Starts listening for input from the socket. This method is called on the
+	 * main thread after the socket has been created.
+	 */
+	final void start() {
+		id = server.allocateId();
+		if(server.metrics != null)
+			timedDeliver = new TimedEvent(server.metrics, EventType.RECEIVE, deliver);
+		readTimeout = toNanos(getReadTimeout());
+		idleTimeout = toNanos(getIdleTimeout());
+		lingerTimeout = toNanos(getLingerTimeout());
+		if(readTimeout > 0 || idleTimeout > 0) {
+			lastRead = server.now();
+			lastWrite = lastRead;
+			timeout = server.schedule(deadline() - lastRead, 0, this::checkTimeout);
+		}
+		if(simulatedListener != null)
+			simulatedListener.start();
+		else if(listener == null)
+			channelListener.start();
+		else
+			listener.start();
+	}
+	
+	/**
+	 * Waits until the socket has stopped listening for input and its last
+	 * event has been sent to the main thread.
+	 * 
+	 * @throws InterruptedException if the current thread is interrupted while
+	 * waiting
+	 */
+	final void join() throws InterruptedException {
+		// A simulated socket's last event is sent as soon as it closes.
+		if(simulatedListener != null)
+			return;
+		else if(listener == null)
+			channelListener.finished.await();
+		else {
+			streamListener.stop();
+			listener.join();
+		}
 	}
 	
 	/**
@@ -151,18 +803,72 @@ public class SerialSocket implements Closeable {
 	 * called, {@link #onClose()} will run on the main thread and this socket
 	 * will eventually {@link #onDisconnect() disconnect}.
 	 * <p>
+	 * The connection stays open until all of the output which was sent before
+	 * it closed, including anything sent by {@link #onClose()}, has been
+	 * written. If the client has stopped reading, that may never happen, so
+	 * if the socket has not disconnected by the end of its {@link
+	 * #getLingerTimeout() linger timeout}, it is {@link #abort() aborted}.
+	 * <p>
 	 * It is safe to call this method from any thread; it does not need to be
 	 * called from the main thread.
 	 */
 	@Override
 	public void close() {
-		server.execute(() -> {
+		close(false);
+	}
+	
+	/**
+	 * Disconnects this socket right away, without waiting for its output to
+	 * be written. After this method is called, {@link #onClose()} will run on
+	 * the main thread as usual, but then the connection is closed, and any
+	 * output which has not been written yet, including anything sent by
+	 * {@link #onClose()}, is discarded. This socket will then {@link
+	 * #onDisconnect() disconnect} soon, even if the client has stopped
+	 * reading.
+	 * <p>
+	 * This is how a socket is closed when its connection fails, and it can be
+	 * used to get rid of a client which is not keeping up with its output.
+	 * It is safe to call this method from any thread.
+	 */
+	public void abort() {
+		close(true);
+	}
+	
+	/**
+	 * Ensures {@link #onClose()} is called and then closes the connection,
+	 * either after its output has been written or right away.
+	 * 
+	 * @param now true if the output should be discarded rather than written
+	 */
+	private final void close(boolean now) {
+		server.execute(EventType.CLOSE, () -> {
 			if(!closed) {
 				closed = true;
-				onClose();
+				FlightEvents.Close event = new FlightEvents.Close();
+				event.begin();
+				try {
+					onClose();
+				}
+				finally {
+					event.socket = id;
+					event.commit();
+				}
+			}
+		});
+		server.execute(() -> {
+			// A socket which is closing should not wait for the server to catch
+			// up before it finishes reading.
+			if(throttled)
+				resume();
+			if(now)
+				outbox.abort();
+			else {
+				outbox.close();
+				// Do not wait forever for a client which has stopped reading.
+				if(linger == null && lingerTimeout > 0)
+					linger = server.schedule(lingerTimeout, 0, () -> outbox.abort());
 			}
 		});
-		server.execute(() -> socket.close());
 	}
 	
 	/**
@@ -179,34 +885,300 @@ public class SerialSocket implements Closeable {
 	
 	/**
 	 * This method sends a string via this socket's output stream. If the string
-	 * does not end in a new line character, one will be appended. The output
-	 * stream will then be flushed.
+	 * does not end in a new line character, one will be appended. If the
+	 * server {@link SerialServerSocket#createFraming(Socket) uses a different
+	 * framing}, the string is sent as one message of that framing instead.
+	 * <p>
+	 * This method does not block. The string is encoded and added to the end
+	 * of this socket's outgoing queue, and it will be written to the socket by
+	 * another thread as soon as the socket can accept it, or, if the server
+	 * {@link SerialServerSocket#isFlushDeferred() defers flushing}, at the end
+	 * of the current batch of events. This means that a
+	 * client which is slow to read its input cannot stall the main thread. The
+	 * number of bytes waiting to be written can be checked with {@link
+	 * #getQueuedBytes()}.
 	 * <p>
 	 * If an {@link IOException} other than a {@link SocketException} is thrown
-	 * while sending the message, this socket will close and the exception will
+	 * while writing the message, this socket will close and the exception will
 	 * be passed to {@link #onException(Exception)}, which will run on the main
-	 * thread regardless of what thread this method ran from.
+	 * thread regardless of what thread this method ran from. If this socket has
+	 * already closed, the message is discarded.
 	 * 
 	 * @param message the message to send via the socket's output stream
 	 */
 	protected void send(String message) {
+		framing.sendText(this, encode(message));
+	}
+	
+	/**
+	 * This method sends bytes which have already been encoded via this
+	 * socket's output stream. The remaining bytes in the buffer are sent, and
+	 * if the last of them is not a new line character, one will be appended.
+	 * If the server {@link SerialServerSocket#createFraming(Socket) uses a
+	 * different framing}, the bytes are sent as one message of that framing
+	 * instead; for example, with {@link Framing#lengthPrefixed(int)
+	 * length-prefixed frames}, they are sent exactly as they are, after their
+	 * length.
+	 * This method behaves exactly like {@link #send(String)}, except that the
+	 * message does not need to be encoded again.
+	 * <p>
+	 * The buffer's position is not changed, and the same buffer can be sent to
+	 * many sockets, which will share its bytes rather than copying them.
+	 * Because the bytes are written later by another thread, they must not be
+	 * modified after this method is called. {@link
+	 * SerialServerSocket#broadcast(Iterable, String)} uses this method to send
+	 * one message to many sockets while only encoding it once.
+	 * 
+	 * @param message the bytes to send via the socket's output stream
+	 */
+	protected void send(ByteBuffer message) {
+		framing.send(this, message);
+	}
+	
+	/**
+	 * Encodes a message using the same character set as {@link
+	 * #send(String)}, appending a new line character if it does not already
+	 * end in one.
+	 * 
+	 * @param message the message to encode
+	 * @return a read-only buffer containing the encoded message
+	 */
+	static ByteBuffer encode(String message) {
+		if(!message.endsWith("\n") && !message.endsWith("\r"))
+			message = message.concat("\n");
+		return ByteBuffer.wrap(message.getBytes(CHARSET)).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Adds encoded output to this socket's outgoing queue and flushes it,
+	 * unless the server is {@link SerialServerSocket#isFlushDeferred()
+	 * deferring flushes}.
+	 * 
+	 * @param buffer the bytes to send
+	 * @param end more bytes to send after the buffer, or null
+	 */
+	final void write(ByteBuffer buffer, ByteBuffer end) {
+		FlightEvents.Send event = null;
+		if(FlightEvents.SEND.isEnabled()) {
+			event = new FlightEvents.Send();
+			event.socket = id;
+			event.bytes = buffer.remaining() + (end == null ? 0 : end.remaining());
+			event.begin();
+		}
+		if(timeout != null)
+			lastWrite = server.now();
+		outbox.add(buffer);
+		if(end != null)
+			outbox.add(end);
+		if(!server.defer(this))
+			outbox.flush();
+		if(event != null)
+			event.commit();
+	}
+	
+	/**
+	 * Makes any output this socket has sent available to be written.
+	 */
+	final void flush() {
+		outbox.flush();
+	}
+	
+	/**
+	 * Returns the number of bytes which have been {@link #send(String) sent}
+	 * but not yet written to the socket. A server can use this to detect a
+	 * client which is not keeping up with its output and, for example, {@link
+	 * #abort() abort} it, since {@link #close() closing} it would wait for
+	 * that output to be written.
+	 * <p>
+	 * It is safe to call this method from any thread.
+	 * 
+	 * @return the number of bytes waiting to be written
+	 */
+	public long getQueuedBytes() {
+		return outbox.getQueued();
+	}
+	
+	/**
+	 * Returns a small number which identifies this socket among all of the
+	 * sockets which are currently connected to its server. Ids start at 0 and
+	 * are dense: when a socket disconnects, its id is given to the next new
+	 * socket, so ids are never much larger than the most sockets that have
+	 * been connected at the same time. This makes an id a convenient index
+	 * into an array or a {@link SocketRegistry}. Shards of a {@link
+	 * SerialServerGroup} each have their own ids, so sockets on different
+	 * shards can have the same id.
+	 * <p>
+	 * A socket's id does not change while it is connected. It is assigned on
+	 * the main thread before {@link #onConnect()} is called, and it is -1
+	 * before then.
+	 * 
+	 * @return the socket's id
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * Splits the input which has been read into lines and passes them to
+	 * {@link #receive(ByteBuffer)}. This is called on the main thread each
+	 * time input is read.
+	 * <p>
+	 * If the server limits how much input one socket can {@link
+	 * SerialServerSocket#getInputQuantum() receive at a time}, this stops once
+	 * that much has been received and runs again after the other operations
+	 * which are waiting on the main thread. Only once all of the input has
+	 * been received can the listener read more.
+	 */
+	private final void deliver() {
+		boolean done = true;
 		try {
-			output.append(message);
-			if(!message.endsWith("\n") && !message.endsWith("\r"))
-				output.append("\n");
-			output.flush();
-		}
-		catch(IOException exception) {
-			// Ignore exceptions that happen because the socket is closed
-			// or closes during the write.
-			if(!(exception instanceof SocketException))
-				server.execute(() -> fail(exception));
+			if(timeout != null)
+				lastRead = server.now();
+			if(posted != 0) {
+				waited = System.nanoTime() - posted;
+				posted = 0;
+			}
+			done = framing.decode(this, server.quantum);
+		}
+		finally {
+			if(done)
+				delivered();
+			else
+				deliverLater();
+		}
+	}
+	
+	/**
+	 * Sends the input which has been read to the main thread to be split into
+	 * lines. Each socket reuses the same operation for this, so it does not
+	 * create any objects, even if it is being timed.
+	 */
+	private final void deliverLater() {
+		if(FlightEvents.RECEIVE.isEnabled())
+			posted = System.nanoTime();
+		TimedEvent timed = timedDeliver;
+		if(timed == null)
+			server.queue.add(deliver);
+		else {
+			timed.posted = System.nanoTime();
+			server.queue.add(timed);
 		}
 	}
 	
 	/**
-	 * This method is called from the main thread every time a new {@link
-	 * BufferedReader#readLine() line of input is read} from the socket.
+	 * Allows the listener to read more input after the input that was read
+	 * has been split into lines, unless the server's event queue is too long,
+	 * in which case the socket stops reading until the server {@link
+	 * #resume() resumes} it. This runs on the main thread.
+	 */
+	private final void delivered() {
+		if(!closed && server.throttle(this))
+			throttled = true;
+		else if(simulatedListener != null)
+			simulatedListener.readMore();
+		else if(listener == null)
+			channelListener.readMore();
+		else
+			streamListener.readMore();
+	}
+	
+	/**
+	 * Allows a socket which stopped reading because the server's event queue
+	 * was too long to read more input. This runs on the main thread.
+	 */
+	final void resume() {
+		throttled = false;
+		if(simulatedListener != null)
+			simulatedListener.readMore();
+		else if(listener == null)
+			channelListener.readMore();
+		else
+			streamListener.readMore();
+	}
+	
+	/**
+	 * Passes one message of input to {@link #receive(ByteBuffer)}. If an
+	 * exception is thrown, it is reported to the server and the rest of the
+	 * input is still received. This is called on the main thread by the
+	 * socket's {@link Framing framing}.
+	 * 
+	 * @param message the bytes of the message, such as a line without its
+	 * line break
+	 */
+	final void message(ByteBuffer message) {
+		FlightEvents.Receive event = null;
+		if(FlightEvents.RECEIVE.isEnabled()) {
+			event = new FlightEvents.Receive();
+			event.socket = id;
+			event.length = message.remaining();
+			event.wait = waited;
+			event.begin();
+		}
+		try {
+			receive(message);
+		}
+		catch(Exception exception) {
+			server.fail(exception);
+		}
+		finally {
+			if(event != null)
+				event.commit();
+		}
+	}
+	
+	/**
+	 * This method is called from the main thread every time a new line of
+	 * input is read from the socket. The remaining bytes in the buffer are the
+	 * bytes of the line, not including the line break.
+	 * <p>
+	 * If the server {@link SerialServerSocket#createFraming(Socket) uses a
+	 * different framing}, such as {@link Framing#lengthPrefixed(int)
+	 * length-prefixed frames}, this method is called with each message instead
+	 * of each line, and so are {@link #receive(CharSequence)} and {@link
+	 * #receive(String)}.
+	 * <p>
+	 * The buffer is a view of this socket's input buffer, and it is reused
+	 * for every line, so it is only valid until this method returns. Its
+	 * contents must not be modified, and if they are needed later, they must
+	 * be copied.
+	 * <p>
+	 * By default, this method decodes the line using the same character set as
+	 * {@link #send(String)} and passes the characters to {@link
+	 * #receive(CharSequence)}. Overriding this method allows a socket to
+	 * handle its input without decoding it at all.
+	 * 
+	 * @param message the bytes of the line of input read from the socket
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void receive(ByteBuffer message) throws Exception {
+		receive(server.decode(message));
+	}
+	
+	/**
+	 * This method is called from the main thread every time a new line of
+	 * input is read from the socket and decoded, unless {@link
+	 * #receive(ByteBuffer)} has been overridden.
+	 * <p>
+	 * The characters are held in a buffer which the server reuses for every
+	 * line, so they are only valid until this method returns. If they are
+	 * needed later, they must be copied, for example with {@link
+	 * CharSequence#toString()}.
+	 * <p>
+	 * By default, this method converts the characters to a string and passes
+	 * it to {@link #receive(String)}. Overriding this method allows a socket to
+	 * handle its input without creating a new string for each line.
+	 * 
+	 * @param message the line of input read from the socket
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void receive(CharSequence message) throws Exception {
+		receive(message.toString());
+	}
+	
+	/**
+	 * This method is called from the main thread every time a new line of
+	 * input is read from the socket, unless {@link #receive(ByteBuffer)} or
+	 * {@link #receive(CharSequence)} has been overridden.
 	 * <p>
 	 * By default, this method does nothing. It is meant to be overridden.
 	 * 
@@ -267,7 +1239,9 @@ public class SerialSocket implements Closeable {
 	 * This method runs exactly once on the main thread after the socket is
 	 * {@link #close() closed} and after all other events for this socket. The
 	 * socket is definitely disconnected before this method runs. This method
-	 * provides an opportunity for cleanup.
+	 * provides an opportunity for cleanup. A socket which was added to a
+	 * {@link SocketRegistry} should be removed from it here, since its {@link
+	 * #getId() id} will be given to a new socket after this method returns.
 	 * <p>
 	 * By default, this method does nothing. It is meant to be overridden.
 	 * 
@@ -277,6 +1251,204 @@ public class SerialSocket implements Closeable {
 		// This method is meant to be overridden.
 	}
 	
+	/**
+	 * Returns how long this socket can go without receiving any input before
+	 * it times out. This method is called once on the main thread, just after
+	 * the socket has been created.
+	 * <p>
+	 * A read timeout allows a server to notice a client which has stopped
+	 * responding or whose connection has been lost without the socket being
+	 * closed. When the timeout passes, {@link #onTimeout()} is called, which
+	 * by default {@link #abort() aborts} the socket.
+	 * <p>
+	 * By default, this method returns null, meaning the socket never times
+	 * out because of a lack of input.
+	 * 
+	 * @return the read timeout, or null if there is none
+	 */
+	protected Duration getReadTimeout() {
+		return null;
+	}
+	
+	/**
+	 * Returns how long this socket can go without receiving any input or
+	 * {@link #send(String) sending} any output before it times out. This
+	 * method is called once on the main thread, just after the socket has been
+	 * created.
+	 * <p>
+	 * When the timeout passes, {@link #onTimeout()} is called, which by
+	 * default {@link #abort() aborts} the socket. Unlike the {@link
+	 * #getReadTimeout() read timeout}, a socket which keeps sending output to
+	 * a client that never replies will not time out.
+	 * <p>
+	 * By default, this method returns null, meaning the socket never times
+	 * out because it is idle.
+	 * 
+	 * @return the idle timeout, or null if there is none
+	 */
+	protected Duration getIdleTimeout() {
+		return null;
+	}
+	
+	/**
+	 * Returns how long this socket can take to write its remaining output
+	 * after it has been {@link #close() closed} before it is {@link #abort()
+	 * aborted} and its output discarded. This method is called once on the
+	 * main thread, just after the socket has been created.
+	 * <p>
+	 * A client which stops reading can leave output queued forever. The
+	 * linger timeout ensures that such a socket still disconnects, so that its
+	 * connection and threads are not kept open and {@link #onDisconnect()}
+	 * still runs.
+	 * <p>
+	 * By default, this method returns 30 seconds. If it returns null, a
+	 * closed socket waits for its output to be written no matter how long it
+	 * takes.
+	 * 
+	 * @return the linger timeout, or null if there is none
+	 */
+	protected Duration getLingerTimeout() {
+		return Duration.ofSeconds(30);
+	}
+	
+	/**
+	 * This method runs on the main thread when this socket has gone longer
+	 * than its {@link #getReadTimeout() read timeout} without receiving input
+	 * or longer than its {@link #getIdleTimeout() idle timeout} without
+	 * receiving input or sending output.
+	 * <p>
+	 * By default, this method {@link #abort() aborts} the socket, after which
+	 * {@link #onClose()} and {@link #onDisconnect()} will run as usual. A
+	 * client which has timed out is probably not reading either, so the
+	 * connection is closed right away rather than waiting for output which
+	 * may never be written. This method can be overridden to do something
+	 * else, such as sending a message to check whether the client is still
+	 * there. If the socket is not closed, the timeouts start again as if the
+	 * socket had just been active.
+	 * 
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void onTimeout() throws Exception {
+		abort();
+	}
+	
+	/**
+	 * Runs on the main thread when this socket's timeout task is due. If the
+	 * socket has been active since the task was scheduled, the task is just
+	 * scheduled again for the new deadline; otherwise, {@link #onTimeout()}
+	 * is called. This way, input and output only need to record the time,
+	 * rather than cancelling and scheduling a task each time.
+	 * 
+	 * @throws Exception if {@link #onTimeout()} throws an exception
+	 */
+	private final void checkTimeout() throws Exception {
+		if(closed)
+			return;
+		long now = server.now();
+		// A socket is not inactive just because it is waiting for the server
+		// to catch up.
+		if(throttled)
+			lastRead = now;
+		if(now - deadline() >= 0) {
+			onTimeout();
+			lastRead = now;
+			lastWrite = now;
+		}
+		server.reschedule(timeout, deadline() - now);
+	}
+	
+	/**
+	 * Returns the time at which this socket will time out if it is not active
+	 * before then.
+	 * 
+	 * @return the deadline, according to the server's {@link
+	 * SerialServerSocket#now() clock}
+	 */
+	private final long deadline() {
+		long deadline = Long.MAX_VALUE;
+		if(readTimeout > 0)
+			deadline = lastRead + readTimeout;
+		if(idleTimeout > 0) {
+			long last = lastWrite - lastRead > 0 ? lastWrite : lastRead;
+			if(deadline == Long.MAX_VALUE || last + idleTimeout - deadline < 0)
+				deadline = last + idleTimeout;
+		}
+		return deadline;
+	}
+	
+	/**
+	 * Converts a timeout to nanoseconds.
+	 * 
+	 * @param timeout the timeout, or null
+	 * @return the number of nanoseconds, or 0 if the timeout is null or not
+	 * positive
+	 */
+	private static long toNanos(Duration timeout) {
+		if(timeout == null || timeout.isNegative())
+			return 0;
+		return timeout.toNanos();
+	}
+	
+	/**
+	 * Adds this socket to the server's list of open connections and calls
+	 * {@link #onConnect()}. This runs on the main thread before any of the
+	 * socket's other events.
+	 * 
+	 * @throws Exception if onConnect() throws an exception
+	 */
+	private final void connected() throws Exception {
+		server.sockets.add(this);
+		FlightEvents.Connect event = new FlightEvents.Connect();
+		event.begin();
+		try {
+			onConnect();
+		}
+		finally {
+			if(event.shouldCommit()) {
+				event.socket = id;
+				event.address = String.valueOf(socket.getRemoteSocketAddress());
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Removes this socket from the server's list of open connections, stops
+	 * checking for timeouts, and calls {@link #onDisconnect()}. Afterward, its
+	 * {@link #getId() id} can be given to a new socket. This runs on the main
+	 * thread after the socket has been closed.
+	 * 
+	 * @throws Exception if onDisconnect() throws an exception
+	 */
+	private final void disconnected() throws Exception {
+		server.sockets.remove(this);
+		if(timeout != null)
+			timeout.cancel();
+		if(linger != null)
+			linger.cancel();
+		FlightEvents.Disconnect event = new FlightEvents.Disconnect();
+		event.begin();
+		try {
+			onDisconnect();
+		}
+		finally {
+			event.socket = id;
+			event.commit();
+			server.releaseId(id);
+		}
+	}
+	
+	/**
+	 * Reports an uncaught exception which was thrown on some other thread
+	 * while this socket was sending output by passing it to {@link
+	 * #fail(Exception)} on the main thread.
+	 * 
+	 * @param exception the uncaught exception
+	 */
+	final void report(Exception exception) {
+		server.execute(() -> fail(exception));
+	}
+	
 	/**
 	 * This method should be called when an uncaught exception is thrown while
 	 * this socket with {@link #send(String) sending} or {@link #receive(String)
@@ -285,6 +1457,7 @@ public class SerialSocket implements Closeable {
 	 * @param exception the uncaught exception
 	 */
 	private final void fail(Exception exception) {
+		FlightEvents.failed(id, exception);
 		try {
 			onException(exception);
 		}
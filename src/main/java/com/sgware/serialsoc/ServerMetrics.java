@@ -0,0 +1,124 @@
+package com.sgware.serialsoc;
+
+/**
+ * Measurements of how busy a {@link SerialServerSocket}'s main thread is and
+ * how far behind it has fallen. A server only keeps metrics if {@link
+ * SerialServerSocket#createMetrics()} returns an object of this class, in
+ * which case it records:
+ * <ul>
+ * <li>the {@link #getQueueDepth() queue depth}, or the number of operations
+ * waiting on the main thread each time it takes a batch of them,</li>
+ * <li>the {@link #getWaitTime(EventType) wait time} of each operation, from
+ * when it was added to the queue until it started running, and</li>
+ * <li>the {@link #getRunTime(EventType) run time} of each operation,</li>
+ * </ul>
+ * with separate times for each {@link EventType type of operation}. All times
+ * are in nanoseconds and are recorded in {@link Histogram}s, which never
+ * create objects while recording. When a server does not keep metrics, all it
+ * costs is a check for null each time an operation is added or a batch is
+ * taken.
+ * <p>
+ * Metrics are recorded on the main thread and should only be read there, for
+ * example from a task {@link
+ * SerialServerSocket#scheduleAtFixedRate(java.time.Duration, CheckedRunnable)
+ * scheduled} to report them every few seconds.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class ServerMetrics {
+	
+	/**
+	 * The number of operations waiting each time a batch is taken.
+	 */
+	private final Histogram depth = new Histogram();
+	
+	/**
+	 * The wait times for each type of operation.
+	 */
+	private final Histogram[] wait = new Histogram[EventType.values().length];
+	
+	/**
+	 * The run times for each type of operation.
+	 */
+	private final Histogram[] run = new Histogram[EventType.values().length];
+	
+	/**
+	 * Constructs a new set of metrics with nothing recorded.
+	 */
+	public ServerMetrics() {
+		for(int i = 0; i < wait.length; i++) {
+			wait[i] = new Histogram();
+			run[i] = new Histogram();
+		}
+	}
+	
+	/**
+	 * Returns the number of operations which were waiting to run each time
+	 * the main thread took a batch of them, including those in the batch.
+	 * 
+	 * @return the queue depth histogram
+	 */
+	public Histogram getQueueDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Returns how long, in nanoseconds, operations of a given type waited
+	 * between being added to the queue and starting to run.
+	 * 
+	 * @param type the type of operation
+	 * @return the wait time histogram
+	 */
+	public Histogram getWaitTime(EventType type) {
+		return wait[type.ordinal()];
+	}
+	
+	/**
+	 * Returns how long, in nanoseconds, operations of a given type took to
+	 * run.
+	 * 
+	 * @param type the type of operation
+	 * @return the run time histogram
+	 */
+	public Histogram getRunTime(EventType type) {
+		return run[type.ordinal()];
+	}
+	
+	/**
+	 * Removes everything which has been recorded.
+	 */
+	public void reset() {
+		depth.reset();
+		for(int i = 0; i < wait.length; i++) {
+			wait[i].reset();
+			run[i].reset();
+		}
+	}
+	
+	/**
+	 * Records one operation.
+	 * 
+	 * @param type the type of operation
+	 * @param posted the time, in the same units as {@link System#nanoTime()},
+	 * when it was added to the queue or was due to run
+	 * @param start the time it started running
+	 * @param end the time it finished running
+	 */
+	final void record(EventType type, long posted, long start, long end) {
+		wait[type.ordinal()].record(start - posted);
+		run[type.ordinal()].record(end - start);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder string = new StringBuilder("[Server Metrics: depth=").append(depth);
+		for(EventType type : EventType.values()) {
+			if(wait[type.ordinal()].getCount() == 0)
+				continue;
+			string.append("; ").append(type).append(" wait=").append(wait[type.ordinal()]);
+			string.append(" run=").append(run[type.ordinal()]);
+		}
+		return string.append("]").toString();
+	}
+}
\ No newline at end of file
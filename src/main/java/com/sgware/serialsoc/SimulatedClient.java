@@ -0,0 +1,222 @@
+package com.sgware.serialsoc;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A client which connects to a {@link SerialServerSocket} across a {@link
+ * Simulation simulated network}. It plays the part a real client's socket
+ * would: it can {@link #send(String) send} lines to the server and {@link
+ * #close() close} its connection, and it is told when it has {@link
+ * #onConnect() connected}, when it {@link #receive(String) receives} a line
+ * from the server, and when the server's end of the connection has {@link
+ * #onDisconnect() closed}.
+ * <p>
+ * All of these methods run on the thread running the simulation, which is also
+ * the server's main thread, in an order decided by the simulation's seed. A
+ * client which acts later, such as sending a message after a pause, should
+ * {@link Simulation#schedule(java.time.Duration, CheckedRunnable) schedule}
+ * the action in the simulation's virtual time rather than sleeping, and should
+ * make any random choices with the simulation's {@link Simulation#getRandom()
+ * random number generator} so that the run can be repeated from its seed.
+ * <p>
+ * By default, every event is ignored. This class is meant to be extended.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class SimulatedClient {
+	
+	/**
+	 * The server's end of this client's connection, or null if the client has
+	 * not connected yet.
+	 */
+	SimulatedSocket socket = null;
+	
+	/**
+	 * The bytes of the line being received, which has not ended yet.
+	 */
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	
+	/**
+	 * A flag indicating that the last line ended with a carriage return, so a
+	 * line feed which follows it is part of the same line break.
+	 */
+	private boolean skipLineFeed = false;
+	
+	/**
+	 * A flag indicating that the connection has been established.
+	 */
+	private boolean connected = false;
+	
+	/**
+	 * A flag indicating that this client has closed its connection.
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * A flag indicating that the server's end of the connection has closed.
+	 */
+	private boolean disconnected = false;
+	
+	/**
+	 * Constructs a new client which has not connected yet. To connect it, pass
+	 * it to {@link Simulation#connect(SimulatedClient)}.
+	 */
+	public SimulatedClient() {
+		// The client connects when it is passed to a simulation.
+	}
+	
+	/**
+	 * Returns the simulation this client has connected to.
+	 * 
+	 * @return the simulation, or null if the client has not been passed to
+	 * {@link Simulation#connect(SimulatedClient)} yet
+	 */
+	public Simulation getSimulation() {
+		return socket == null ? null : socket.simulation;
+	}
+	
+	/**
+	 * Returns whether the connection has been established and neither this
+	 * client nor the server has closed it.
+	 * 
+	 * @return true if the client is connected
+	 */
+	public boolean isConnected() {
+		return connected && !closed && !disconnected;
+	}
+	
+	/**
+	 * Sends a line to the server. If the message does not end in a new line
+	 * character, one will be appended. The message arrives at the server after
+	 * the simulation's latency, unless the server has closed the connection by
+	 * then, in which case it is lost.
+	 * 
+	 * @param message the message to send
+	 * @throws IllegalStateException if the client has not connected or has
+	 * already closed its connection
+	 */
+	public void send(String message) {
+		if(socket == null || closed)
+			throw new IllegalStateException("The client is not connected.");
+		if(!message.endsWith("\n") && !message.endsWith("\r"))
+			message = message.concat("\n");
+		socket.send(message.getBytes(SerialSocket.CHARSET));
+	}
+	
+	/**
+	 * Closes this client's end of the connection. The server reaches the end
+	 * of its input after everything this client sent before has arrived. This
+	 * client receives nothing more, but {@link #onDisconnect()} will still be
+	 * called once the server has closed its end. If the client is already
+	 * closed, this method does nothing.
+	 */
+	public void close() {
+		if(socket == null || closed)
+			return;
+		closed = true;
+		socket.shutdown();
+	}
+	
+	/**
+	 * Marks the connection as established and calls {@link #onConnect()}.
+	 * 
+	 * @throws Exception if onConnect() throws an exception
+	 */
+	final void connected() throws Exception {
+		connected = true;
+		onConnect();
+	}
+	
+	/**
+	 * Splits bytes which have arrived from the server into lines and passes
+	 * each complete line to {@link #receive(String)}. Like {@link
+	 * java.io.BufferedReader#readLine()}, a line can end with a line feed, a
+	 * carriage return, or both.
+	 * 
+	 * @param bytes the bytes which arrived
+	 * @throws Exception if receive(String) throws an exception
+	 */
+	final void received(byte[] bytes) throws Exception {
+		for(byte b : bytes) {
+			if(closed)
+				return;
+			boolean skip = skipLineFeed && b == '\n';
+			skipLineFeed = b == '\r';
+			if(skip)
+				continue;
+			else if(b == '\n' || b == '\r')
+				receiveLine();
+			else
+				line.write(b);
+		}
+	}
+	
+	/**
+	 * Passes the line which has been received to {@link #receive(String)}.
+	 * 
+	 * @throws Exception if receive(String) throws an exception
+	 */
+	private final void receiveLine() throws Exception {
+		String message = line.toString(SerialSocket.CHARSET);
+		line.reset();
+		receive(message);
+	}
+	
+	/**
+	 * Receives any final line which did not end with a line break and then
+	 * calls {@link #onDisconnect()}. This happens once, when news that the
+	 * server has closed the connection arrives.
+	 * 
+	 * @throws Exception if receive(String) or onDisconnect() throws an
+	 * exception
+	 */
+	final void disconnected() throws Exception {
+		if(disconnected)
+			return;
+		disconnected = true;
+		if(!closed && line.size() > 0)
+			receiveLine();
+		onDisconnect();
+	}
+	
+	/**
+	 * This method is called once when the connection to the server has been
+	 * established, before all other events. It is called before the server
+	 * has created its {@link SerialSocket} for the connection, but anything
+	 * sent now will be read by that socket.
+	 * <p>
+	 * By default, this method does nothing. It is meant to be overridden.
+	 * 
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void onConnect() throws Exception {
+		// This method is meant to be overridden.
+	}
+	
+	/**
+	 * This method is called each time a line arrives from the server. The
+	 * message does not include the line break.
+	 * <p>
+	 * By default, this method does nothing. It is meant to be overridden.
+	 * 
+	 * @param message the line which was received
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void receive(String message) throws Exception {
+		// This method is meant to be overridden.
+	}
+	
+	/**
+	 * This method is called once, after all other events, when news that the
+	 * server has closed its end of the connection arrives. It is called even
+	 * if this client closed the connection first.
+	 * <p>
+	 * By default, this method does nothing. It is meant to be overridden.
+	 * 
+	 * @throws Exception if an exception is thrown by the method
+	 */
+	protected void onDisconnect() throws Exception {
+		// This method is meant to be overridden.
+	}
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.sgware.serialsoc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link Outbox outbox} for a socket whose server is being run by a {@link
+ * Simulation}. The simulation runs on the server's main thread, so the queued
+ * output is written as soon as it is flushed, without any other thread. Each
+ * flush is sent across the simulated network together, and it arrives at the
+ * client after the simulation's latency.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class SimulatedOutbox extends Outbox {
+	
+	/**
+	 * The listener which reads from the same connection and which is told
+	 * when the connection has been closed.
+	 */
+	private final SerialSocket.SimulatedListener listener;
+	
+	/**
+	 * The simulated connection to write to.
+	 */
+	private final SimulatedSocket socket;
+	
+	/**
+	 * Constructs a new simulated outbox.
+	 * 
+	 * @param listener the listener which reads from the same connection
+	 * @param socket the simulated connection to write to
+	 */
+	SimulatedOutbox(SerialSocket.SimulatedListener listener, SimulatedSocket socket) {
+		this.listener = listener;
+		this.socket = socket;
+	}
+	
+	/**
+	 * Discards the queued output and closes the connection. Because a
+	 * simulated connection never waits for the client, this happens right
+	 * away.
+	 */
+	@Override
+	void abort() {
+		queue.clear();
+		close();
+	}
+	
+	@Override
+	void dispatch() {
+		while(true) {
+			ByteBuffer buffer = queue.poll();
+			if(buffer == null) {
+				socket.flush();
+				if(!idle())
+					return;
+			}
+			else if(buffer == CLOSE) {
+				socket.flush();
+				socket.close();
+				closed();
+				listener.disconnect();
+				return;
+			}
+			else {
+				int length = buffer.remaining();
+				socket.write(buffer);
+				sent(length);
+			}
+		}
+	}
+}
\ No newline at end of file
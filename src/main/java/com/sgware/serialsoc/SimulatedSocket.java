@@ -0,0 +1,272 @@
+package com.sgware.serialsoc;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The server's end of a connection across a {@link Simulation simulated
+ * network}. A {@link SerialSocket} created for a simulated socket does not
+ * use its streams; instead, its input is read and its output is written
+ * directly, and bytes travel to and from the {@link SimulatedClient client}
+ * as events which the simulation delivers after a random latency.
+ * <p>
+ * Like TCP, each direction of the connection is in order: bytes never arrive
+ * before bytes which were sent earlier in the same direction, even if their
+ * latency was shorter. Everything in this class is used only on the thread
+ * running the simulation, which is also the server's main thread.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class SimulatedSocket extends Socket {
+	
+	/**
+	 * The simulation which delivers this connection's bytes.
+	 */
+	final Simulation simulation;
+	
+	/**
+	 * The client at the other end of the connection.
+	 */
+	private final SimulatedClient client;
+	
+	/**
+	 * The address of the server's end of the connection.
+	 */
+	private final SocketAddress local;
+	
+	/**
+	 * The address of the client's end of the connection.
+	 */
+	private final SocketAddress remote;
+	
+	/**
+	 * The listener which reads this socket's input, or null if the server has
+	 * not started reading it yet.
+	 */
+	SerialSocket.SimulatedListener listener = null;
+	
+	/**
+	 * Bytes which have arrived from the client but have not been read yet.
+	 */
+	private ByteBuffer input = ByteBuffer.allocate(256);
+	
+	/**
+	 * Bytes which the server has written but not yet sent to the client.
+	 */
+	private ByteBuffer output = ByteBuffer.allocate(256);
+	
+	/**
+	 * A flag indicating that the client has closed the connection and that
+	 * news of it has reached the server.
+	 */
+	private boolean ended = false;
+	
+	/**
+	 * A flag indicating that the server has closed its end of the connection.
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * When the last bytes sent by the client will arrive at the server, in
+	 * virtual nanoseconds.
+	 */
+	long toServer = 0;
+	
+	/**
+	 * When the last bytes sent by the server will arrive at the client, in
+	 * virtual nanoseconds.
+	 */
+	private long toClient = 0;
+	
+	/**
+	 * Constructs the server's end of a new simulated connection.
+	 * 
+	 * @param simulation the simulation which will deliver its bytes
+	 * @param client the client at the other end
+	 * @param number a number which identifies the connection
+	 */
+	SimulatedSocket(Simulation simulation, SimulatedClient client, int number) {
+		// A socket with no proxy does not create a network socket until it
+		// connects, which this one never does.
+		super(Proxy.NO_PROXY);
+		this.simulation = simulation;
+		this.client = client;
+		this.local = new MemorySocket.MemoryAddress("simulation:server");
+		this.remote = new MemorySocket.MemoryAddress("simulation:client-" + number);
+	}
+	
+	/**
+	 * Sends bytes from the client to the server. They are added to this
+	 * socket's input when they arrive, unless the server has closed the
+	 * connection by then, in which case they are lost.
+	 * 
+	 * @param bytes the bytes to send
+	 */
+	void send(byte[] bytes) {
+		toServer = simulation.arrival(toServer);
+		simulation.schedule(toServer, () -> arrived(bytes));
+	}
+	
+	/**
+	 * Closes the client's end of the connection. The server reaches the end
+	 * of its input once it has read everything the client sent before.
+	 */
+	void shutdown() {
+		toServer = simulation.arrival(toServer);
+		simulation.schedule(toServer, () -> {
+			ended = true;
+			if(listener != null)
+				listener.readable();
+		});
+	}
+	
+	/**
+	 * Adds bytes which have arrived from the client to this socket's input and
+	 * tells the listener they are ready to read.
+	 * 
+	 * @param bytes the bytes which arrived
+	 */
+	private void arrived(byte[] bytes) {
+		if(closed)
+			return;
+		if(input.remaining() < bytes.length)
+			input = grow(input, bytes.length);
+		input.put(bytes);
+		if(listener != null)
+			listener.readable();
+	}
+	
+	/**
+	 * Moves as much of this socket's input as will fit into a buffer.
+	 * 
+	 * @param buffer the buffer to read into
+	 * @return the number of bytes read
+	 */
+	int read(ByteBuffer buffer) {
+		input.flip();
+		int length = Math.min(input.remaining(), buffer.remaining());
+		buffer.put(input.array(), input.position(), length);
+		input.position(input.position() + length);
+		input.compact();
+		return length;
+	}
+	
+	/**
+	 * Returns whether all of the client's input has been read and the client
+	 * has closed its end of the connection.
+	 * 
+	 * @return true if there will never be any more input
+	 */
+	boolean isInputEnded() {
+		return ended && input.position() == 0;
+	}
+	
+	/**
+	 * Adds bytes to the output which will be sent to the client when this
+	 * socket is {@link #flush() flushed}. The buffer's position is not
+	 * changed.
+	 * 
+	 * @param buffer the bytes to write
+	 */
+	void write(ByteBuffer buffer) {
+		if(output.remaining() < buffer.remaining())
+			output = grow(output, buffer.remaining());
+		output.put(buffer.duplicate());
+	}
+	
+	/**
+	 * Sends all of the output which has been written to the client, where it
+	 * will arrive together.
+	 */
+	void flush() {
+		if(output.position() == 0 || closed)
+			return;
+		byte[] bytes = Arrays.copyOf(output.array(), output.position());
+		output.clear();
+		toClient = simulation.arrival(toClient);
+		simulation.schedule(toClient, () -> client.received(bytes));
+	}
+	
+	/**
+	 * Returns a copy of a buffer, in which bytes are being added, which has
+	 * room for at least a given number of bytes more.
+	 * 
+	 * @param buffer the buffer which is too small
+	 * @param needed the number of bytes which need to be added
+	 * @return a larger buffer containing the same bytes
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+		int capacity = buffer.capacity();
+		while(capacity - buffer.position() < needed)
+			capacity *= 2;
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+	
+	@Override
+	public InputStream getInputStream() throws SocketException {
+		throw new SocketException("A simulated socket does not have streams.");
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws SocketException {
+		throw new SocketException("A simulated socket does not have streams.");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Closes the server's end of the connection. Any input which has not been
+	 * read is discarded, and the client is told the connection has closed
+	 * once everything the server sent before has arrived.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		flush();
+		closed = true;
+		input.clear();
+		toClient = simulation.arrival(toClient);
+		simulation.schedule(toClient, () -> client.disconnected());
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+	
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return local;
+	}
+	
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return remote;
+	}
+	
+	@Override
+	public String toString() {
+		return "[Simulated Socket: local=" + local + "; remote=" + remote + "; closed=" + closed + "]";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,400 @@
+package com.sgware.serialsoc;
+
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Runs a {@link SerialServerSocket} in virtual time, with {@link
+ * SimulatedClient simulated clients} connected across a simulated network, so
+ * that a test of the server is fast and can be repeated exactly.
+ * <p>
+ * A simulation replaces the server's threads and its network. Rather than
+ * calling {@link SerialServerSocket#run()}, the thread which calls {@link
+ * #run(Duration)} becomes the server's main thread, and it alternates between
+ * running the operations waiting on the main thread and delivering the
+ * network's events: new connections, lines arriving from clients or from the
+ * server, and connections closing. Each of those events arrives after a
+ * random {@link #setLatency(Duration, Duration) latency}, and when an event
+ * and the server are both ready, the simulation chooses at random which goes
+ * first. Whenever neither is ready, the simulation's clock jumps straight to
+ * the next event or the next {@link
+ * SerialServerSocket#schedule(Duration, CheckedRunnable) scheduled task}, so
+ * hours of traffic and timeouts can be simulated in seconds. Every random
+ * choice is made by one generator created from the simulation's seed, so a
+ * run which finds a bug can be repeated from its seed.
+ * <p>
+ * For the run to be repeatable, the server and its clients should not start
+ * threads, sleep, or read the real clock, and they should make their own
+ * random choices with the simulation's {@link #getRandom() generator}. While a
+ * server is simulated, its scheduled tasks and socket timeouts use the
+ * simulation's clock, and its {@link
+ * SerialServerSocket#getSelectorThreads() selector threads}, if any, are
+ * never started. The server's {@link SerialServerSocket#getServerSocket()
+ * server socket} is an unbound one which is never used. A shard of a {@link
+ * SerialServerGroup group} cannot be simulated.
+ * <p>
+ * A simulation is not thread safe; it, its server, and its clients should
+ * only be used on the thread which runs it.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class Simulation {
+	
+	/**
+	 * Something which will happen on the simulated network at a given time.
+	 */
+	private static final class Event implements Comparable<Event> {
+		
+		/**
+		 * When the event happens, in virtual nanoseconds.
+		 */
+		final long time;
+		
+		/**
+		 * A number which orders events that happen at the same time by when
+		 * they were scheduled.
+		 */
+		final long sequence;
+		
+		/**
+		 * What happens.
+		 */
+		final CheckedRunnable action;
+		
+		/**
+		 * Constructs a new event.
+		 * 
+		 * @param time when the event happens
+		 * @param sequence the order in which the event was scheduled
+		 * @param action what happens
+		 */
+		Event(long time, long sequence, CheckedRunnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+		
+		@Override
+		public int compareTo(Event other) {
+			int comparison = Long.compare(time, other.time);
+			return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+		}
+	}
+	
+	/**
+	 * The server being simulated.
+	 */
+	private final SerialServerSocket serial;
+	
+	/**
+	 * The seed from which every random choice is made.
+	 */
+	private final long seed;
+	
+	/**
+	 * The generator which makes every random choice.
+	 */
+	private final Random random;
+	
+	/**
+	 * The events waiting to happen, in order.
+	 */
+	private final PriorityQueue<Event> events = new PriorityQueue<>();
+	
+	/**
+	 * The number of events which have been scheduled.
+	 */
+	private long sequence = 0;
+	
+	/**
+	 * The number of clients which have connected.
+	 */
+	private int connections = 0;
+	
+	/**
+	 * The shortest time, in nanoseconds, it takes for anything to cross the
+	 * network.
+	 */
+	private long minimumLatency = Duration.ofMillis(1).toNanos();
+	
+	/**
+	 * The longest time, in nanoseconds, it takes for anything to cross the
+	 * network.
+	 */
+	private long maximumLatency = Duration.ofMillis(50).toNanos();
+	
+	/**
+	 * The unbound server socket which stands in for the server's real one, or
+	 * null if the simulation has not started yet.
+	 */
+	ServerSocket server = null;
+	
+	/**
+	 * The current virtual time, in nanoseconds since the simulation began.
+	 */
+	long time = 0;
+	
+	/**
+	 * A flag indicating that the server has started running.
+	 */
+	private boolean started = false;
+	
+	/**
+	 * A flag indicating that the server has stopped.
+	 */
+	private boolean stopped = false;
+	
+	/**
+	 * Constructs a new simulation of a server, which has not started running
+	 * yet. From now on, the server can only be run by this simulation.
+	 * 
+	 * @param server the server to simulate
+	 * @param seed the seed from which every random choice will be made
+	 * @throws IllegalArgumentException if the server is a shard of a group or
+	 * is already being simulated
+	 */
+	public Simulation(SerialServerSocket server, long seed) {
+		Objects.requireNonNull(server);
+		if(server.group != null)
+			throw new IllegalArgumentException("A shard of a server group cannot be simulated.");
+		if(server.simulation != null)
+			throw new IllegalArgumentException("The server is already being simulated.");
+		this.serial = server;
+		this.seed = seed;
+		this.random = new Random(seed);
+		server.simulation = this;
+	}
+	
+	@Override
+	public String toString() {
+		return "[Simulation: seed=" + seed + "; time=" + getTime() + "; events=" + events.size() + "; stopped=" + stopped + "]";
+	}
+	
+	/**
+	 * Returns the seed from which every random choice is made.
+	 * 
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+	
+	/**
+	 * Returns the random number generator from which every random choice in
+	 * the simulation is made. The server and its clients should use it for
+	 * their own choices so that the whole run can be repeated from the seed.
+	 * 
+	 * @return the random number generator
+	 */
+	public Random getRandom() {
+		return random;
+	}
+	
+	/**
+	 * Returns how much virtual time has passed since the simulation began.
+	 * 
+	 * @return the virtual time
+	 */
+	public Duration getTime() {
+		return Duration.ofNanos(time);
+	}
+	
+	/**
+	 * Sets how long it takes for anything to cross the simulated network.
+	 * Each new connection, each flush of bytes, and each connection closing
+	 * takes a random amount of time between the minimum and the maximum to
+	 * arrive, though bytes never arrive before bytes which were sent earlier
+	 * in the same direction. By default, the latency is between 1 and 50
+	 * milliseconds.
+	 * 
+	 * @param minimum the shortest latency
+	 * @param maximum the longest latency
+	 * @throws IllegalArgumentException if the minimum is negative or greater
+	 * than the maximum
+	 */
+	public void setLatency(Duration minimum, Duration maximum) {
+		long min = minimum.toNanos();
+		long max = maximum.toNanos();
+		if(min < 0 || min > max)
+			throw new IllegalArgumentException("The minimum latency must be between 0 and the maximum.");
+		this.minimumLatency = min;
+		this.maximumLatency = max;
+	}
+	
+	/**
+	 * Returns whether the server has stopped, either because it was closed or
+	 * because an uncaught exception was thrown.
+	 * 
+	 * @return true if the server has stopped
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+	
+	/**
+	 * Connects a new client to the server. After the simulation's latency,
+	 * the client's {@link SimulatedClient#onConnect() onConnect} method is
+	 * called and the server accepts the connection, unless it has been closed,
+	 * in which case the connection is closed right away.
+	 * 
+	 * @param client the client to connect
+	 * @throws IllegalStateException if the client has already connected
+	 */
+	public void connect(SimulatedClient client) {
+		Objects.requireNonNull(client);
+		if(client.socket != null)
+			throw new IllegalStateException("The client has already connected.");
+		SimulatedSocket socket = new SimulatedSocket(this, client, ++connections);
+		client.socket = socket;
+		socket.toServer = arrival(0);
+		schedule(socket.toServer, () -> {
+			client.connected();
+			if(stopped)
+				socket.close();
+			else
+				serial.adopt(socket);
+		});
+	}
+	
+	/**
+	 * Runs an operation after a delay in virtual time. This is how clients
+	 * should wait before acting. The operation runs on the thread running the
+	 * simulation, and if it throws an exception, the simulation stops and
+	 * {@link #run(Duration)} throws it.
+	 * 
+	 * @param delay how long to wait before the operation runs
+	 * @param runnable the operation
+	 */
+	public void schedule(Duration delay, CheckedRunnable runnable) {
+		Objects.requireNonNull(runnable);
+		schedule(time + Math.max(0, delay.toNanos()), runnable);
+	}
+	
+	/**
+	 * Runs the simulation until a given amount of virtual time has passed or
+	 * the server has stopped and every event on the network has happened,
+	 * whichever comes first. The first time this method is called, the server
+	 * starts running on the current thread, which becomes its main thread. It
+	 * can be called again to continue the simulation.
+	 * 
+	 * @param duration how much virtual time should pass
+	 * @throws Exception if the server could not start, if the server stopped
+	 * because of an uncaught exception, or if a client or scheduled operation
+	 * threw an exception
+	 */
+	public void run(Duration duration) throws Exception {
+		long nanos = duration.toNanos();
+		if(nanos < 0)
+			throw new IllegalArgumentException("The duration cannot be negative.");
+		run(nanos > Long.MAX_VALUE - time ? Long.MAX_VALUE : time + nanos);
+	}
+	
+	/**
+	 * Closes the server and runs the simulation until the server has stopped
+	 * and every event on the network, such as clients being told their
+	 * connections have closed, has happened.
+	 * 
+	 * @throws Exception if the server stopped because of an uncaught
+	 * exception, or if a client or scheduled operation threw an exception
+	 */
+	public void stop() throws Exception {
+		if(!stopped)
+			serial.close();
+		run(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Runs the simulation until a given time or until there is nothing left to
+	 * happen.
+	 * 
+	 * @param end the virtual time at which to stop
+	 * @throws Exception if the server could not start, if the server stopped
+	 * because of an uncaught exception, or if a client or scheduled operation
+	 * threw an exception
+	 */
+	private void run(long end) throws Exception {
+		if(!started)
+			start();
+		while(true) {
+			if(!stopped && !serial.isRunning()) {
+				stopped = true;
+				serial.stopRunning(null);
+			}
+			Event next = events.peek();
+			boolean due = next != null && next.time <= time;
+			// When the network and the server are both ready, choose which
+			// goes first at random.
+			if(due && (stopped || random.nextBoolean())) {
+				events.poll().action.run();
+				continue;
+			}
+			if(!stopped && serial.step())
+				continue;
+			if(due) {
+				events.poll().action.run();
+				continue;
+			}
+			// Nothing can happen now, so jump ahead to the next event or
+			// scheduled task.
+			long when = next == null ? Long.MAX_VALUE : next.time;
+			if(!stopped) {
+				long wait = serial.untilNextTimer();
+				if(wait >= 0)
+					when = Math.min(when, time + wait);
+			}
+			if(when == Long.MAX_VALUE || when > end) {
+				if(end != Long.MAX_VALUE)
+					time = Math.max(time, end);
+				return;
+			}
+			time = when;
+		}
+	}
+	
+	/**
+	 * Starts the server running on the current thread.
+	 * 
+	 * @throws Exception if the server could not start
+	 */
+	private void start() throws Exception {
+		started = true;
+		server = new ServerSocket();
+		try {
+			serial.startRunning();
+		}
+		catch(Exception exception) {
+			stopped = true;
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Adds an event to the network.
+	 * 
+	 * @param when the virtual time at which the event happens
+	 * @param action what happens
+	 */
+	final void schedule(long when, CheckedRunnable action) {
+		events.add(new Event(when, sequence++, action));
+	}
+	
+	/**
+	 * Returns when something sent across the network now will arrive, which
+	 * is after a random latency but not before the last thing sent in the
+	 * same direction.
+	 * 
+	 * @param previous when the last thing sent in the same direction will
+	 * arrive
+	 * @return when the new thing will arrive
+	 */
+	final long arrival(long previous) {
+		long latency = minimumLatency;
+		if(maximumLatency > minimumLatency)
+			latency += random.nextLong(maximumLatency - minimumLatency + 1);
+		return Math.max(time + latency, previous);
+	}
+}
\ No newline at end of file
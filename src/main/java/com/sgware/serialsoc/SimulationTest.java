@@ -0,0 +1,327 @@
+package com.sgware.serialsoc;
+
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Run a serial server socket in a {@link Simulation}, with many simulated
+ * clients connecting over several hours of virtual time. Each client sends a
+ * random number of random messages with random pauses between them, which
+ * the server echoes back, and then disconnects. Some clients pause for long
+ * enough that the server times them out. All methods check that they are
+ * called in the right order from the right thread, every echo is checked
+ * against what the client sent, and timeouts and scheduled tasks are checked
+ * against the simulation's clock.
+ * <p>
+ * The first optional argument is the number of clients, the second is the
+ * number of hours to simulate, and the third is the seed. If no seed is
+ * given, a random one is chosen and printed. The whole test runs twice with
+ * the same seed, and the two runs must produce the same trace of everything
+ * the clients received, at the same virtual times, which shows that any run
+ * can be repeated from its seed.
+ * <p>
+ * Unlike {@link StressTest}, this test does not use threads or real sockets,
+ * so thousands of clients and hours of traffic take seconds.
+ * 
+ * @author Stephen G. Ware
+ */
+class SimulationTest {
+	
+	private static final Duration TIMEOUT = Duration.ofMinutes(5);
+	private static final Duration LATENCY = Duration.ofMillis(50);
+	
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Duration duration = Duration.ofHours(args.length > 1 ? Long.parseLong(args[1]) : 4);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : new Random().nextLong();
+		System.out.println("Seed: " + seed);
+		SimulationTest first = new SimulationTest(clients, duration, seed);
+		first.run();
+		SimulationTest second = new SimulationTest(clients, duration, seed);
+		second.run();
+		if(first.trace != second.trace)
+			throw new RuntimeException("Two runs with the same seed had different traces.");
+		System.out.println("Both runs had the same trace: " + Long.toHexString(first.trace));
+	}
+	
+	private final int clients;
+	private final Duration duration;
+	private final TestServer server = new TestServer();
+	private final Simulation simulation;
+	private final Random random;
+	private final Thread thread = Thread.currentThread();
+	private long trace = 0;
+	private int connected = 0;
+	private int disconnected = 0;
+	private long messages = 0;
+	private int timeouts = 0;
+	
+	private SimulationTest(int clients, Duration duration, long seed) {
+		this.clients = clients;
+		this.duration = duration;
+		this.simulation = new Simulation(server, seed);
+		this.random = simulation.getRandom();
+		simulation.setLatency(Duration.ofMillis(1), LATENCY);
+	}
+	
+	private void run() throws Exception {
+		long start = System.nanoTime();
+		// Clients arrive at random times throughout the simulation.
+		for(int i = 0; i < clients; i++) {
+			TestClient client = new TestClient(i);
+			simulation.schedule(Duration.ofNanos(random.nextLong(duration.toNanos())), () -> simulation.connect(client));
+		}
+		simulation.run(duration);
+		simulation.stop();
+		if(connected != clients || disconnected != clients)
+			throw new RuntimeException("Not every client connected and disconnected: " + this);
+		long elapsed = System.nanoTime() - start;
+		System.out.println(this + " took " + Duration.ofNanos(elapsed).toMillis() + " ms.");
+	}
+	
+	@Override
+	public String toString() {
+		return "[Simulation Test: time=" + simulation.getTime() + "; connected=" + connected + "; disconnected=" + disconnected + "; messages=" + messages + "; timeouts=" + timeouts + "; trace=" + Long.toHexString(trace) + "]";
+	}
+	
+	private void trace(int client, String line) {
+		trace = trace * 31 + simulation.time;
+		trace = trace * 31 + client;
+		trace = trace * 31 + line.hashCode();
+	}
+	
+	private void checkThread() {
+		if(Thread.currentThread() != thread)
+			throw new RuntimeException("Method is not running on the simulation thread.");
+	}
+	
+	private class TestServer extends SerialServerSocket {
+		
+		public final SocketRegistry<TestSocket> sockets = new SocketRegistry<>();
+		public boolean started = false;
+		public boolean closed = false;
+		public boolean stopped = false;
+		public int minutes = 0;
+		
+		@Override
+		public String toString() {
+			return "[Test Server: sockets=" + sockets.size() + "; started=" + started + "; closed=" + closed + "; stopped=" + stopped + "]";
+		}
+		
+		@Override
+		protected TestSocket createSocket(Socket socket) throws Exception {
+			checkThread();
+			return new TestSocket(this, socket);
+		}
+		
+		@Override
+		protected void onStart() {
+			checkThread();
+			if(started || closed || stopped)
+				throw new RuntimeException("Server started out of order: " + this);
+			started = true;
+			// Check that scheduled tasks run on the simulation's clock.
+			scheduleAtFixedRate(Duration.ofMinutes(1), () -> {
+				checkThread();
+				minutes++;
+				long late = simulation.time - Duration.ofMinutes(minutes).toNanos();
+				if(late < 0 || late > Duration.ofMillis(20).toNanos())
+					throw new RuntimeException("Minute " + minutes + " ran at " + simulation.getTime() + ".");
+			});
+		}
+		
+		@Override
+		protected void onException(Exception exception) {
+			checkThread();
+			System.out.println(SimulationTest.this);
+		}
+		
+		@Override
+		protected void onClose() {
+			checkThread();
+			if(!started || closed || stopped)
+				throw new RuntimeException("Server closed out of order: " + this);
+			closed = true;
+		}
+		
+		@Override
+		protected void onStop() {
+			checkThread();
+			if(!started || !closed || stopped)
+				throw new RuntimeException("Server stopped out of order: " + this);
+			if(sockets.size() > 0)
+				throw new RuntimeException("Server stopped with sockets connected: " + this);
+			stopped = true;
+		}
+	}
+	
+	private class TestSocket extends SerialSocket {
+		
+		public final TestServer server;
+		public boolean connected = false;
+		public boolean closed = false;
+		public boolean disconnected = false;
+		
+		protected TestSocket(TestServer server, Socket socket) throws Exception {
+			super(server, socket);
+			this.server = server;
+			checkThread();
+		}
+		
+		@Override
+		public String toString() {
+			return "[Test Socket: id=" + getId() + "; connected=" + connected + "; closed=" + closed + "; disconnected=" + disconnected + "]";
+		}
+		
+		@Override
+		protected Duration getIdleTimeout() {
+			return TIMEOUT;
+		}
+		
+		@Override
+		protected void onConnect() throws Exception {
+			checkThread();
+			if(connected || closed || disconnected)
+				throw new RuntimeException("Socket connected out of order: " + this);
+			if(!server.started || server.closed || server.stopped)
+				throw new RuntimeException("Socket connected out of order: " + server);
+			connected = true;
+			server.sockets.add(this);
+		}
+		
+		@Override
+		protected void receive(String message) throws Exception {
+			checkThread();
+			if(!connected || disconnected)
+				throw new RuntimeException("Socket received out of order: " + this);
+			if(!server.started || server.stopped)
+				throw new RuntimeException("Socket received out of order: " + server);
+			send(message);
+		}
+		
+		@Override
+		protected void onTimeout() throws Exception {
+			checkThread();
+			send("Timed out.");
+			close();
+		}
+		
+		@Override
+		protected void onClose() throws Exception {
+			checkThread();
+			if(!connected || closed || disconnected)
+				throw new RuntimeException("Socket closed out of order: " + this);
+			if(!server.started || server.stopped)
+				throw new RuntimeException("Socket closed out of order: " + server);
+			closed = true;
+		}
+		
+		@Override
+		protected void onDisconnect() throws Exception {
+			checkThread();
+			if(!connected || !closed || disconnected)
+				throw new RuntimeException("Socket disconnected out of order: " + this);
+			if(!server.started || server.stopped)
+				throw new RuntimeException("Socket disconnected out of order: " + server);
+			disconnected = true;
+			server.sockets.remove(this);
+		}
+	}
+	
+	private class TestClient extends SimulatedClient {
+		
+		public final int number;
+		public final ArrayDeque<String> expected = new ArrayDeque<>();
+		public int remaining;
+		public long lastEcho = 0;
+		public boolean timedOut = false;
+		public boolean disconnected = false;
+		
+		public TestClient(int number) {
+			this.number = number;
+			this.remaining = random.nextInt(100);
+		}
+		
+		@Override
+		public String toString() {
+			return "[Test Client: number=" + number + "; remaining=" + remaining + "; expected=" + expected.size() + "; timedOut=" + timedOut + "; disconnected=" + disconnected + "]";
+		}
+		
+		@Override
+		protected void onConnect() {
+			checkThread();
+			connected++;
+			lastEcho = simulation.time;
+			next();
+		}
+		
+		private void next() {
+			if(remaining == 0) {
+				close();
+				return;
+			}
+			remaining--;
+			simulation.schedule(pause(), () -> {
+				if(!isConnected())
+					return;
+				String message = message();
+				expected.add(message);
+				send(message);
+				next();
+			});
+		}
+		
+		@Override
+		protected void receive(String message) {
+			checkThread();
+			if(disconnected || timedOut)
+				throw new RuntimeException("Client received out of order: " + this);
+			trace(number, message);
+			if(message.equals("Timed out.")) {
+				// The server was last active no earlier than one latency
+				// before the last echo arrived.
+				if(simulation.time - lastEcho < TIMEOUT.minus(LATENCY).toNanos())
+					throw new RuntimeException("Client timed out early at " + simulation.getTime() + ": " + this);
+				timedOut = true;
+				timeouts++;
+			}
+			else if(!message.equals(expected.poll()))
+				throw new RuntimeException("Client received the wrong echo \"" + message + "\": " + this);
+			else {
+				lastEcho = simulation.time;
+				messages++;
+			}
+		}
+		
+		@Override
+		protected void onDisconnect() {
+			checkThread();
+			if(disconnected)
+				throw new RuntimeException("Client disconnected out of order: " + this);
+			disconnected = true;
+			SimulationTest.this.disconnected++;
+			trace(number, "");
+		}
+	}
+	
+	private Duration pause() {
+		// Most pauses are short, but a few are long enough to time out.
+		int kind = random.nextInt(100);
+		if(kind < 90)
+			return Duration.ofMillis(random.nextLong(2000));
+		else if(kind < 99)
+			return Duration.ofMillis(random.nextLong(60000));
+		else
+			return TIMEOUT.plusMillis(random.nextLong(60000));
+	}
+	
+	private String message() {
+		int length = 1 + random.nextInt(100);
+		StringBuilder string = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+			string.append((char) ('A' + random.nextInt(26)));
+		return string.toString();
+	}
+}
\ No newline at end of file
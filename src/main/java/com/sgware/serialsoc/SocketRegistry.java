@@ -0,0 +1,239 @@
+package com.sgware.serialsoc;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of {@link SerialSocket}s which can add, remove, and find a socket
+ * without searching, no matter how many sockets it holds, and which iterates
+ * over its sockets in the order they were added.
+ * <p>
+ * Every socket which has started has an {@link SerialSocket#getId() id}, a
+ * small number which no other open socket on the same server has. A registry
+ * stores each socket at the index of its id in an array, and it keeps the
+ * order in which sockets were added as a linked list of ids threaded through
+ * two more arrays, so adding or removing a socket never creates an object or
+ * moves other sockets. Because ids are reused once a socket has disconnected,
+ * the arrays only grow as large as the most sockets which have been open at
+ * the same time.
+ * <p>
+ * A server keeps its open sockets in a registry, and a server can use more
+ * registries for subsets of its sockets, such as the users in a chat room. A
+ * socket must be removed from every registry it was added to before it
+ * finishes {@link SerialSocket#onDisconnect() disconnecting}, since its id
+ * will then be given to a new socket. A registry should only hold sockets
+ * from one server, and like the server's other data, it should only be used
+ * on the main thread.
+ * 
+ * @param <S> the type of socket in the registry
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class SocketRegistry<S extends SerialSocket> implements Iterable<S> {
+	
+	/**
+	 * Marks the end of the list of ids.
+	 */
+	private static final int NONE = -1;
+	
+	/**
+	 * The socket with each id, or null if no socket with that id is in the
+	 * registry.
+	 */
+	private SerialSocket[] sockets = new SerialSocket[16];
+	
+	/**
+	 * The id of the socket which was added before the socket with each id.
+	 */
+	private int[] previous = new int[16];
+	
+	/**
+	 * The id of the socket which was added after the socket with each id.
+	 */
+	private int[] next = new int[16];
+	
+	/**
+	 * The id of the first socket in the registry.
+	 */
+	private int first = NONE;
+	
+	/**
+	 * The id of the last socket in the registry.
+	 */
+	private int last = NONE;
+	
+	/**
+	 * The number of sockets in the registry.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Constructs a new, empty socket registry.
+	 */
+	public SocketRegistry() {
+		// The registry starts empty.
+	}
+	
+	/**
+	 * Adds a socket to the end of the registry, unless it is already in the
+	 * registry.
+	 * 
+	 * @param socket the socket to add
+	 * @return true if the socket was added, or false if it was already in the
+	 * registry
+	 * @throws IllegalStateException if the socket has not started yet, or if
+	 * a different socket with the same id is in the registry because it was
+	 * not removed when it disconnected
+	 */
+	public boolean add(S socket) {
+		int id = socket.getId();
+		if(id < 0)
+			throw new IllegalStateException("The socket has not started yet.");
+		if(id >= sockets.length)
+			grow(id);
+		SerialSocket existing = sockets[id];
+		if(existing == socket)
+			return false;
+		else if(existing != null)
+			throw new IllegalStateException("A disconnected socket with the same id is still in the registry.");
+		sockets[id] = socket;
+		previous[id] = last;
+		next[id] = NONE;
+		if(last == NONE)
+			first = id;
+		else
+			next[last] = id;
+		last = id;
+		size++;
+		return true;
+	}
+	
+	/**
+	 * Removes a socket from the registry, if it is in the registry. While
+	 * iterating over the registry, the socket which was returned most recently
+	 * can be removed, but no others.
+	 * 
+	 * @param socket the socket to remove
+	 * @return true if the socket was removed, or false if it was not in the
+	 * registry
+	 */
+	public boolean remove(SerialSocket socket) {
+		if(!contains(socket))
+			return false;
+		int id = socket.getId();
+		if(previous[id] == NONE)
+			first = next[id];
+		else
+			next[previous[id]] = next[id];
+		if(next[id] == NONE)
+			last = previous[id];
+		else
+			previous[next[id]] = previous[id];
+		sockets[id] = null;
+		size--;
+		return true;
+	}
+	
+	/**
+	 * Returns true if a socket is in the registry.
+	 * 
+	 * @param socket the socket
+	 * @return true if the socket is in the registry
+	 */
+	public boolean contains(SerialSocket socket) {
+		int id = socket.getId();
+		return id >= 0 && id < sockets.length && sockets[id] == socket;
+	}
+	
+	/**
+	 * Returns the socket in the registry with a given {@link
+	 * SerialSocket#getId() id}.
+	 * 
+	 * @param id the id
+	 * @return the socket with that id, or null if the registry does not have
+	 * one
+	 */
+	@SuppressWarnings("unchecked")
+	public S get(int id) {
+		if(id < 0 || id >= sockets.length)
+			return null;
+		return (S) sockets[id];
+	}
+	
+	/**
+	 * Returns the number of sockets in the registry.
+	 * 
+	 * @return the number of sockets
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns true if the registry has no sockets.
+	 * 
+	 * @return true if the registry is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Returns an iterator over the sockets in the order they were added.
+	 * 
+	 * @return an iterator
+	 */
+	@Override
+	public Iterator<S> iterator() {
+		return new Iterator<S>() {
+			
+			private int cursor = first;
+			
+			@Override
+			public boolean hasNext() {
+				return cursor != NONE;
+			}
+			
+			@Override
+			@SuppressWarnings("unchecked")
+			public S next() {
+				if(cursor == NONE)
+					throw new NoSuchElementException();
+				int id = cursor;
+				cursor = next[id];
+				return (S) sockets[id];
+			}
+		};
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder string = new StringBuilder("[");
+		for(S socket : this) {
+			if(string.length() > 1)
+				string.append(", ");
+			string.append(socket);
+		}
+		return string.append("]").toString();
+	}
+	
+	/**
+	 * Makes the arrays large enough to hold a given id.
+	 * 
+	 * @param id the id
+	 */
+	private void grow(int id) {
+		int length = sockets.length;
+		while(length <= id)
+			length *= 2;
+		SerialSocket[] sockets = new SerialSocket[length];
+		System.arraycopy(this.sockets, 0, sockets, 0, this.sockets.length);
+		this.sockets = sockets;
+		int[] previous = new int[length];
+		System.arraycopy(this.previous, 0, previous, 0, this.previous.length);
+		this.previous = previous;
+		int[] next = new int[length];
+		System.arraycopy(this.next, 0, next, 0, this.next.length);
+		this.next = next;
+	}
+}
\ No newline at end of file
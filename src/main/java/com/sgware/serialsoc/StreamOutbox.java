@@ -0,0 +1,150 @@
+package com.sgware.serialsoc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Outbox outbox} for a socket which has its own thread. The queued
+ * output is written to the socket's blocking output stream by a thread from a
+ * pool which the server shares among all of its sockets, so a thread is only
+ * used while a socket has output to write.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class StreamOutbox extends Outbox implements Runnable {
+	
+	/**
+	 * The serial socket whose output this is.
+	 */
+	private final SerialSocket owner;
+	
+	/**
+	 * The socket's output stream. Writes are buffered so that many small
+	 * messages can be sent together.
+	 */
+	private final OutputStream output;
+	
+	/**
+	 * The pool of threads which write output.
+	 */
+	private final Executor executor;
+	
+	/**
+	 * Used to copy bytes out of buffers which do not have an accessible array.
+	 */
+	private byte[] scratch = null;
+	
+	/**
+	 * Constructs a new stream outbox.
+	 * 
+	 * @param owner the serial socket whose output this is
+	 * @param executor the pool of threads which write output
+	 * @throws IOException if an exception occurs while opening the socket's
+	 * output stream
+	 */
+	StreamOutbox(SerialSocket owner, Executor executor) throws IOException {
+		this.owner = owner;
+		this.output = new BufferedOutputStream(owner.socket.getOutputStream());
+		this.executor = executor;
+	}
+	
+	@Override
+	void dispatch() {
+		executor.execute(this);
+	}
+	
+	/**
+	 * Closes the socket, which makes a write that is blocked because the
+	 * client has stopped reading fail, so the writing thread stops and
+	 * discards the rest of the queue. If no thread is writing, one is asked
+	 * to, and it finds that the socket has closed.
+	 */
+	@Override
+	void abort() {
+		try {
+			owner.socket.close();
+		}
+		catch(IOException exception) {
+			// The socket is closed even if an exception is thrown.
+		}
+		close();
+	}
+	
+	@Override
+	public void run() {
+		FlightEvents.Flush event = null;
+		try {
+			while(true) {
+				ByteBuffer buffer = queue.poll();
+				if(buffer == null) {
+					output.flush();
+					if(event != null) {
+						event.commit();
+						event = null;
+					}
+					if(!idle())
+						return;
+				}
+				else if(buffer == CLOSE) {
+					output.flush();
+					owner.socket.close();
+					closed();
+					return;
+				}
+				else {
+					if(event == null && FlightEvents.FLUSH.isEnabled()) {
+						event = new FlightEvents.Flush();
+						event.socket = owner.getId();
+						event.begin();
+					}
+					int length = buffer.remaining();
+					write(buffer);
+					sent(length);
+					if(event != null)
+						event.bytes += length;
+				}
+			}
+		}
+		catch(IOException exception) {
+			closed();
+			try {
+				owner.socket.close();
+			}
+			catch(IOException other) {
+				// The socket is already broken.
+			}
+			// Ignore exceptions that happen because the socket is closed or
+			// closes during the write.
+			if(!(exception instanceof SocketException || exception instanceof ClosedChannelException))
+				owner.report(exception);
+		}
+	}
+	
+	/**
+	 * Writes the remaining bytes in a buffer to the output stream.
+	 * 
+	 * @param buffer the bytes to write
+	 * @throws IOException if an exception occurs while writing
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		if(buffer.hasArray())
+			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		else {
+			if(scratch == null)
+				scratch = new byte[8192];
+			ByteBuffer copy = buffer.duplicate();
+			while(copy.hasRemaining()) {
+				int length = Math.min(copy.remaining(), scratch.length);
+				copy.get(scratch, 0, length);
+				output.write(scratch, 0, length);
+			}
+		}
+	}
+}
\ No newline at end of file
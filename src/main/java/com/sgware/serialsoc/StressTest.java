@@ -7,25 +7,40 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Create a serial server socket, then have many clients connect to it, send a
  * random number of random messages, and disconnect. All methods check that they
  * are called in the right order from the right thread.
+ * <p>
+ * The first optional argument is the number of clients, and the second is
+ * either "platform" (the default) or "virtual". When it is "virtual", the
+ * server's accepter and listener threads and all of the clients' threads are
+ * virtual threads, which requires Java 21 or later. Virtual threads allow the
+ * test to be run with many more clients, such as 100000, although the
+ * operating system's limits on open files and ephemeral ports may also need to
+ * be raised. The server listens on any free port.
+ * <p>
+ * This test checks correctness rather than speed; to measure throughput and
+ * latency under load, use {@link LoadGenerator}.
  * 
  * @author Stephen G. Ware
  */
 class StressTest {
 	
-	private static final int PORT = 1234;
-	private static final int CLIENTS = 10000;
+	private static final CompletableFuture<Integer> PORT = new CompletableFuture<>();
+	private static int CLIENTS = 10000;
+	private static boolean VIRTUAL = false;
 	private static final Random RANDOM = new Random(0);
 	private static Thread SERVER_THREAD = null;
 	
 	public static void main(String[] args) throws Exception {
+		if(args.length > 0)
+			CLIENTS = Integer.parseInt(args[0]);
+		if(args.length > 1)
+			VIRTUAL = args[1].equals("virtual");
 		// Create clients.
 		TestClient[] clients = new TestClient[CLIENTS];
 		for(int i = 0; i < clients.length; i++)
@@ -44,7 +59,7 @@ class StressTest {
 		// Start each client after a random delay.
 		for(TestClient client : clients) {
 			pause();
-			client.start();
+			thread(client).start();
 		}
 		// Close the server and wait for it to finish.
 		server.close();
@@ -53,7 +68,7 @@ class StressTest {
 	
 	private static class TestServer extends SerialServerSocket {
 		
-		public final List<TestSocket> sockets = new ArrayList<>();
+		public final SocketRegistry<TestSocket> sockets = new SocketRegistry<>();
 		public boolean started = false;
 		public boolean closed = false;
 		public boolean stopped = false;
@@ -66,7 +81,9 @@ class StressTest {
 		@Override
 		protected ServerSocket createServer() throws IOException {
 			checkThread();
-			return new ServerSocket(PORT);
+			ServerSocket server = new ServerSocket(0);
+			PORT.complete(server.getLocalPort());
+			return server;
 		}
 		
 		@Override
@@ -75,6 +92,12 @@ class StressTest {
 			return new TestSocket(this, socket);
 		}
 		
+		@Override
+		protected Thread createThread(Runnable runnable) {
+			checkThread();
+			return thread(runnable);
+		}
+		
 		@Override
 		protected void onStart() {
 			checkThread();
@@ -109,10 +132,10 @@ class StressTest {
 			System.out.println("Server stopped.");
 		}
 		
-		public void broadcast(String message) throws Exception {
+		@Override
+		public void broadcast(String message) {
 			checkThread();
-			for(TestSocket socket : sockets)
-				socket.send(message);
+			broadcast(sockets, message);
 		}
 	}
 	
@@ -187,7 +210,7 @@ class StressTest {
 		}
 	}
 	
-	private static class TestClient extends Thread {
+	private static class TestClient implements Runnable {
 		
 		public Socket socket = null;
 		private final String[] messages;
@@ -201,8 +224,8 @@ class StressTest {
 		@Override
 		public void run() {
 			try {
-				socket = new Socket("localhost", PORT);
-				Thread listener = new TestClientListener(this);
+				socket = new Socket("localhost", PORT.join());
+				Thread listener = thread(new TestClientListener(this));
 				listener.start();
 				BufferedWriter output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 				for(String message : messages) {
@@ -220,7 +243,7 @@ class StressTest {
 		}
 	}
 	
-	private static class TestClientListener extends Thread {
+	private static class TestClientListener implements Runnable {
 		
 		public final TestClient client;
 		
@@ -247,6 +270,13 @@ class StressTest {
 			throw new RuntimeException("Method is not running on the server thread.");
 	}
 	
+	private static final Thread thread(Runnable runnable) {
+		if(VIRTUAL)
+			return SerialServerSocket.createVirtualThread(runnable);
+		else
+			return new Thread(runnable);
+	}
+	
 	private static final void pause() {
 		long milliseconds = RANDOM.nextLong(1000);
 		if(milliseconds < 10)
@@ -261,9 +291,9 @@ class StressTest {
 	
 	private static final String message() {
 		int length = 1 + RANDOM.nextInt(100);
-		String string = "";
+		StringBuilder string = new StringBuilder(length);
 		for(int i = 0; i < length; i++)
-			string += Character.toString(65 + RANDOM.nextInt(26));
-		return string;
+			string.append((char) ('A' + RANDOM.nextInt(26)));
+		return string.toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package com.sgware.serialsoc;
+
+/**
+ * Wraps an operation which is added to the main thread's queue so that its
+ * wait time and run time can be recorded in the server's {@link ServerMetrics
+ * metrics}. Operations are only wrapped when the server keeps metrics.
+ * <p>
+ * Because each socket has at most one delivery of input waiting at a time, a
+ * socket reuses one timed event for all of its deliveries, setting {@link
+ * #posted} again each time, so timing its input does not create any objects.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class TimedEvent implements CheckedRunnable {
+	
+	/**
+	 * The metrics in which the times are recorded.
+	 */
+	private final ServerMetrics metrics;
+	
+	/**
+	 * The type of operation.
+	 */
+	private final EventType type;
+	
+	/**
+	 * The operation.
+	 */
+	private final CheckedRunnable runnable;
+	
+	/**
+	 * The time, in the same units as {@link System#nanoTime()}, when the
+	 * operation was added to the queue.
+	 */
+	long posted;
+	
+	/**
+	 * Constructs a new timed event which was added to the queue now.
+	 * 
+	 * @param metrics the metrics in which the times will be recorded
+	 * @param type the type of operation
+	 * @param runnable the operation
+	 */
+	TimedEvent(ServerMetrics metrics, EventType type, CheckedRunnable runnable) {
+		this.metrics = metrics;
+		this.type = type;
+		this.runnable = runnable;
+		this.posted = System.nanoTime();
+	}
+	
+	@Override
+	public void run() throws Exception {
+		long start = System.nanoTime();
+		try {
+			runnable.run();
+		}
+		finally {
+			metrics.record(type, posted, start, System.nanoTime());
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,240 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that a socket whose client has stopped reading and sending still
+ * disconnects when it times out, even though the server has queued much more
+ * output for it than the network can hold. Each client connects and then does
+ * nothing, while the server sends it several megabytes and gives it a short
+ * read timeout. Every socket must close and disconnect soon after its timeout,
+ * well before its {@link SerialSocket#getLingerTimeout() linger timeout}.
+ * Then the same clients connect to a server with no timeout, which is closed
+ * while they are all still stalled; closing the server must not wait for them
+ * either.
+ * <p>
+ * Each check runs once with a thread for each socket and once with {@link
+ * SerialServerSocket#getSelectorThreads() selector threads}. The first optional
+ * argument is the number of clients.
+ * <p>
+ * Unlike {@link SimulationTest}, whose simulated clients always read their
+ * input, this test uses real sockets, since only a real connection can fill up
+ * and stop accepting output.
+ * 
+ * @author Stephen G. Ware
+ */
+class TimeoutTest {
+	
+	private static final Duration TIMEOUT = Duration.ofMillis(500);
+	private static final Duration LINGER = Duration.ofMinutes(1);
+	private static final Duration DEADLINE = Duration.ofSeconds(10);
+	private static final int CHUNK = 64 * 1024;
+	private static final int CHUNKS = 128;
+	
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		new TimeoutTest(clients, 0, false).run();
+		new TimeoutTest(clients, 2, false).run();
+		new TimeoutTest(clients, 0, true).run();
+		new TimeoutTest(clients, 2, true).run();
+	}
+	
+	private final int clients;
+	private final int selectors;
+	private final boolean stop;
+	private final TestServer server = new TestServer();
+	private final CountDownLatch connected;
+	private final CountDownLatch disconnected;
+	private Thread thread = null;
+	
+	private TimeoutTest(int clients, int selectors, boolean stop) {
+		this.clients = clients;
+		this.selectors = selectors;
+		this.stop = stop;
+		this.connected = new CountDownLatch(clients);
+		this.disconnected = new CountDownLatch(clients);
+	}
+	
+	private void run() throws Exception {
+		thread = new Thread(() -> {
+			try {
+				server.run();
+			}
+			catch(Exception exception) {
+				exception.printStackTrace();
+			}
+		});
+		thread.start();
+		int port = server.port.get(DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+		// Connect clients which never read or send anything.
+		List<Socket> sockets = new ArrayList<>();
+		long start = System.nanoTime();
+		try {
+			for(int i = 0; i < clients; i++) {
+				Socket socket = new Socket();
+				socket.setReceiveBufferSize(4096);
+				socket.connect(new InetSocketAddress("localhost", port));
+				sockets.add(socket);
+			}
+			if(!connected.await(DEADLINE.toMillis(), TimeUnit.MILLISECONDS))
+				throw new RuntimeException("Not every client connected: " + this);
+			// Closing the server must not wait for stalled clients.
+			if(stop)
+				server.close();
+			if(!disconnected.await(DEADLINE.toMillis(), TimeUnit.MILLISECONDS))
+				throw new RuntimeException("Not every stalled client disconnected: " + this);
+			long elapsed = System.nanoTime() - start;
+			server.close();
+			thread.join(DEADLINE.toMillis());
+			if(thread.isAlive())
+				throw new RuntimeException("Server did not stop: " + this);
+			System.out.println(this + " disconnected every client in " + Duration.ofNanos(elapsed).toMillis() + " ms.");
+		}
+		finally {
+			for(Socket socket : sockets)
+				socket.close();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "[Timeout Test: selectors=" + selectors + "; stop=" + stop + "; clients=" + clients + "; disconnected=" + (clients - disconnected.getCount()) + "; " + server + "]";
+	}
+	
+	private void checkThread() {
+		if(Thread.currentThread() != thread)
+			throw new RuntimeException("Method is not running on the server thread.");
+	}
+	
+	private class TestServer extends SerialServerSocket {
+		
+		public final CompletableFuture<Integer> port = new CompletableFuture<>();
+		public int timeouts = 0;
+		public boolean stopped = false;
+		
+		@Override
+		public String toString() {
+			return "[Test Server: sockets=" + getSockets().size() + "; timeouts=" + timeouts + "; stopped=" + stopped + "]";
+		}
+		
+		@Override
+		protected ServerSocket createServer() throws IOException {
+			checkThread();
+			ServerSocket server = selectors > 0 ? ServerSocketChannel.open().socket() : new ServerSocket();
+			server.bind(new InetSocketAddress("localhost", 0));
+			port.complete(server.getLocalPort());
+			return server;
+		}
+		
+		@Override
+		protected int getSelectorThreads() {
+			return selectors;
+		}
+		
+		@Override
+		protected TestSocket createSocket(Socket socket) throws Exception {
+			checkThread();
+			return new TestSocket(this, socket);
+		}
+		
+		@Override
+		protected void onException(Exception exception) {
+			exception.printStackTrace();
+			System.exit(1);
+		}
+		
+		@Override
+		protected void onStop() {
+			checkThread();
+			if(getSockets().size() > 0)
+				throw new RuntimeException("Server stopped with sockets connected: " + this);
+			stopped = true;
+		}
+	}
+	
+	private class TestSocket extends SerialSocket {
+		
+		public final TestServer server;
+		public boolean connected = false;
+		public boolean timedOut = false;
+		public boolean closed = false;
+		public boolean disconnected = false;
+		
+		protected TestSocket(TestServer server, Socket socket) throws Exception {
+			super(server, socket);
+			this.server = server;
+			checkThread();
+		}
+		
+		@Override
+		public String toString() {
+			return "[Test Socket: id=" + getId() + "; connected=" + connected + "; timedOut=" + timedOut + "; closed=" + closed + "; disconnected=" + disconnected + "; queued=" + getQueuedBytes() + "]";
+		}
+		
+		@Override
+		protected Duration getReadTimeout() {
+			return stop ? null : TIMEOUT;
+		}
+		
+		@Override
+		protected Duration getLingerTimeout() {
+			return LINGER;
+		}
+		
+		@Override
+		protected void onConnect() throws Exception {
+			checkThread();
+			if(connected || closed || disconnected)
+				throw new RuntimeException("Socket connected out of order: " + this);
+			connected = true;
+			TimeoutTest.this.connected.countDown();
+			// Queue far more output than the client's connection can hold.
+			ByteBuffer chunk = ByteBuffer.allocate(CHUNK).asReadOnlyBuffer();
+			for(int i = 0; i < CHUNKS; i++)
+				send(chunk.duplicate());
+		}
+		
+		@Override
+		protected void onTimeout() throws Exception {
+			checkThread();
+			if(!connected || closed || disconnected)
+				throw new RuntimeException("Socket timed out out of order: " + this);
+			if(getQueuedBytes() == 0)
+				throw new RuntimeException("Socket timed out with no output waiting: " + this);
+			timedOut = true;
+			server.timeouts++;
+			super.onTimeout();
+		}
+		
+		@Override
+		protected void onClose() throws Exception {
+			checkThread();
+			if(!connected || closed || disconnected)
+				throw new RuntimeException("Socket closed out of order: " + this);
+			closed = true;
+			send("Goodbye.");
+		}
+		
+		@Override
+		protected void onDisconnect() throws Exception {
+			checkThread();
+			if(!connected || !closed || disconnected)
+				throw new RuntimeException("Socket disconnected out of order: " + this);
+			if(timedOut == stop)
+				throw new RuntimeException("Socket disconnected for the wrong reason: " + this);
+			disconnected = true;
+			TimeoutTest.this.disconnected.countDown();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+package com.sgware.serialsoc;
+
+/**
+ * A hashed timing wheel which keeps track of {@link ScheduledTask scheduled
+ * tasks} for a {@link SerialServerSocket}'s main thread.
+ * <p>
+ * Time is divided into ticks of equal length, and the wheel has a fixed number
+ * of buckets which are used in turn, one per tick. Each task is put in the
+ * bucket for the tick when it is due, along with the number of times the wheel
+ * must go around before then. Each bucket is a doubly-linked list threaded
+ * through the tasks themselves, so adding or removing a task never depends on
+ * how many other tasks there are, and when the wheel moves to the next tick it
+ * only looks at the tasks in one bucket.
+ * <p>
+ * Tasks run up to one tick late, but never early. This class is only used on
+ * the main thread, so it does not need to be synchronized.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class TimerWheel {
+	
+	/**
+	 * The length of a tick, in nanoseconds.
+	 */
+	private final long tick;
+	
+	/**
+	 * The first task in each bucket, or null if a bucket is empty.
+	 */
+	private final ScheduledTask[] buckets;
+	
+	/**
+	 * Used to find a tick's bucket; the number of buckets is always a power of
+	 * two, so this is one less than that number.
+	 */
+	private final int mask;
+	
+	/**
+	 * The time, in the same units as {@link System#nanoTime()}, when the wheel
+	 * started. Tick 0 ends at this time.
+	 */
+	private final long start;
+	
+	/**
+	 * The next tick to be processed. All tasks due at earlier ticks have
+	 * already been removed.
+	 */
+	private long current = 0;
+	
+	/**
+	 * The number of tasks in the wheel.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Constructs a new, empty timer wheel.
+	 * 
+	 * @param tick the length of a tick, in nanoseconds
+	 * @param buckets the number of buckets, which must be a power of two
+	 * @param start the current time, in the same units as {@link
+	 * System#nanoTime()}
+	 */
+	TimerWheel(long tick, int buckets, long start) {
+		this.tick = tick;
+		this.buckets = new ScheduledTask[buckets];
+		this.mask = buckets - 1;
+		this.start = start;
+	}
+	
+	/**
+	 * Adds a task to the bucket for the tick when it is due. A task which is
+	 * already due is added to the next tick.
+	 * 
+	 * @param task the task to add
+	 */
+	void add(ScheduledTask task) {
+		long ticks = Math.max(current, ceiling(task.deadline - start));
+		task.rounds = (ticks - current) / buckets.length;
+		int index = (int) (ticks & mask);
+		task.bucket = index;
+		task.previous = null;
+		task.next = buckets[index];
+		if(task.next != null)
+			task.next.previous = task;
+		buckets[index] = task;
+		size++;
+	}
+	
+	/**
+	 * Removes a task from the wheel, if it is in the wheel.
+	 * 
+	 * @param task the task to remove
+	 */
+	void remove(ScheduledTask task) {
+		if(task.bucket < 0)
+			return;
+		if(task.previous == null)
+			buckets[task.bucket] = task.next;
+		else
+			task.previous.next = task.next;
+		if(task.next != null)
+			task.next.previous = task.previous;
+		task.previous = null;
+		task.next = null;
+		task.bucket = -1;
+		size--;
+	}
+	
+	/**
+	 * Returns how long it will be until the next tick ends, or -1 if the wheel
+	 * is empty and there is nothing to wait for.
+	 * 
+	 * @param now the current time, in the same units as {@link
+	 * System#nanoTime()}
+	 * @return the number of nanoseconds until the next tick, or -1
+	 */
+	long untilNextTick(long now) {
+		if(size == 0)
+			return -1;
+		return Math.max(0, start + current * tick - now);
+	}
+	
+	/**
+	 * Removes every task which is due at the current time from the wheel and
+	 * returns them as a list linked through {@link ScheduledTask#next}, in the
+	 * order they became due.
+	 * 
+	 * @param now the current time, in the same units as {@link
+	 * System#nanoTime()}
+	 * @return the first task which is due, or null if none are
+	 */
+	ScheduledTask expire(long now) {
+		long last = Math.floorDiv(now - start, tick);
+		if(size == 0) {
+			current = Math.max(current, last + 1);
+			return null;
+		}
+		ScheduledTask first = null;
+		ScheduledTask end = null;
+		for(; current <= last && size > 0; current++) {
+			ScheduledTask task = buckets[(int) (current & mask)];
+			while(task != null) {
+				ScheduledTask following = task.next;
+				if(task.rounds > 0)
+					task.rounds--;
+				else {
+					remove(task);
+					if(first == null)
+						first = task;
+					else
+						end.next = task;
+					end = task;
+				}
+				task = following;
+			}
+		}
+		current = Math.max(current, last + 1);
+		return first;
+	}
+	
+	/**
+	 * Returns the first tick which ends at or after a given amount of time
+	 * since the wheel started.
+	 * 
+	 * @param elapsed nanoseconds since the wheel started
+	 * @return the tick
+	 */
+	private long ceiling(long elapsed) {
+		return -Math.floorDiv(-elapsed, tick);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,427 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Encrypts and decrypts a non-blocking channel's bytes with TLS, using an
+ * {@link SSLEngine} on the {@link SelectorLoop selector thread} which reads
+ * from and writes to the channel. The handshake, including the engine's
+ * delegated tasks, happens as bytes arrive and as the channel can accept
+ * them, so a slow or malicious client never blocks the main thread or any
+ * other socket.
+ * <p>
+ * A {@link SerialSocket.ChannelListener} reads decrypted input with {@link
+ * #read(ByteBuffer)} instead of reading the channel, and a {@link
+ * ChannelOutbox} writes with {@link #write(ByteBuffer[], int, int)}, which
+ * encrypts the output first. Because one record can hold more input than the
+ * socket's buffer has room for, and one write can produce more encrypted bytes
+ * than the channel will accept, this class keeps its own buffers in both
+ * directions. It is only used on the selector thread.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class TlsChannel {
+	
+	/**
+	 * An empty buffer, which is wrapped when the engine needs to send
+	 * handshake messages but there is no output.
+	 */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	/**
+	 * The channel which sends and receives encrypted bytes.
+	 */
+	private final SocketChannel channel;
+	
+	/**
+	 * The engine which encrypts and decrypts.
+	 */
+	private final SSLEngine engine;
+	
+	/**
+	 * Encrypted bytes which have been read from the channel but not yet
+	 * decrypted. This buffer is always ready to be written into.
+	 */
+	private ByteBuffer netIn;
+	
+	/**
+	 * Decrypted bytes which have not been read yet. This buffer is always
+	 * ready to be read from.
+	 */
+	private ByteBuffer appIn;
+	
+	/**
+	 * Encrypted bytes which have not been written to the channel yet. This
+	 * buffer is always ready to be read from.
+	 */
+	private ByteBuffer netOut;
+	
+	/**
+	 * A flag indicating that the first handshake has not finished, so output
+	 * cannot be encrypted yet.
+	 */
+	private boolean handshaking = true;
+	
+	/**
+	 * A flag indicating that the first handshake has just finished, so output
+	 * which was waiting for it can be written.
+	 */
+	private boolean finished = false;
+	
+	/**
+	 * A flag indicating that the client has ended the input.
+	 */
+	private boolean ended = false;
+	
+	/**
+	 * Constructs a new TLS channel, which will act as the server in the
+	 * handshake.
+	 * 
+	 * @param channel the channel which sends and receives encrypted bytes
+	 * @param engine the engine which encrypts and decrypts
+	 */
+	TlsChannel(SocketChannel channel, SSLEngine engine) {
+		this.channel = channel;
+		this.engine = engine;
+		engine.setUseClientMode(false);
+		int packet = engine.getSession().getPacketBufferSize();
+		this.netIn = ByteBuffer.allocate(packet);
+		this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+		this.netOut = ByteBuffer.allocate(packet).flip();
+	}
+	
+	/**
+	 * Begins the handshake. The server then waits for the client's first
+	 * message, which {@link #read(ByteBuffer)} will receive.
+	 * 
+	 * @throws IOException if the handshake could not begin
+	 */
+	void begin() throws IOException {
+		try {
+			engine.beginHandshake();
+		}
+		catch(SSLException exception) {
+			throw failed(exception);
+		}
+	}
+	
+	/**
+	 * Returns whether the first handshake is still happening, in which case
+	 * output must wait.
+	 * 
+	 * @return true if the handshake has not finished
+	 */
+	boolean isHandshaking() {
+		return handshaking;
+	}
+	
+	/**
+	 * Returns whether there is input which has been read from the channel
+	 * but not yet read from this object. The selector does not know about
+	 * this input, so it must be read without waiting for the channel to be
+	 * ready.
+	 * 
+	 * @return true if input is buffered
+	 */
+	boolean isBuffered() {
+		return appIn.hasRemaining() || netIn.position() > 0;
+	}
+	
+	/**
+	 * Returns whether there are encrypted bytes which have not been written
+	 * to the channel yet.
+	 * 
+	 * @return true if bytes are waiting to be written
+	 */
+	boolean isFlushing() {
+		return netOut.hasRemaining();
+	}
+	
+	/**
+	 * Returns whether reading has left something for the writer to do: either
+	 * handshake messages are waiting to be written, or the handshake has just
+	 * finished and output which was waiting for it can be written.
+	 * 
+	 * @return true if the outbox should run
+	 */
+	boolean needsWrite() {
+		boolean needs = finished || netOut.hasRemaining();
+		finished = false;
+		return needs;
+	}
+	
+	/**
+	 * Reads and decrypts as much input as is available and fits in a buffer,
+	 * continuing the handshake if it is not finished.
+	 * 
+	 * @param buffer the buffer to read into
+	 * @return the number of bytes read, which may be 0, or -1 if the client has
+	 * ended the input
+	 * @throws IOException if reading fails or the client does not follow the
+	 * TLS protocol
+	 */
+	int read(ByteBuffer buffer) throws IOException {
+		try {
+			while(true) {
+				if(appIn.hasRemaining())
+					return transfer(appIn, buffer);
+				if(ended)
+					return -1;
+				SSLEngineResult result;
+				netIn.flip();
+				appIn.clear();
+				try {
+					result = engine.unwrap(netIn, appIn);
+				}
+				finally {
+					netIn.compact();
+					appIn.flip();
+				}
+				switch(result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize())).flip();
+					continue;
+				case BUFFER_UNDERFLOW:
+					// A whole record has not arrived yet.
+					if(!netIn.hasRemaining())
+						netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+					int read = channel.read(netIn);
+					if(read == 0)
+						return 0;
+					else if(read < 0)
+						end();
+					continue;
+				case CLOSED:
+					ended = true;
+					break;
+				default:
+					break;
+				}
+				if(!handshake(result.getHandshakeStatus()) && !appIn.hasRemaining())
+					return 0;
+			}
+		}
+		catch(SSLException exception) {
+			throw failed(exception);
+		}
+	}
+	
+	/**
+	 * Encrypts output and writes as much of it as the channel will accept.
+	 * Nothing is encrypted while the first handshake is happening or while
+	 * earlier encrypted bytes are still waiting to be written.
+	 * 
+	 * @param buffers the buffers holding the output
+	 * @param offset the index of the first buffer
+	 * @param length the number of buffers
+	 * @return the number of bytes of output which were encrypted
+	 * @throws IOException if writing fails or the connection has been closed
+	 */
+	long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		if(handshaking)
+			return 0;
+		long consumed = 0;
+		try {
+			while(flushBytes()) {
+				SSLEngineResult result;
+				netOut.clear();
+				try {
+					result = engine.wrap(buffers, offset, length, netOut);
+				}
+				finally {
+					netOut.flip();
+				}
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize())).flip();
+					continue;
+				}
+				else if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new ClosedChannelException();
+				consumed += result.bytesConsumed();
+				handshake(result.getHandshakeStatus());
+				if(result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+					break;
+			}
+		}
+		catch(SSLException exception) {
+			throw failed(exception);
+		}
+		return consumed;
+	}
+	
+	/**
+	 * Writes encrypted bytes which are waiting, and then continues the
+	 * handshake if it is waiting to send more.
+	 * 
+	 * @return true if there are no encrypted bytes waiting to be written
+	 * @throws IOException if writing fails
+	 */
+	boolean flush() throws IOException {
+		try {
+			if(flushBytes()) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if(status == HandshakeStatus.NEED_WRAP || status == HandshakeStatus.NEED_TASK)
+					handshake(status);
+			}
+			return flushBytes();
+		}
+		catch(SSLException exception) {
+			throw failed(exception);
+		}
+	}
+	
+	/**
+	 * Begins closing the connection by encrypting a message which tells the
+	 * client no more output will be sent. The message is written by {@link
+	 * #flush()}.
+	 * 
+	 * @throws IOException if the message could not be encrypted
+	 */
+	void closeOutbound() throws IOException {
+		engine.closeOutbound();
+		try {
+			handshake(engine.getHandshakeStatus());
+		}
+		catch(SSLException exception) {
+			throw failed(exception);
+		}
+	}
+	
+	/**
+	 * Runs the handshake for as long as it can continue without reading more
+	 * input: runs the engine's delegated tasks and encrypts the messages it
+	 * needs to send.
+	 * 
+	 * @param status what the handshake needs to do next
+	 * @return false if the handshake needs to send a message but earlier
+	 * encrypted bytes are still waiting to be written, or true otherwise
+	 * @throws IOException if writing fails or the handshake fails
+	 */
+	private boolean handshake(HandshakeStatus status) throws IOException {
+		while(true) {
+			switch(status) {
+			case NEED_TASK:
+				for(Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+					task.run();
+				status = engine.getHandshakeStatus();
+				break;
+			case NEED_WRAP:
+				if(!flushBytes())
+					return false;
+				SSLEngineResult result;
+				netOut.clear();
+				try {
+					result = engine.wrap(EMPTY, netOut);
+				}
+				finally {
+					netOut.flip();
+				}
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					netOut = ByteBuffer.allocate(netOut.capacity() * 2).flip();
+				else if(result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0)
+					return flushBytes();
+				else
+					status = result.getHandshakeStatus();
+				break;
+			case FINISHED:
+			case NOT_HANDSHAKING:
+				if(handshaking) {
+					handshaking = false;
+					finished = true;
+				}
+				return true;
+			default:
+				// The handshake is waiting for input.
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Writes as many of the encrypted bytes which are waiting as the channel
+	 * will accept.
+	 * 
+	 * @return true if all of them were written
+	 * @throws IOException if writing fails
+	 */
+	private boolean flushBytes() throws IOException {
+		while(netOut.hasRemaining())
+			if(channel.write(netOut) == 0)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Records that the client has ended the input without saying it would.
+	 */
+	private void end() {
+		ended = true;
+		try {
+			engine.closeInbound();
+		}
+		catch(SSLException exception) {
+			// The client did not send a close message, which many clients
+			// do not; the input has still ended.
+		}
+	}
+	
+	/**
+	 * Moves as many bytes as will fit from one buffer to another.
+	 * 
+	 * @param source the buffer to move bytes from
+	 * @param destination the buffer to move bytes to
+	 * @return the number of bytes moved
+	 */
+	private static int transfer(ByteBuffer source, ByteBuffer destination) {
+		int length = Math.min(source.remaining(), destination.remaining());
+		if(length == source.remaining())
+			destination.put(source);
+		else {
+			ByteBuffer slice = source.duplicate();
+			slice.limit(slice.position() + length);
+			destination.put(slice);
+			source.position(slice.position());
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns a larger copy of a buffer which is full and being written into.
+	 * 
+	 * @param buffer the buffer
+	 * @param size the smallest capacity the new buffer should have
+	 * @return a larger buffer with the same bytes, ready to be written into
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, size));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+	
+	/**
+	 * Returns the exception to throw when the TLS protocol fails, for example
+	 * because a client sent something which is not TLS or could not agree on
+	 * a cipher. Like a connection being reset, this is the client's problem,
+	 * so it becomes a {@link SocketException}, which closes the socket without
+	 * being reported as an uncaught exception.
+	 * 
+	 * @param cause the exception thrown by the engine
+	 * @return a socket exception
+	 */
+	private static SocketException failed(SSLException cause) {
+		SocketException exception = new SocketException("TLS failed: " + cause.getMessage());
+		exception.initCause(cause);
+		return exception;
+	}
+}
\ No newline at end of file
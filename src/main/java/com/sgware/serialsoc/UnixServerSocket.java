@@ -0,0 +1,159 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A {@link ServerSocket} which listens on a Unix domain socket, a file in the
+ * local file system, rather than on a TCP port. Processes on the same host,
+ * such as sidecars, can connect to it with {@link UnixSocket#connect(Path)}
+ * and exchange bytes through the kernel without going through the loopback
+ * TCP stack, which has less latency and uses less CPU.
+ * <p>
+ * A {@link SerialServerSocket} can use this transport by returning one from
+ * {@link SerialServerSocket#createServer()}. Accepted connections are {@link
+ * UnixSocket}s, and {@link SerialSocket}s read and write them exactly as they
+ * do TCP sockets:
+ * <p>
+ * <code>protected ServerSocket createServer() throws IOException {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;return new UnixServerSocket(Path.of("/tmp/server.sock"));<br>
+ * }</code>
+ * <p>
+ * A Unix domain server socket has a {@link #getChannel() channel}, so a server
+ * using this transport can use {@link SerialServerSocket#getSelectorThreads()
+ * selector threads}. It is not bound to a network address, so it has no
+ * {@link #getLocalPort() port}. Binding fails if the file already exists, for
+ * example because a server which used the same path did not stop cleanly; the
+ * file is deleted when this server socket closes.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class UnixServerSocket extends ServerSocket {
+	
+	/**
+	 * The channel which listens for and accepts connections.
+	 */
+	private final ServerSocketChannel channel;
+	
+	/**
+	 * The file this server socket is bound to.
+	 */
+	private final Path path;
+	
+	/**
+	 * The address of the file this server socket is bound to.
+	 */
+	private final UnixDomainSocketAddress address;
+	
+	/**
+	 * Constructs a new Unix domain server socket bound to a file, with the
+	 * default backlog of connections waiting to be accepted.
+	 * 
+	 * @param path the file to bind to, which must not exist yet
+	 * @throws IOException if the server socket could not be bound
+	 */
+	public UnixServerSocket(Path path) throws IOException {
+		this(path, 0);
+	}
+	
+	/**
+	 * Constructs a new Unix domain server socket bound to a file.
+	 * 
+	 * @param path the file to bind to, which must not exist yet
+	 * @param backlog the maximum number of connections waiting to be
+	 * accepted, or 0 to use the default
+	 * @throws IOException if the server socket could not be bound
+	 */
+	public UnixServerSocket(Path path, int backlog) throws IOException {
+		this.path = path;
+		this.address = UnixDomainSocketAddress.of(path);
+		this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(address, backlog);
+		}
+		catch(IOException exception) {
+			channel.close();
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Returns the file this server socket is bound to.
+	 * 
+	 * @return the path of the file
+	 */
+	public Path getPath() {
+		return path;
+	}
+	
+	/**
+	 * Returns the channel which listens for and accepts connections. It is
+	 * bound to the same file as this server socket.
+	 * 
+	 * @return the channel
+	 */
+	@Override
+	public ServerSocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Waits for a client to connect and returns the server's end of the
+	 * connection. The channel must be in blocking mode.
+	 * 
+	 * @return the server's end of the new connection
+	 * @throws java.nio.channels.ClosedChannelException if this server socket
+	 * has been closed
+	 * @throws IOException if an I/O error occurs while accepting
+	 */
+	@Override
+	public Socket accept() throws IOException {
+		return new UnixSocket(channel.accept());
+	}
+	
+	/**
+	 * Closes this server socket and deletes the file it was bound to. Clients
+	 * can no longer connect, and any thread waiting to accept a connection
+	 * stops waiting. Connections which were already accepted stay open.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(!channel.isOpen())
+			return;
+		try {
+			channel.close();
+			super.close();
+		}
+		finally {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+	
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return address;
+	}
+	
+	@Override
+	public String toString() {
+		return "[Unix Server Socket: path=" + path + "; closed=" + isClosed() + "]";
+	}
+}
\ No newline at end of file
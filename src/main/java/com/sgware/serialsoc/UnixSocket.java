@@ -0,0 +1,237 @@
+package com.sgware.serialsoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * One end of a connection over a Unix domain socket, which behaves like a
+ * {@link Socket} so that a {@link SerialSocket} can use it exactly as it uses
+ * a TCP socket. A Unix domain {@link SocketChannel} cannot create a socket of
+ * its own, so this class wraps one. A server gets these by {@link
+ * UnixServerSocket#accept() accepting} them from a {@link UnixServerSocket},
+ * and a client in another process on the same host gets one by calling {@link
+ * #connect(Path)}.
+ * <p>
+ * A Unix domain socket supports its {@link #getChannel() channel}, its {@link
+ * #getInputStream() input} and {@link #getOutputStream() output} streams,
+ * which can only be used while the channel is in blocking mode, {@link
+ * #close() closing}, and its addresses. As with a TCP socket, a thread blocked
+ * reading the input stream can read at the same time another thread writes
+ * to the output stream, and closing the socket causes the read to throw a
+ * {@link SocketException}. Options such as {@link #setTcpNoDelay(boolean)}
+ * apply only to TCP and should not be used.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public class UnixSocket extends Socket {
+	
+	/**
+	 * Reads from the channel without holding its blocking lock, so that
+	 * another thread can write while a read is blocked.
+	 */
+	private final class Input extends InputStream {
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			try {
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+			catch(ClosedChannelException exception) {
+				throw closed(exception);
+			}
+		}
+	}
+	
+	/**
+	 * Writes to the channel without holding its blocking lock, so that
+	 * another thread can read while a write is blocked.
+	 */
+	private final class Output extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			try {
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			catch(ClosedChannelException exception) {
+				throw closed(exception);
+			}
+		}
+	}
+	
+	/**
+	 * The channel used for input and output.
+	 */
+	private final SocketChannel channel;
+	
+	/**
+	 * The input stream, which reads from the channel.
+	 */
+	private final InputStream input = new Input();
+	
+	/**
+	 * The output stream, which writes to the channel.
+	 */
+	private final OutputStream output = new Output();
+	
+	/**
+	 * Constructs a socket which wraps a connected Unix domain channel.
+	 * 
+	 * @param channel the channel
+	 * @throws SocketException never, since a Unix domain socket has no network
+	 * socket to create
+	 */
+	UnixSocket(SocketChannel channel) throws SocketException {
+		super((SocketImpl) null);
+		this.channel = channel;
+	}
+	
+	/**
+	 * Connects to a {@link UnixServerSocket} or any other server listening on
+	 * a Unix domain socket.
+	 * 
+	 * @param path the file the server is bound to
+	 * @return the client's end of the new connection
+	 * @throws IOException if the connection could not be made
+	 */
+	public static UnixSocket connect(Path path) throws IOException {
+		SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+		try {
+			return new UnixSocket(channel);
+		}
+		catch(IOException exception) {
+			channel.close();
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Returns a socket for a channel which was accepted by a server socket
+	 * channel. A TCP channel has a socket of its own, which is returned, but a
+	 * Unix domain channel does not, so it is wrapped in a new Unix domain
+	 * socket.
+	 * 
+	 * @param channel the accepted channel
+	 * @return a socket which uses that channel
+	 * @throws IOException if the channel has been closed
+	 */
+	static Socket of(SocketChannel channel) throws IOException {
+		if(channel.getLocalAddress() instanceof UnixDomainSocketAddress)
+			return new UnixSocket(channel);
+		else
+			return channel.socket();
+	}
+	
+	/**
+	 * Returns the exception a socket would throw when it is used after it has
+	 * closed.
+	 * 
+	 * @param cause the exception thrown by the channel
+	 * @return a socket exception
+	 */
+	private static SocketException closed(ClosedChannelException cause) {
+		SocketException exception = new SocketException("Socket closed");
+		exception.initCause(cause);
+		return exception;
+	}
+	
+	@Override
+	public SocketChannel getChannel() {
+		return channel;
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if(isClosed())
+			throw new SocketException("Socket is closed");
+		return input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if(isClosed())
+			throw new SocketException("Socket is closed");
+		return output;
+	}
+	
+	@Override
+	public void shutdownInput() throws IOException {
+		channel.shutdownInput();
+	}
+	
+	@Override
+	public void shutdownOutput() throws IOException {
+		channel.shutdownOutput();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+	
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+	
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		try {
+			return channel.getLocalAddress();
+		}
+		catch(IOException exception) {
+			return null;
+		}
+	}
+	
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		try {
+			return channel.getRemoteAddress();
+		}
+		catch(IOException exception) {
+			return null;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "[Unix Socket: local=" + getLocalSocketAddress() + "; remote=" + getRemoteSocketAddress() + "; closed=" + isClosed() + "]";
+	}
+}
\ No newline at end of file
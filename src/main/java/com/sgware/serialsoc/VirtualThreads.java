@@ -0,0 +1,81 @@
+package com.sgware.serialsoc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Creates virtual threads when running on Java 21 or later. Because this
+ * project is compiled for Java 17, the virtual thread API is looked up when
+ * this class is loaded rather than called directly, so the same compiled code
+ * works on both versions.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+final class VirtualThreads {
+	
+	/**
+	 * Equivalent to {@code Thread.ofVirtual()}, or null if virtual threads are
+	 * not supported.
+	 */
+	private static final MethodHandle OF_VIRTUAL;
+	
+	/**
+	 * Equivalent to {@code Thread.Builder.OfVirtual.unstarted(Runnable)}, or
+	 * null if virtual threads are not supported.
+	 */
+	private static final MethodHandle UNSTARTED;
+	
+	static {
+		MethodHandle ofVirtual = null;
+		MethodHandle unstarted = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(builder));
+			unstarted = lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+		}
+		catch(ReflectiveOperationException exception) {
+			// Virtual threads are not supported before Java 21.
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+	
+	private VirtualThreads() {
+		// This class should not be instantiated.
+	}
+	
+	/**
+	 * Returns true if the current Java runtime supports virtual threads.
+	 * 
+	 * @return true if virtual threads are supported
+	 */
+	static boolean isSupported() {
+		return UNSTARTED != null;
+	}
+	
+	/**
+	 * Creates a new virtual thread that will run an operation, but does not
+	 * start it.
+	 * 
+	 * @param runnable the operation the thread will run
+	 * @return an unstarted virtual thread
+	 * @throws UnsupportedOperationException if the current Java runtime does
+	 * not support virtual threads
+	 */
+	static Thread create(Runnable runnable) {
+		if(!isSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		try {
+			return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(), runnable);
+		}
+		catch(RuntimeException | Error exception) {
+			throw exception;
+		}
+		catch(Throwable throwable) {
+			throw new IllegalStateException(throwable);
+		}
+	}
+}
\ No newline at end of file
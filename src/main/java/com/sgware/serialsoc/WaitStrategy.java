@@ -0,0 +1,36 @@
+package com.sgware.serialsoc;
+
+/**
+ * How a {@link RingEventQueue} waits on the main thread when it has no
+ * operations to run. Each strategy trades processor time for how quickly the
+ * main thread notices a new operation.
+ * 
+ * @author Stephen G. Ware
+ * @version 1
+ */
+public enum WaitStrategy {
+	
+	/**
+	 * The main thread is {@link java.util.concurrent.locks.LockSupport#park()
+	 * parked} until a new operation is added. This uses no processor time
+	 * while the server is idle, but the thread which adds an operation must
+	 * wake the main thread, which takes a little time on both sides.
+	 */
+	PARK,
+	
+	/**
+	 * The main thread checks for new operations in a loop and {@link
+	 * Thread#yield() yields} the processor between checks. This reacts faster
+	 * than {@link #PARK} and lets other threads run, but the main thread is
+	 * always busy.
+	 */
+	YIELD,
+	
+	/**
+	 * The main thread checks for new operations in a loop without giving up
+	 * the processor. This reacts the fastest, but it keeps one processor fully
+	 * busy even while the server is idle, so it should only be used when the
+	 * server has a processor to itself.
+	 */
+	SPIN;
+}
\ No newline at end of file